@@ -0,0 +1,93 @@
+/* © 2016 Joel Cretan
+ *
+ * This is part of RTTAPP, an Android RFC 4103 real-time text app
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.laserscorpion.rttapp.rtp;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>CallEngine owns the small, fixed set of event loops that run every call's work: receive
+ * dispatch, the outgoing text buffer ticks, and delivery of incoming text to TextListeners.
+ * Each loop is a single thread, so a call that is pinned to one loop sees all of its events in
+ * order and never needs to lock against itself, while the number of threads in the process no
+ * longer grows with the number of calls.</p>
+ *
+ * <p>Work posted to a loop must not block, since it holds up every other call on that loop.</p>
+ */
+public class CallEngine {
+    private static final String TAG = "CallEngine";
+    private static CallEngine instance;
+
+    private final ScheduledExecutorService[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Get the process-wide engine, creating it on first use with one loop per processor.
+     * @return the shared engine
+     */
+    public static synchronized CallEngine getInstance() {
+        if (instance == null)
+            instance = new CallEngine(Runtime.getRuntime().availableProcessors());
+        return instance;
+    }
+
+    /**
+     * Create an engine with its own loops. Most callers should use getInstance() instead.
+     * @param loopCount the number of event loop threads, at least 1
+     */
+    public CallEngine(int loopCount) {
+        if (loopCount < 1)
+            throw new IllegalArgumentException("need at least one event loop");
+        loops = new ScheduledExecutorService[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            ScheduledThreadPoolExecutor loop = new ScheduledThreadPoolExecutor(1, new LoopThreadFactory(i));
+            loop.setRemoveOnCancelPolicy(true); // ended calls shouldn't leave their ticks queued
+            loops[i] = loop;
+        }
+    }
+
+    /**
+     * Pick the loop that a new call should be pinned to. Calls are spread round-robin.
+     * @return the loop to run all of the call's work on
+     */
+    public ScheduledExecutorService nextLoop() {
+        int index = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+        return loops[index];
+    }
+
+    public int getLoopCount() {
+        return loops.length;
+    }
+
+    private static class LoopThreadFactory implements ThreadFactory {
+        private final int index;
+
+        LoopThreadFactory(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG + "-" + index);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/* © 2016 Joel Cretan
+ *
+ * This is part of RTTAPP, an Android RFC 4103 real-time text app
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.laserscorpion.rttapp.rtp;
+
+/**
+ * <p>A snapshot of the RTP statistics of one call, as returned by RTTCall.getStatistics().
+ * The local side is what we measured about the text the other party sends us. The remote side
+ * is what the other party last told us about our text in its RTCP reports, so it stays empty
+ * if the other party never sends RTCP.</p>
+ *
+ * <p>Loss fractions are for the interval between the two most recent reports, while the
+ * packet counts are for the whole call. Times are in milliseconds.</p>
+ */
+public class CallStatistics {
+    private final long packetsSent;
+    private final int packetsReceived;
+    private final long packetsLost;
+    private final float fractionLost;
+    private final long jitter;
+    private final boolean remoteReportReceived;
+    private final long remotePacketsLost;
+    private final float remoteFractionLost;
+    private final long remoteJitter;
+    private final long roundTripTime;
+    private final int redundantGenerations;
+
+    CallStatistics(long packetsSent, int packetsReceived, long packetsLost, float fractionLost,
+                   long jitter, boolean remoteReportReceived, long remotePacketsLost,
+                   float remoteFractionLost, long remoteJitter, long roundTripTime,
+                   int redundantGenerations) {
+        this.packetsSent = packetsSent;
+        this.packetsReceived = packetsReceived;
+        this.packetsLost = packetsLost;
+        this.fractionLost = fractionLost;
+        this.jitter = jitter;
+        this.remoteReportReceived = remoteReportReceived;
+        this.remotePacketsLost = remotePacketsLost;
+        this.remoteFractionLost = remoteFractionLost;
+        this.remoteJitter = remoteJitter;
+        this.roundTripTime = roundTripTime;
+        this.redundantGenerations = redundantGenerations;
+    }
+
+    /**
+     * @return the number of RTP packets we have sent, keepalives included
+     */
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    /**
+     * @return the number of RTP packets we have received from the other party
+     */
+    public int getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    /**
+     * @return the number of the other party's packets we have lost, as of our last report
+     */
+    public long getPacketsLost() {
+        return packetsLost;
+    }
+
+    /**
+     * @return the fraction of the other party's packets we lost, from 0 to 1
+     */
+    public float getFractionLost() {
+        return fractionLost;
+    }
+
+    /**
+     * @return the interarrival jitter of the other party's packets
+     */
+    public long getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @return true if the other party has sent an RTCP report about our packets yet. If not,
+     * the remote statistics are all zero and the round trip time is unknown.
+     */
+    public boolean isRemoteReportReceived() {
+        return remoteReportReceived;
+    }
+
+    /**
+     * @return the number of our packets the other party has lost
+     */
+    public long getRemotePacketsLost() {
+        return remotePacketsLost;
+    }
+
+    /**
+     * @return the fraction of our packets the other party lost, from 0 to 1
+     */
+    public float getRemoteFractionLost() {
+        return remoteFractionLost;
+    }
+
+    /**
+     * @return the interarrival jitter of our packets at the other party
+     */
+    public long getRemoteJitter() {
+        return remoteJitter;
+    }
+
+    /**
+     * @return the round trip time to the other party, or -1 if unknown
+     */
+    public long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * @return the number of redundant generations our packets carry right now. This follows
+     * the other party's reports, so it drops to 0 on a clean link.
+     */
+    public int getRedundantGenerations() {
+        return redundantGenerations;
+    }
+
+    @Override
+    public String toString() {
+        return "sent " + packetsSent + ", received " + packetsReceived + ", lost " + packetsLost +
+                " (" + Math.round(fractionLost * 100) + "%), jitter " + jitter + " ms, remote lost " +
+                remotePacketsLost + " (" + Math.round(remoteFractionLost * 100) + "%), remote jitter " +
+                remoteJitter + " ms, rtt " + roundTripTime + " ms, redundancy " + redundantGenerations;
+    }
+}
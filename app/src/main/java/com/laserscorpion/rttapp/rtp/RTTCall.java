@@ -31,9 +31,9 @@ import com.laserscorpion.rttapp.sip.SipClient;
 import com.laserscorpion.rttapp.sip.TextListener;
 
 import java.io.IOException;
-import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
 
 import gov.nist.jrtp.RtpErrorEvent;
@@ -42,13 +42,24 @@ import gov.nist.jrtp.RtpListener;
 import gov.nist.jrtp.RtpManager;
 import gov.nist.jrtp.RtpPacket;
 import gov.nist.jrtp.RtpPacketEvent;
+import gov.nist.jrtp.RtpReactor;
 import gov.nist.jrtp.RtpSession;
 import gov.nist.jrtp.RtpStatusEvent;
 import gov.nist.jrtp.RtpTimeoutEvent;
 
+import se.omnitor.protocol.rtp.RtcpTransport;
 import se.omnitor.protocol.rtp.RtpTextReceiver;
 import se.omnitor.protocol.rtp.RtpTextTransmitter;
+import se.omnitor.protocol.rtp.Session;
+import se.omnitor.protocol.rtp.Source;
+import se.omnitor.protocol.rtp.packets.RTCPBYEPacket;
+import se.omnitor.protocol.rtp.packets.RTCPPacket;
+import se.omnitor.protocol.rtp.packets.RTCPReceiverReportPacket;
+import se.omnitor.protocol.rtp.packets.RTCPSDESPacket;
+import se.omnitor.protocol.rtp.packets.RTCPSenderReportPacket;
+import se.omnitor.protocol.rtp.packets.RTCP_actionListener;
 import se.omnitor.protocol.rtp.packets.RTPPacket;
+import se.omnitor.protocol.rtp.packets.ReportBlock;
 import se.omnitor.protocol.rtp.text.SyncBuffer;
 import se.omnitor.util.*;
 
@@ -88,13 +99,29 @@ import se.omnitor.util.*;
  * stores some SIP requests and events involved in its own creation, for later reference when the
  * SIP layer is sending messages within dialogs or transactions. The upper layer may therefore
  * need to call such methods as getInviteTransaction() or getCreationEvent().</p>
+ *
+ * <p>A call has no threads of its own. Its RTP packets are received by the shared RtpReactor, and
+ * everything else -- decoding incoming text, delivering it to TextListeners, and the outgoing
+ * buffer ticks -- runs on the CallEngine event loop the call is pinned to when it is created.
+ * The exception is RTCP, which Omnitor's Session sends and receives on the port above the RTP
+ * port with threads of its own, or, if both parties agree to multiplex it (RFC 5761), on the RTP
+ * port itself, received by the RtpReactor alongside the RTP. JRTP has no RTCP, so the call reports every RTP packet it sends
+ * and receives to that Session, and getStatistics() reads the loss, jitter and round trip time
+ * back out of it.</p>
  */
 public class RTTCall {
     private static final String TAG = "RTTCall";
     private static final int RFC4103_BUFFER_TIME = 300;
     //private static final int TEXT_BUFFER_DELAY_MS = RFC4103_BUFFER_TIME; // too slow, it's only RECOMMENDED anyway
+    // the buffer time adapts between these: short for slow typing, up to the RFC's 300 ms for bursts or loss
     private static final int TEXT_BUFFER_DELAY_MS = 50;
+    private static final int MAX_TEXT_BUFFER_DELAY_MS = RFC4103_BUFFER_TIME;
+    // the most redundant generations sent; the other party's RTCP reports bring it down on a clean link
     private static final int REDUNDANT_TEXT_GENERATIONS = 3;
+    // octets per second; RTCP gets 5% of it, which still leaves the 5 second minimum report interval
+    private static final double RTCP_SESSION_BANDWIDTH = 1000;
+    // seconds; when the other party gives its RTCP bandwidth, that bounds the interval instead
+    private static final double FAST_RTCP_MIN_INTERVAL = 0.5;
     private SipClient sipClient;
     private Dialog dialog;
     private Request creationRequest;
@@ -113,13 +140,15 @@ public class RTTCall {
     private int remotePort;
     private String remoteIP;
 
+    private ScheduledExecutorService loop;
     private RtpManager manager;
     private RtpSession session;
     private FifoBuffer recvBuf;
     private SyncBuffer outgoingBuf;
-    private ReceiveThread recvThread;
-    private TextPrintThread printThread;
+    private CallReceiver receiver;
     private RtpTextTransmitter transmitter;
+    private Session rtcpSession;
+    private CallReporter reporter;
     private int t140PayloadNum;
     private int t140RedPayloadNum;
     private Address otherParty;
@@ -159,13 +188,12 @@ public class RTTCall {
         otherParty = contact.getAddress();
         sipClient = SipClient.getInstance();
         destructionLock = new Semaphore(1);
-        recvBuf = new FifoBuffer();
+        loop = CallEngine.getInstance().nextLoop();
+        recvBuf = new TextDeliveryBuffer();
         this.messageReceivers = messageReceivers;
-        printThread = new TextPrintThread(this, recvBuf);
-        printThread.start();
         try {
-            manager = new RtpManager(sipClient.getLocalIP());
-        } catch (UnknownHostException e) {
+            manager = new RtpManager(sipClient.getLocalIP(), RtpReactor.getDefault());
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
@@ -286,13 +314,17 @@ public class RTTCall {
      * @param t140MapNum the RTP payload map number corresponding to t140 in the agreed session description
      * @param t140RedMapNum must be &lt;= 0 if not using redundancy! This is the RTP payload map number corresponding to
      *                      "red", the redundant media type, in the agreed session description
+     * @param remoteCps the most characters per second the remote party will accept, from the cps parameter of its
+     *                  fmtp line, or 0 for no limit
+     * @param rtcpParameters the RTCP bandwidth and reduced-size support from the remote party's SDP
      * @throws IllegalStateException if no call is currently ringing
      * @throws RtpException if the call can't be connected
      */
-    public void accept(String remoteIP, int remotePort, int localRTPPort, int t140MapNum, int t140RedMapNum) throws IllegalStateException, RtpException {
+    public void accept(String remoteIP, int remotePort, int localRTPPort, int t140MapNum, int t140RedMapNum, int remoteCps,
+                       RtcpParameters rtcpParameters) throws IllegalStateException, RtpException {
         if (!ringing)
             throw new IllegalStateException("call is not ringing - cannot accept");
-        connectCall(remoteIP, remotePort, localRTPPort, t140MapNum, t140RedMapNum);
+        connectCall(remoteIP, remotePort, localRTPPort, t140MapNum, t140RedMapNum, remoteCps, rtcpParameters);
     }
 
     /**
@@ -304,16 +336,21 @@ public class RTTCall {
      * @param t140MapNum the RTP payload map number corresponding to t140 in the agreed session description
      * @param t140RedMapNum must be &lt;= 0 if not using redundancy! This is the RTP payload map number corresponding to
      *                      "red", the redundant media type, in the agreed session description
+     * @param remoteCps the most characters per second the remote party will accept, from the cps parameter of its
+     *                  fmtp line, or 0 for no limit
+     * @param rtcpParameters the RTCP bandwidth and reduced-size support from the remote party's SDP
      * @throws IllegalStateException if no call is currently outgoing
      * @throws RtpException if the call can't be connected
      */
-    public void callAccepted(String remoteIP, int remotePort, int localRTPPort, int t140MapNum, int t140RedMapNum) throws IllegalStateException, RtpException {
+    public void callAccepted(String remoteIP, int remotePort, int localRTPPort, int t140MapNum, int t140RedMapNum, int remoteCps,
+                             RtcpParameters rtcpParameters) throws IllegalStateException, RtpException {
         if (!calling)
             throw new IllegalStateException("not calling anyone - what was accepted?");
-        connectCall(remoteIP, remotePort, localRTPPort, t140MapNum, t140RedMapNum);
+        connectCall(remoteIP, remotePort, localRTPPort, t140MapNum, t140RedMapNum, remoteCps, rtcpParameters);
     }
 
-    private synchronized void connectCall(String remoteIP, int remotePort, int localRTPPort, int t140MapNum, int t140RedMapNum) throws RtpException {
+    private synchronized void connectCall(String remoteIP, int remotePort, int localRTPPort, int t140MapNum, int t140RedMapNum,
+                                          int remoteCps, RtcpParameters rtcpParameters) throws RtpException {
         if (connected)
             throw new IllegalStateException("can't connect call -- already connected on a call");
         if (!ringing && !calling)
@@ -323,20 +360,22 @@ public class RTTCall {
         this.localPort = localRTPPort;
         this.t140PayloadNum = t140MapNum;
         this.t140RedPayloadNum = t140RedMapNum;
-        recvThread = new ReceiveThread(recvBuf); // this must be created only once t140PayloadNum and t140RedPayloadNum are set
-        recvThread.start();
+        receiver = new CallReceiver(recvBuf); // this must be created only once t140PayloadNum and t140RedPayloadNum are set
         boolean useRed = (t140RedMapNum > 0);
         int redGenerations = useRed  ? REDUNDANT_TEXT_GENERATIONS : 0;
-        outgoingBuf = new SyncBuffer(redGenerations, TEXT_BUFFER_DELAY_MS);
-        outgoingBuf.start();
+        outgoingBuf = new SyncBuffer(redGenerations, TEXT_BUFFER_DELAY_MS); // not started, the transmitter polls it on our loop
+        outgoingBuf.setBufferTimeBounds(TEXT_BUFFER_DELAY_MS, MAX_TEXT_BUFFER_DELAY_MS);
+        outgoingBuf.setKeepaliveInterval(SyncBuffer.KEEPALIVE_INTERVAL, true);
         try {
             session = manager.createRtpSession(localRTPPort, remoteIP, remotePort);
-            session.addRtpListener(recvThread);
-            session.receiveRTPPackets();
-            int payloadType = useRed ? t140RedMapNum : t140MapNum;
-            transmitter = new RtpTextTransmitter(session, true, t140MapNum, useRed,
+            transmitter = new RtpTextTransmitter(session, false, t140MapNum, useRed,
                                                     t140RedMapNum, redGenerations, outgoingBuf, false);
-            transmitter.start();
+            transmitter.setCps(remoteCps);
+            if (!rtcpParameters.isRtcpDisabled())
+                startRtcp(remoteIP, remotePort + 1, localRTPPort + 1, rtcpParameters);
+            session.addRtpListener(receiver);
+            session.receiveRTPPackets();
+            transmitter.start(loop);
         } catch (RtpException e) {
             e.printStackTrace();
             end();
@@ -352,6 +391,56 @@ public class RTTCall {
 
     }
 
+    /**
+     * RTCP uses the port above the RTP port at both ends, per RFC 3550, unless the other party
+     * agreed to multiplex it onto the RTP port, per RFC 5761, and the payload types allow it. Then
+     * it is sent through the RTP session, and the RTP session hands any RTCP it receives straight
+     * to the RTCP session. The session must exist before any RTP is sent or received, since it has
+     * to see every packet.
+     *
+     * If the other party gave its RTCP bandwidth, that bandwidth alone bounds the report interval
+     * down to half a second, so loss is reported fast enough to adapt redundancy to it. Reduced-size
+     * reports keep that cheap by leaving the SDES out of most of them. Otherwise the RFC 3550
+     * defaults apply, since the other party may not expect reports more often than every 5 seconds.
+     *
+     * Multiplexed RTCP keeps the NAT binding of the RTP port open, so no T.140 keepalives are sent
+     * while reports are.
+     */
+    private void startRtcp(String remoteIP, int remoteRTCPPort, int localRTCPPort, RtcpParameters parameters) {
+        boolean rtcpMux = parameters.isRtcpMux()
+                && RtcpParameters.canMultiplex(t140PayloadNum, t140RedPayloadNum);
+        if (rtcpMux) {
+            final RtpSession rtpSession = session;
+            RtcpTransport transport = (data, offset, length) -> {
+                try {
+                    rtpSession.sendRtcpPacket(data, offset, length);
+                } catch (RtpException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            };
+            rtcpSession = new Session(RTCP_SESSION_BANDWIDTH, transmitter.getSsrc(), transport);
+        } else
+            rtcpSession = new Session(remoteIP, RTCP_SESSION_BANDWIDTH, localRTCPPort, transmitter.getSsrc());
+        rtcpSession.setCName("rttapp@" + sipClient.getLocalIP());
+        if (parameters.hasBandwidth()) {
+            rtcpSession.setRtcpBandwidth(parameters.getSenderBandwidth() / 8.0, parameters.getReceiverBandwidth() / 8.0);
+            rtcpSession.setMinimumInterval(FAST_RTCP_MIN_INTERVAL);
+        }
+        rtcpSession.setReducedSize(parameters.isReducedSize());
+        reporter = new CallReporter();
+        rtcpSession.addRTCP_actionListener(reporter);
+        final SyncBuffer buffer = outgoingBuf;
+        buffer.setRtcpMuxed(rtcpMux);
+        rtcpSession.setRtcpSentListener(() -> buffer.rtcpSent());
+        transmitter.setRtcpSession(rtcpSession);
+        if (rtcpMux) {
+            rtcpSession.startRTCP();
+            final Session muxedSession = rtcpSession;
+            session.setRtcpListener((data, offset, length) -> muxedSession.rtcpPacketReceived(data, offset, length));
+        } else
+            rtcpSession.startRTCP(localRTCPPort, remoteRTCPPort);
+    }
+
     /**
      * The most important method: send real-time text in the connected call. Queued outgoing text
      * is sent after the buffering interval, so calling this method more often than that interval
@@ -367,6 +456,53 @@ public class RTTCall {
         outgoingBuf.setData(t140Text);
     }
 
+    /**
+     * Outgoing text is paced to the rate the other party asked for, so a paste can take a while
+     * to go out. Use this to see how much is still waiting.
+     * @return the number of bytes of outgoing text not sent yet, 0 if not connected
+     */
+    public int getOutgoingQueueDepth() {
+        SyncBuffer buffer = outgoingBuf;
+        if (buffer == null)
+            return 0;
+        return buffer.getQueueDepth();
+    }
+
+
+    /**
+     * Get the RTP statistics of the call: how much of the other party's text we have lost, how
+     * much of ours they report losing, jitter both ways, and the round trip time. The remote half
+     * depends on the other party sending RTCP reports, which come every few seconds at most, or
+     * about twice a second if it gave its RTCP bandwidth in its SDP.
+     * @return a snapshot of the statistics, or null if the call was never connected or the other
+     * party turned RTCP off
+     */
+    public CallStatistics getStatistics() {
+        Session rtcp = rtcpSession;
+        CallReceiver callReceiver = receiver;
+        CallReporter callReporter = reporter;
+        RtpTextTransmitter callTransmitter = transmitter;
+        if (rtcp == null || callReceiver == null || callReporter == null || callTransmitter == null)
+            return null;
+
+        int packetsReceived = 0;
+        long packetsLost = 0;
+        float fractionLost = 0;
+        long jitter = 0;
+        long remoteSsrc = callReceiver.getRemoteSsrc();
+        if (remoteSsrc >= 0) {
+            Source source = rtcp.getSource(remoteSsrc);
+            synchronized (source) {
+                packetsReceived = source.getPacketsReceived();
+                packetsLost = source.getCumulativeLost();
+                fractionLost = source.getFractionLost();
+                jitter = source.getJitter();
+            }
+        }
+        return callReporter.getStatistics(rtcp.getPacketCount(), packetsReceived,
+                                          packetsLost, fractionLost, jitter,
+                                          callTransmitter.getRedundantGenerations());
+    }
 
     /**
      * End a call at any stage. Invoking multiple times has no effect; the
@@ -378,12 +514,18 @@ public class RTTCall {
             ringing = false;
             connected = false;
             calling = false;
-            if (printThread != null)
-                printThread.stopPrinting();
-            if (recvThread != null)
-                recvThread.stopReceiving();
+            if (receiver != null)
+                receiver.stopReceiving();
             if (transmitter != null)
                 transmitter.stop();
+            if (rtcpSession != null) {
+                rtcpSession.setRtcpSentListener(null);
+                if (session != null)
+                    session.setRtcpListener(null);
+                // sends RTCP BYE a few seconds later, on its own thread; a multiplexed BYE is
+                // dropped once the RTP session below has shut down, and the SIP BYE ends the call anyway
+                rtcpSession.stop();
+            }
             if (session != null) {
                 session.stopRtpPacketReceiver();
                 session.shutDown();
@@ -410,45 +552,61 @@ public class RTTCall {
 
 
     /**
-     * This thread receives incoming RTP packets from JRTP's session,
-     * repackages them into Omnitor's expected RTPPacket format, and
-     * hands them over to a modified version of Omnitor's RtpTextReceiver,
-     * which removes duplicates and extracts the text and puts it in the
-     * FIFO buffer for PrintThread to read.
-     *
-     *
+     * This receives incoming RTP packets from JRTP's session on the reactor thread,
+     * repackages them into Omnitor's expected RTPPacket format, and hands them over
+     * on the call's loop to a modified version of Omnitor's RtpTextReceiver,
+     * which sorts the packets by SSRC, so a stream that restarts or is replaced
+     * keeps being heard, removes duplicates and extracts the text and puts it in the
+     * TextDeliveryBuffer.
      */
-    private class ReceiveThread extends Thread implements RtpListener {
-        private boolean stop = false;
+    private class CallReceiver implements RtpListener {
+        private volatile boolean stop = false;
+        private volatile long remoteSsrc = -1;
 
         private RtpTextReceiver textReceiver;
 
-        public ReceiveThread(FifoBuffer buffer) {
+        public CallReceiver(FifoBuffer buffer) {
             // RtpTextReceiver must be created only once t140PayloadNum and t140RedPayloadNum are set
             textReceiver = new RtpTextReceiver(localPort, (t140RedPayloadNum > 0), t140PayloadNum, t140RedPayloadNum, buffer);
         }
 
-        /* synchronizing on the boolean stop is probably not necessary */
         public void stopReceiving() {
             stop = true;
-            // now run() completes and the thread dies
         }
 
-        @Override
-        public void run() {
-            while (!stop) {
-                // please don't die on us, thread!
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) { /* go back to sleep */ }
-            }
+        /**
+         * Outputs any text still held for a stream that has ended, e.g. with an RTCP BYE
+         * @param ssrc the SSRC of the stream
+         */
+        public void sourceLeft(long ssrc) {
+            loop.execute(() -> {
+                if (!stop)
+                    textReceiver.sourceLeft(ssrc);
+            });
+        }
+
+        /**
+         * @return the SSRC of the last packet received, or -1 if none yet
+         */
+        public long getRemoteSsrc() {
+            return remoteSsrc;
         }
 
         @Override
         public void handleRtpPacketEvent(RtpPacketEvent rtpEvent) {
+            if (stop)
+                return;
             RtpPacket packet = rtpEvent.getRtpPacket();
+            remoteSsrc = packet.getSSRC();
+            Session rtcp = rtcpSession;
+            if (rtcp != null)
+                rtcp.rtpPacketReceived(packet.getSSRC(), packet.getSN(), packet.getTS());
             RTPPacket convertedPacket = convertPacket(packet);
-            textReceiver.handleRTPEvent(convertedPacket);
+            // the reactor thread serves many calls, so don't decode here
+            loop.execute(() -> {
+                if (!stop)
+                    textReceiver.handleRTPEvent(convertedPacket);
+            });
         }
 
         private RTPPacket convertPacket(RtpPacket incoming) {
@@ -480,45 +638,85 @@ public class RTTCall {
 
 
     /**
-     * This thread is constantly waiting for ReceiveThread to add
-     * some more text to the FIFO buffer, which it removes and prints
-     * it to the UI class(es) that are waiting to display it.
+     * This receives the RTCP reports the other party sends about our packets, on the Session's
+     * RTCP receiver thread. The loss it reports lengthens the outgoing buffer time so the
+     * redundancy covers longer bursts of loss, and the loss and jitter together pick how many
+     * redundant generations the transmitter sends.
      */
-    private class TextPrintThread extends Thread {
-        RTTCall parent;
-        FifoBuffer buffer;
-        boolean stop = false;
-
-        public TextPrintThread(RTTCall parent, FifoBuffer buffer) {
-            this.parent = parent;
-            this.buffer = buffer;
+    private class CallReporter implements RTCP_actionListener {
+        private boolean reportReceived = false;
+        private long remotePacketsLost = 0;
+        private float remoteFractionLost = 0;
+        private long remoteJitter = 0;
+        private long roundTripTime = -1;
+
+        @Override
+        public void handleRTCPEvent(RTCPReceiverReportPacket rrPkt) {
+            reportReceived(rrPkt);
         }
 
-        public void stopPrinting() {
-            stop = true;
-            synchronized (buffer) {
-                buffer.notifyAll();
+        @Override
+        public void handleRTCPEvent(RTCPSenderReportPacket srPkt) {
+            reportReceived(srPkt);
+        }
+
+        @Override
+        public void handleRTCPEvent(RTCPSDESPacket sdespkt) {
+        }
+
+        @Override
+        public void handleRTCPEvent(RTCPBYEPacket byepkt) {
+            Log.d(TAG, "RTCP BYE received");
+            CallReceiver callReceiver = receiver;
+            if (callReceiver != null)
+                callReceiver.sourceLeft(byepkt.getSsrc());
+        }
+
+        private void reportReceived(RTCPPacket packet) {
+            if (!packet.isContainingReportBlock())
+                return;
+            ReportBlock block = packet.getReportBlock();
+            float fractionLost = (float)(block.getFractionLost() / 256);
+            long rtt = rtcpSession.getRoundTripTime((long)block.getLastSr(), block.getDelayLastSr());
+            synchronized (this) {
+                reportReceived = true;
+                remotePacketsLost = block.getCumulativeNumberOfPacketsLost();
+                remoteFractionLost = fractionLost;
+                remoteJitter = (long)block.getInterarrivalJitter();
+                if (rtt >= 0)
+                    roundTripTime = rtt;
             }
-            // now run() completes and the thread dies
+            outgoingBuf.setLossFraction(fractionLost);
+            transmitter.setRemoteReception(fractionLost, (long)block.getInterarrivalJitter());
         }
 
+        public synchronized CallStatistics getStatistics(long packetsSent, int packetsReceived,
+                                                         long packetsLost, float fractionLost, long jitter,
+                                                         int redundantGenerations) {
+            return new CallStatistics(packetsSent, packetsReceived, packetsLost, fractionLost, jitter,
+                                      reportReceived, remotePacketsLost, remoteFractionLost,
+                                      remoteJitter, roundTripTime, redundantGenerations);
+        }
+    }
+
+
+    /**
+     * RtpTextReceiver writes incoming text to a FIFO buffer. Instead of having a thread
+     * waiting to read it, this buffer passes the text straight to the UI class(es) that are
+     * waiting to display it. It is only written to from the call's loop.
+     */
+    private class TextDeliveryBuffer extends FifoBuffer {
         @Override
-        public void run() {
-            byte[] received;
-            while (!stop) {
-                try {
-                    received = buffer.getData(); // this blocks until there is something in the fifo
-                    if (received != null) {
-                        synchronized (parent) {
-                            synchronized (messageReceivers) {
-                                for (TextListener receiver : messageReceivers) {
-                                    String text = new String(received, StandardCharsets.UTF_8);
-                                    receiver.RTTextReceived(text);
-                                }
-                            }
-                        }
+        public void setData(byte[] received) {
+            if (received == null || !connected)
+                return;
+            String text = new String(received, StandardCharsets.UTF_8);
+            synchronized (RTTCall.this) {
+                synchronized (messageReceivers) {
+                    for (TextListener receiver : messageReceivers) {
+                        receiver.RTTextReceived(text);
                     }
-                } catch (InterruptedException e) {/* that's fine */}
+                }
             }
         }
     }
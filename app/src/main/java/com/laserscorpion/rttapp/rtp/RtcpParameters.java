@@ -0,0 +1,115 @@
+/* © 2016 Joel Cretan
+ *
+ * This is part of RTTAPP, an Android RFC 4103 real-time text app
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package com.laserscorpion.rttapp.rtp;
+
+/**
+ * <p>The RTCP parameters the other party gave in its SDP: the b=RS and b=RR bandwidth lines of
+ * RFC 3556, whether it accepts reduced-size RTCP (RFC 5506) with a=rtcp-rsize, and whether it
+ * sends RTCP on the RTP port instead of the port above it (RFC 5761) with a=rtcp-mux.</p>
+ *
+ * <p>If the other party gave no bandwidth lines, RTCP falls back to the RFC 3550 defaults, with
+ * reports every 5 seconds at most. If it gave both as 0, it does not want RTCP at all.</p>
+ */
+public class RtcpParameters {
+    /**
+     * The parameters of a party that said nothing about RTCP in its SDP
+     */
+    public static final RtcpParameters DEFAULT = new RtcpParameters(-1, -1, false, false);
+
+    private final int senderBandwidth;
+    private final int receiverBandwidth;
+    private final boolean reducedSize;
+    private final boolean rtcpMux;
+
+    /**
+     * @param senderBandwidth the b=RS value in bits per second, or -1 if not given
+     * @param receiverBandwidth the b=RR value in bits per second, or -1 if not given
+     * @param reducedSize true if the SDP had a=rtcp-rsize
+     * @param rtcpMux true if the SDP had a=rtcp-mux
+     */
+    public RtcpParameters(int senderBandwidth, int receiverBandwidth, boolean reducedSize, boolean rtcpMux) {
+        this.senderBandwidth = senderBandwidth;
+        this.receiverBandwidth = receiverBandwidth;
+        this.reducedSize = reducedSize;
+        this.rtcpMux = rtcpMux;
+    }
+
+    /**
+     * @return the RTCP bandwidth for active senders in bits per second, or -1 if not given
+     */
+    public int getSenderBandwidth() {
+        return senderBandwidth;
+    }
+
+    /**
+     * @return the RTCP bandwidth for other members in bits per second, or -1 if not given
+     */
+    public int getReceiverBandwidth() {
+        return receiverBandwidth;
+    }
+
+    /**
+     * @return true if both bandwidths were given, so they replace the default 5% of the session
+     * bandwidth
+     */
+    public boolean hasBandwidth() {
+        return senderBandwidth >= 0 && receiverBandwidth >= 0;
+    }
+
+    /**
+     * @return true if the other party turned RTCP off by giving both bandwidths as 0
+     */
+    public boolean isRtcpDisabled() {
+        return senderBandwidth == 0 && receiverBandwidth == 0;
+    }
+
+    /**
+     * @return true if the other party accepts reduced-size RTCP
+     */
+    public boolean isReducedSize() {
+        return reducedSize;
+    }
+
+    /**
+     * @return true if RTCP shares the RTP port. In an offer, this means the other party can do
+     * that; in an answer, that it will.
+     */
+    public boolean isRtcpMux() {
+        return rtcpMux;
+    }
+
+    /**
+     * RFC 5761 section 4: RTP payload types 64-95 would clash with the RTCP packet types 192-223
+     * once the marker bit is set, so RTCP must not be multiplexed with a session that uses them.
+     * @param payloadTypes the RTP payload types of the session; values below 0 mean unused
+     * @return true if RTCP can share the RTP port with these payload types
+     */
+    public static boolean canMultiplex(int... payloadTypes) {
+        for (int payloadType : payloadTypes) {
+            if (payloadType >= 64 && payloadType <= 95)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "RS " + senderBandwidth + ", RR " + receiverBandwidth + (reducedSize ? ", rtcp-rsize" : "")
+                + (rtcpMux ? ", rtcp-mux" : "");
+    }
+}
@@ -40,6 +40,8 @@ import android.javax.sip.message.Message;
 import android.os.StrictMode;
 import android.util.Log;
 
+import com.laserscorpion.rttapp.rtp.RtcpParameters;
+
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.util.Vector;
@@ -57,6 +59,10 @@ public class SDPBuilder {
 
     private static final String TAG = "SDPBuilder";
     private static final int SAMPLE_RATE = 1000; // defined by RFC 4103 p.15
+    private static final int DEFAULT_CPS = 30; // RFC 4103 section 6, used when no cps is given
+    // RTCP bandwidth in bits per second (RFC 3556), enough for two parties to report about twice a second
+    private static final int RTCP_SENDER_BANDWIDTH = 1200;
+    private static final int RTCP_RECEIVER_BANDWIDTH = 1200;
     private static SdpFactory factory = SdpFactory.getInstance();
     private static SipFactory sipFactory = SipFactory.getInstance();
     private static HeaderFactory headerFactory;
@@ -78,9 +84,14 @@ public class SDPBuilder {
      *                         -Use 0 for the default T140red rtpmap num
      *                         -Use -1 to not use redundancy at all
      * @param port             the local UDP port where the other party should send RTT
+     * @param rtcpMux          whether to offer RTCP on the RTP port (RFC 5761). An answer must only
+     *                         include it if the offer did.
+     * @param reducedSize      whether to offer reduced-size RTCP (RFC 5506). An answer must only
+     *                         include it if the offer did.
      * @return a new copy of the message with the SDP added
      */
-    public static Message addSDPContentAndHeader(Message message, int preferredT140Map, int preferredRedMap, int port) {
+    public static Message addSDPContentAndHeader(Message message, int preferredT140Map, int preferredRedMap, int port,
+                                                 boolean rtcpMux, boolean reducedSize) {
         if (headerFactory == null) {
             try {
                 headerFactory = sipFactory.createHeaderFactory();
@@ -96,7 +107,7 @@ public class SDPBuilder {
         sender.localIP = from.getHost();
         sender.port = port;
         try {
-            String sdp = createRTTSDPContent(preferredT140Map, preferredRedMap, sender);
+            String sdp = createRTTSDPContent(preferredT140Map, preferredRedMap, sender, rtcpMux, reducedSize);
             ContentTypeHeader typeHeader = headerFactory.createContentTypeHeader("application", "sdp");
             if (useDummyAudio) {
                 String audio = createAudioSDPContent(-1, null); // if you ever want to actually do this, you'll need to get the real rtpmap
@@ -115,9 +126,12 @@ public class SDPBuilder {
      * Create the SDP specifying how we want to receive text RTP media
      * @param t140MapNum the preferred map number for the red media type, or 0 for no preference
      * @param redMapNum  the preferred map number for the red media type, or 0 for no preference, or -1 for no redundancy
+     * @param rtcpMux    whether to include a=rtcp-mux
+     * @param reducedSize whether to include a=rtcp-rsize
      * @return
      */
-    private static String createRTTSDPContent(int t140MapNum, int redMapNum, Sender sender) {
+    private static String createRTTSDPContent(int t140MapNum, int redMapNum, Sender sender, boolean rtcpMux,
+                                              boolean reducedSize) {
         int sessionID = Math.abs(randomGen.nextInt());
         if (t140MapNum == 0)
             t140MapNum = 100;
@@ -140,6 +154,20 @@ public class SDPBuilder {
                 textMedia.addAttribute(redAttr);
                 textMedia.setAttribute("fmtp", redMapNum + " " + t140MapNum + "/" + t140MapNum + "/" + t140MapNum + "/" + t140MapNum); // 4 levels of red
             }
+            textMedia.setBandwidth("RS", RTCP_SENDER_BANDWIDTH);
+            textMedia.setBandwidth("RR", RTCP_RECEIVER_BANDWIDTH);
+            if (reducedSize) {
+                AttributeField rsize = new AttributeField();
+                rsize.setName("rtcp-rsize");
+                rsize.setValueAllowNull(null);
+                textMedia.addAttribute(rsize);
+            }
+            if (rtcpMux) {
+                AttributeField mux = new AttributeField();
+                mux.setName("rtcp-mux");
+                mux.setValueAllowNull(null);
+                textMedia.addAttribute(mux);
+            }
             AttributeField sendrecv = new AttributeField();
             sendrecv.setName("sendrecv");
             sendrecv.setValueAllowNull(null);
@@ -240,6 +268,83 @@ public class SDPBuilder {
         }
     }
 
+    /**
+     * Get the most characters per second the other party is willing to receive, from the cps
+     * parameter of the fmtp line for its t140 payload, e.g. "a=fmtp:100 cps=20"
+     * @param otherPartySDP the message containing the other party's preferred session description
+     * @param t140MapNum the other party's t140 payload map number
+     * @return the cps, or the RFC 4103 default of 30 if none is given
+     */
+    public static int getT140Cps(Message otherPartySDP, int t140MapNum) {
+        String body = new String(otherPartySDP.getRawContent(), StandardCharsets.UTF_8);
+        try {
+            SessionDescription suggestedSession = factory.createSessionDescription(body);
+            Vector<MediaDescription> mediaDescriptions = suggestedSession.getMediaDescriptions(true);
+            for (MediaDescription mediaDescription : mediaDescriptions) {
+                Media media = mediaDescription.getMedia();
+                if (media.getMediaType().equals("text")) {
+                    Vector<Attribute> attributes = mediaDescription.getAttributes(true);
+                    for (Attribute attr : attributes) {
+                        if (!attr.getName().equals("fmtp") || attr.getValue() == null)
+                            continue;
+                        String[] params = attr.getValue().toLowerCase().trim().split("[ ;]+");
+                        if (!params[0].equals(Integer.toString(t140MapNum)))
+                            continue;
+                        for (int i = 1; i < params.length; i++) {
+                            if (params[i].startsWith("cps="))
+                                return Integer.parseInt(params[i].substring("cps=".length()));
+                        }
+                    }
+                }
+            }
+            return DEFAULT_CPS;
+        } catch (Exception e) {
+            Log.e(TAG, "couldn't get cps from SDP, using the default");
+            e.printStackTrace();
+            return DEFAULT_CPS;
+        }
+    }
+
+    /**
+     * Get the RTCP parameters the other party gave for its text stream: the b=RS and b=RR lines,
+     * which may also be given for the whole session, and the a=rtcp-rsize and a=rtcp-mux attributes
+     * @param otherPartySDP the message containing the other party's preferred session description
+     * @return the parameters, or RtcpParameters.DEFAULT if none are given
+     */
+    public static RtcpParameters getRtcpParameters(Message otherPartySDP) {
+        String body = new String(otherPartySDP.getRawContent(), StandardCharsets.UTF_8);
+        try {
+            SessionDescription suggestedSession = factory.createSessionDescription(body);
+            Vector<MediaDescription> mediaDescriptions = suggestedSession.getMediaDescriptions(true);
+            for (MediaDescription mediaDescription : mediaDescriptions) {
+                Media media = mediaDescription.getMedia();
+                if (media.getMediaType().equals("text")) {
+                    int rs = mediaDescription.getBandwidth("RS");
+                    int rr = mediaDescription.getBandwidth("RR");
+                    if (rs < 0)
+                        rs = suggestedSession.getBandwidth("RS");
+                    if (rr < 0)
+                        rr = suggestedSession.getBandwidth("RR");
+                    boolean reducedSize = false;
+                    boolean rtcpMux = false;
+                    Vector<Attribute> attributes = mediaDescription.getAttributes(true);
+                    for (Attribute attr : attributes) {
+                        if (attr.getName().equals("rtcp-rsize"))
+                            reducedSize = true;
+                        else if (attr.getName().equals("rtcp-mux"))
+                            rtcpMux = true;
+                    }
+                    return new RtcpParameters(rs, rr, reducedSize, rtcpMux);
+                }
+            }
+            return RtcpParameters.DEFAULT;
+        } catch (Exception e) {
+            Log.e(TAG, "couldn't get RTCP parameters from SDP, using the defaults");
+            e.printStackTrace();
+            return RtcpParameters.DEFAULT;
+        }
+    }
+
     /**
      * Get the remote port number where the other party expects to receive text RTP
      * @param otherPartySDP the message containing the other party's preferred session description
@@ -55,6 +55,7 @@ import android.gov.nist.javax.sip.clientauthutils.*;
 
 import com.laserscorpion.rttapp.BuildConfig;
 import com.laserscorpion.rttapp.rtp.RTTCall;
+import com.laserscorpion.rttapp.rtp.RtcpParameters;
 
 import gov.nist.jrtp.RtpException;
 
@@ -669,7 +670,7 @@ public class SipClient implements SipListener, ConnectivityReceiver.IPChangeList
             request.addHeader(localContactHeader);
             ExpiresHeader expiresHeader = headerFactory.createExpiresHeader(CALL_RINGING_TIME);
             request.addHeader(expiresHeader);
-            request = (Request) SDPBuilder.addSDPContentAndHeader(request, 0, 0, port + 1);
+            request = (Request) SDPBuilder.addSDPContentAndHeader(request, 0, 0, port + 1, true, true);
             StrictMode.ThreadPolicy tp0 = StrictMode.getThreadPolicy();
             ClientTransaction transaction;
             try {
@@ -762,7 +763,8 @@ public class SipClient implements SipListener, ConnectivityReceiver.IPChangeList
         int suggestedT140Map = SDPBuilder.getT140MapNum(originalInvite, SDPBuilder.mediaType.T140);
         int suggestedT140RedMap = SDPBuilder.getT140MapNum(originalInvite, SDPBuilder.mediaType.T140RED);
         try {
-            currentCall.accept(SDPBuilder.getRemoteIP(originalInvite), SDPBuilder.getT140PortNum(originalInvite), port+1, suggestedT140Map, suggestedT140RedMap);
+            currentCall.accept(SDPBuilder.getRemoteIP(originalInvite), SDPBuilder.getT140PortNum(originalInvite), port+1, suggestedT140Map, suggestedT140RedMap,
+                                SDPBuilder.getT140Cps(originalInvite, suggestedT140Map), SDPBuilder.getRtcpParameters(originalInvite));
             currentCall.addDialog(requestEvent.getDialog());
             synchronized (this) {
                 try {
@@ -856,7 +858,11 @@ public class SipClient implements SipListener, ConnectivityReceiver.IPChangeList
             int suggestedT140Map = SDPBuilder.getT140MapNum(request, SDPBuilder.mediaType.T140);
             int suggestedT140RedMap = SDPBuilder.getT140MapNum(request, SDPBuilder.mediaType.T140RED);
             response.addHeader(localContactHeader);
-            response = (Response)SDPBuilder.addSDPContentAndHeader(response, suggestedT140Map, suggestedT140RedMap, port+1);
+            RtcpParameters offered = SDPBuilder.getRtcpParameters(request);
+            boolean rtcpMux = offered.isRtcpMux()
+                    && RtcpParameters.canMultiplex(suggestedT140Map, suggestedT140RedMap);
+            response = (Response)SDPBuilder.addSDPContentAndHeader(response, suggestedT140Map, suggestedT140RedMap, port+1,
+                                                                   rtcpMux, offered.isReducedSize());
             if (request.getHeader("Accept") != null) {
                 // TODO send the message body that this request is demanding
             }
@@ -1208,7 +1214,8 @@ public class SipClient implements SipListener, ConnectivityReceiver.IPChangeList
             int agreedT140MapNum = SDPBuilder.getT140MapNum(response, SDPBuilder.mediaType.T140);
             int agreedT140RedMapNum = SDPBuilder.getT140MapNum(response, SDPBuilder.mediaType.T140RED);
             try {
-                currentCall.callAccepted(SDPBuilder.getRemoteIP(response), SDPBuilder.getT140PortNum(response), port + 1, agreedT140MapNum, agreedT140RedMapNum);
+                currentCall.callAccepted(SDPBuilder.getRemoteIP(response), SDPBuilder.getT140PortNum(response), port + 1, agreedT140MapNum, agreedT140RedMapNum,
+                                            SDPBuilder.getT140Cps(response, agreedT140MapNum), SDPBuilder.getRtcpParameters(response));
                 notifySessionEstablished();
             } catch (RtpException e) {
                 if (BuildConfig.DEBUG) Log.d(TAG, "call failed");
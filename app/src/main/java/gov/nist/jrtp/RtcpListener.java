@@ -0,0 +1,43 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.jrtp;
+
+/**
+ * This class defines a listener for RTCP packets multiplexed onto an RTP
+ * session's port (RFC 5761).
+ * 
+ * @see RtpSession#setRtcpListener(RtcpListener)
+ */
+public interface RtcpListener {
+
+	/**
+	 * Handle a received RTCP packet. The buffer is reused once this method
+	 * returns, so the packet must be parsed or copied before then.
+	 * 
+	 * @param data
+	 *            The buffer holding the compound RTCP packet.
+	 * @param offset
+	 *            The offset of the packet in data.
+	 * @param length
+	 *            The length of the packet.
+	 */
+	public void handleRtcpPacket(byte[] data, int offset, int length);
+
+}
@@ -41,6 +41,12 @@ public class RtpManager {
 	/** The IP address of this host. */
 	private InetAddress myIpAddress = null;
 
+	/**
+	 * The reactor that receives packets for sessions created by this manager,
+	 * or null if each session runs its own RtpPacketReceiver thread.
+	 */
+	private RtpReactor reactor = null;
+
 	/***************************************************************************
 	 * Constructors
 	 **************************************************************************/
@@ -70,6 +76,27 @@ public class RtpManager {
 
 	}
 
+	/**
+	 * Construct a RTP manager in reactor mode. Every session it creates binds
+	 * a non-blocking DatagramChannel that is served by the given reactor, so
+	 * the number of receive threads depends on the reactor, not on the number
+	 * of sessions. Pass <tt>RtpReactor.getDefault()</tt> to share one reactor
+	 * across the whole process.
+	 * 
+	 * @param ipAddress
+	 *            the user-defined IP address for this host
+	 * @param reactor
+	 *            the reactor that will receive packets for all sessions
+	 * @throws UnknownHostException
+	 */
+	public RtpManager(String ipAddress, RtpReactor reactor)
+			throws UnknownHostException {
+
+		this(ipAddress);
+		this.reactor = reactor;
+
+	}
+
 	/***************************************************************************
 	 * Methods
 	 **************************************************************************/
@@ -81,6 +108,10 @@ public class RtpManager {
 			String remoteIpAddress, int remoteRtpRecvPort)
 			throws SocketException, IOException {
 
+		if (reactor != null)
+			return new RtpSession(this.myIpAddress, myRtpRecvPort,
+					remoteIpAddress, remoteRtpRecvPort, reactor);
+
 		return new RtpSession(this.myIpAddress, myRtpRecvPort, remoteIpAddress,
 				remoteRtpRecvPort);
 
@@ -96,10 +127,36 @@ public class RtpManager {
 	public RtpSession createRtpSession(int myRtpRecvPort)
 			throws SocketException {
 
+		// A 0 port has no receive socket, so there is nothing for the
+		// reactor to serve
+		if (reactor != null && myRtpRecvPort != 0) {
+			try {
+				return new RtpSession(this.myIpAddress, myRtpRecvPort, "", -1,
+						reactor);
+			} catch (SocketException se) {
+				throw se;
+			} catch (IOException ioe) {
+				SocketException se = new SocketException(ioe.getMessage());
+				se.initCause(ioe);
+				throw se;
+			}
+		}
+
 		return new RtpSession(this.myIpAddress, myRtpRecvPort);
 
 	}
 
+	/**
+	 * Get the reactor serving sessions created by this manager.
+	 * 
+	 * @return the reactor, or null if sessions use their own receive threads
+	 */
+	public RtpReactor getReactor() {
+
+		return this.reactor;
+
+	}
+
 	/**
 	 * Get my IP address.
 	 * 
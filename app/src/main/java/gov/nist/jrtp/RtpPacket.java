@@ -21,6 +21,8 @@
 package gov.nist.jrtp;
 
 import java.io.Serializable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import gov.nist.util.ByteUtil;
 
 /**
@@ -222,70 +224,118 @@ public class RtpPacket implements Serializable {
 	 */
 	public byte[] getData() {
 
-		/* Since V..SN are 32 bits, create a (int) byte array for V..SN. */
-		int V_SN = 0;
-		V_SN |= V; // Add V
-		V_SN <<= 0x01; // Make room for P
-		V_SN |= P; // Add P
-		V_SN <<= 0x01; // Make room for X
-		V_SN |= X; // Add X
-		V_SN <<= 0x04; // Make room for CC
-		V_SN |= CC; // Add CC
-		V_SN <<= 0x01; // Make room for M
-		V_SN |= M; // Add M
-		V_SN <<= 0x07; // Make room for PT
-		V_SN |= PT; // Add PT
-		V_SN <<= 0x10; // Make room for SN
-		V_SN |= SN; // Add SN
-		byte[] V_SN_bytes = ByteUtil.intToBytes(V_SN);
+		byte[] data = new byte[getLength()];
+		writeTo(data, 0);
 
-		/*
-		 * Create a byte array for TS. Cast from long to int (we won't lose
-		 * precision because there are never more than 4 bytes of data).
-		 */
-		byte[] TS_bytes = ByteUtil.intToBytes((int) TS);
+//		System.out.println("[RTPPacket] Packed: " + ByteUtil.writeBytes(data));
+
+		return data;
+
+	}
+
+	/**
+	 * Get the number of bytes this RTP packet occupies when serialized.
+	 * 
+	 * @return The header length plus the payload length.
+	 */
+	public int getLength() {
+
+		return FIXED_HEADER_LENGTH + payloadLength;
+
+	}
+
+	/**
+	 * Serialize this RTP packet into a caller-supplied byte array. Unlike
+	 * getData(), this does not allocate, so a sender can reuse one buffer
+	 * for every packet.
+	 * 
+	 * @param buffer
+	 *            The byte array to write into.
+	 * @param offset
+	 *            The index of the first byte to write.
+	 * @return The number of bytes written.
+	 * @throws IllegalArgumentException
+	 *             if the buffer is too small to hold this packet.
+	 */
+	public int writeTo(byte[] buffer, int offset)
+			throws IllegalArgumentException {
+
+		int length = getLength();
+		if (offset < 0 || buffer.length - offset < length)
+			throw new IllegalArgumentException(
+					"Buffer too small for RTP packet of " + length + " bytes");
+
+		/* V..SN are 32 bits. */
+		buffer[offset] = (byte) ((V << 6) | (P << 5) | (X << 4) | CC);
+		buffer[offset + 1] = (byte) ((M << 7) | PT);
+		buffer[offset + 2] = (byte) (SN >>> 8);
+		buffer[offset + 3] = (byte) SN;
 
 		/*
-		 * Create a byte array for SSRC. Cast from long to int (we won't lose
-		 * precision because there are never more than 4 bytes of data).
+		 * TS and SSRC are written as 32 bits (we won't lose precision because
+		 * there are never more than 4 bytes of data).
 		 */
-		byte[] SSRC_bytes = ByteUtil.intToBytes((int) SSRC);
+		writeInt(buffer, offset + 4, (int) TS);
+		writeInt(buffer, offset + 8, (int) SSRC);
 
-		/* Create byte array for all data. */
-		int length = V_SN_bytes.length + TS_bytes.length + SSRC_bytes.length
-				+ payloadLength;
+		if (payloadLength > 0)
+			System.arraycopy(payload, 0, buffer, offset + FIXED_HEADER_LENGTH,
+					payloadLength);
 
-		byte[] data = new byte[length];
+		return length;
 
-		int offset = 0;
-		System.arraycopy(V_SN_bytes, 0, data, offset, V_SN_bytes.length);
+	}
 
-		offset += V_SN_bytes.length;
-		System.arraycopy(TS_bytes, 0, data, offset, TS_bytes.length);
+	/**
+	 * Serialize this RTP packet into a byte buffer at its current position.
+	 * The position is advanced past the packet.
+	 * 
+	 * @param byteBuffer
+	 *            The buffer to write into.
+	 * @return The number of bytes written.
+	 * @throws java.nio.BufferOverflowException
+	 *             if the buffer does not have enough space remaining.
+	 */
+	public int writeTo(ByteBuffer byteBuffer) {
 
-		offset += TS_bytes.length;
-		System.arraycopy(SSRC_bytes, 0, data, offset, SSRC_bytes.length);
+		int length = getLength();
+		if (byteBuffer.remaining() < length)
+			throw new BufferOverflowException();
 
-		offset += SSRC_bytes.length;
+		if (byteBuffer.hasArray()) {
 
-		System.arraycopy(payload, 0, data, offset, payloadLength);
+			writeTo(byteBuffer.array(), byteBuffer.arrayOffset()
+					+ byteBuffer.position());
+			byteBuffer.position(byteBuffer.position() + length);
 
-//		System.out.println("[RTPPacket] Packing V: " + V);
-//		System.out.println("[RTPPacket] Packing P: " + P);
-//		System.out.println("[RTPPacket] Packing X: " + X);
-//		System.out.println("[RTPPacket] Packing CC: " + CC);
-//		System.out.println("[RTPPacket] Packing M: " + M);
-//		System.out.println("[RTPPacket] Packing PT: " + PT);
-//		System.out.println("[RTPPacket] Packing SN: " + SN);
-//		System.out.println("[RTPPacket] Packing TS: " + TS);
-//		System.out.println("[RTPPacket] Packing SSRC: " + SSRC);
-//		System.out.println("[RTPPacket] Packing payload: "
-//					+ ByteUtil.writeBytes(payload));
-//
-//		System.out.println("[RTPPacket] Packed: " + ByteUtil.writeBytes(data));
+		} else {
 
+			byteBuffer.put((byte) ((V << 6) | (P << 5) | (X << 4) | CC));
+			byteBuffer.put((byte) ((M << 7) | PT));
+			// Byte at a time so the buffer's byte order does not matter
+			byteBuffer.put((byte) (SN >>> 8)).put((byte) SN);
+			byteBuffer.put((byte) (TS >>> 24)).put((byte) (TS >>> 16))
+					.put((byte) (TS >>> 8)).put((byte) TS);
+			byteBuffer.put((byte) (SSRC >>> 24)).put((byte) (SSRC >>> 16))
+					.put((byte) (SSRC >>> 8)).put((byte) SSRC);
+			if (payloadLength > 0)
+				byteBuffer.put(payload, 0, payloadLength);
 
-		return data;
+		}
+
+		return length;
+
+	}
+
+	/**
+	 * Write a 32-bit value in network byte order.
+	 */
+	private static void writeInt(byte[] buffer, int offset, int value) {
+
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
 
 	}
 
@@ -21,6 +21,7 @@
 package gov.nist.jrtp;
 
 import gov.nist.jrtp.RtpPacket;
+import gov.nist.util.Trace;
 import java.io.*;
 import java.net.*;
 
@@ -56,8 +57,8 @@ public class RtpPacketReceiver extends Thread {
 	/** The calling RTP session. */
 	private RtpSession rtpSession = null;
 
-	/** Logs sequence number of last packet received. */
-	private int lastRtpPacketSequenceNumber = 0;
+	/** Releases received packets to listeners in sequence order. */
+	private RtpReorderBuffer reorderBuffer = null;
 	
 	/** Check receive rate. */
 	private long receiveTime = 0;
@@ -80,6 +81,7 @@ public class RtpPacketReceiver extends Thread {
 
 		this.rtpSession = rtpSession;
 		this.receiveSocket = rtpSession.getRtpRecvSocket();
+		this.reorderBuffer = new RtpReorderBuffer(rtpSession);
 
 	}
 
@@ -109,11 +111,30 @@ public class RtpPacketReceiver extends Thread {
 			byte[] buffer = new byte[bufferSize];
 			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
 			int packet_count = 0;
+			int soTimeout = TTL;
 			
 			for (;;) {
 
+				// While packets are held waiting for a missing one, wake up
+				// in time to give up on it
+				long deadline = reorderBuffer.getDeadline();
+				int timeout = TTL;
+				if (deadline > 0)
+					timeout = (int) Math.max(1, deadline - System.currentTimeMillis());
+				if (timeout != soTimeout) {
+					receiveSocket.setSoTimeout(timeout);
+					soTimeout = timeout;
+				}
+
 				// Receive the UDP packet
-				receiveSocket.receive(packet);
+				try {
+					receiveSocket.receive(packet);
+				} catch (SocketTimeoutException ste) {
+					if (deadline == 0)
+						throw ste;
+					reorderBuffer.expire(System.currentTimeMillis());
+					continue;
+				}
 
 				lastReceiveTime = receiveTime;
 				receiveTime = System.currentTimeMillis();
@@ -133,28 +154,13 @@ public class RtpPacketReceiver extends Thread {
 				// packetData.length!
 				int packetSize = packet.getLength();
 
-				RtpPacket rtpPacket = new RtpPacket(packetData, packetSize);
-				// rtpPacket.set();
-
-				// Only process RTP packets in sequence. Otherwise, discard
-				int rtpPacketSN = rtpPacket.getSN();
-								
-				if (rtpPacketSN > lastRtpPacketSequenceNumber) {
-
-					lastRtpPacketSequenceNumber = rtpPacketSN;
+				// RTCP multiplexed onto this port bypasses the reorder buffer
+				if (rtpSession.demultiplexRtcp(packetData, 0, packetSize))
+					continue;
 
-					// Send event to listeners
-					RtpPacketEvent rtpEvent = new RtpPacketEvent(rtpSession,
-							rtpPacket, "Received RTP packet");
-
-					for (RtpListener listener : rtpSession.listeners)
-						listener.handleRtpPacketEvent((RtpPacketEvent) rtpEvent);
-
-				} else {
-
-					// Silently discard
-
-				}
+				// Reorder and send events to listeners. Duplicates are
+				// discarded without being copied.
+				reorderBuffer.offer(packetData, 0, packetSize, receiveTime);
 
 			}
 
@@ -175,7 +181,8 @@ public class RtpPacketReceiver extends Thread {
 		} finally {
 
 			// This is invoked when an interrupt is called on this thread.
-			System.out.println("RtpPacketReceiver shutting down.");
+			Trace.event(Trace.INFO, Trace.RECEIVER_SHUT_DOWN,
+					rtpSession.getMyRtpRecvPort(), 0);
 
 
 			if (receiveSocket != null) {
@@ -133,6 +133,48 @@ public class RtpPacketTest extends TestCase {
 
 	}
 
+	/**
+	 * Test reading an RTP packet in place with a flyweight view.
+	 */
+	public void testPacketView() {
+
+		RtpPacket rtpPacket = new RtpPacket();
+		rtpPacket.setV(2);
+		rtpPacket.setM(1);
+		rtpPacket.setPT(ByteUtil.getMaxIntValueForNumBits(7));
+		int SN = rtpPacket.getSN();
+		rtpPacket.setTS(ByteUtil.getMaxLongValueForNumBits(32));
+		rtpPacket.setSSRC(ByteUtil.getMaxLongValueForNumBits(32) - 1);
+		byte[] testPayload = "This is some payload".getBytes();
+		rtpPacket.setPayload(testPayload, testPayload.length);
+
+		// Place the packet in the middle of a larger, reused buffer
+		byte[] encodedPacket = rtpPacket.getData();
+		byte[] buffer = new byte[encodedPacket.length + 10];
+		System.arraycopy(encodedPacket, 0, buffer, 5, encodedPacket.length);
+
+		RtpPacketView view = new RtpPacketView().wrap(buffer, 5,
+				encodedPacket.length);
+
+		assertTrue(view.getV() == 2);
+		assertTrue(view.getP() == 0);
+		assertTrue(view.getX() == 0);
+		assertTrue(view.getCC() == 0);
+		assertTrue(view.getM() == 1);
+		assertTrue(view.getPT() == ByteUtil.getMaxIntValueForNumBits(7));
+		assertTrue(view.getSN() == SN);
+		assertTrue(view.getTS() == ByteUtil.getMaxLongValueForNumBits(32));
+		assertTrue(view.getSSRC() == ByteUtil.getMaxLongValueForNumBits(32) - 1);
+		assertTrue(view.getPayloadOffset() == 5 + RtpPacket.FIXED_HEADER_LENGTH);
+		assertTrue(view.getPayloadLength() == testPayload.length);
+		assertTrue(view.getBuffer() == buffer);
+
+		RtpPacket copy = view.toRtpPacket();
+		assertTrue(copy.getSN() == SN);
+		assertTrue(new String(copy.getPayload()).equals("This is some payload"));
+
+	}
+
 	/**
 	 * Test packing and unpacking an RTP packet with out of range values.
 	 */
@@ -0,0 +1,327 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * The NIST RTP stack is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ * .
+ */
+package gov.nist.jrtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class implements a flyweight, read-only view of an RTP packet that
+ * lives in a caller-owned byte array. Unlike the copying
+ * <tt>RtpPacket(byte[], int)</tt> constructor, wrapping a region does not
+ * allocate: header fields are decoded on demand with shifts and the payload
+ * is exposed as an offset/length slice of the underlying array.
+ * <p>
+ * A single view is meant to be reused for every datagram received into the
+ * same buffer. The view is only valid until the buffer is overwritten, so
+ * callers that need to keep a packet must call <tt>toRtpPacket()</tt>.
+ * <p>
+ * CSRC identifiers and the header extension, if present, are skipped when
+ * locating the payload, and trailing padding is excluded from the payload
+ * length.
+ *
+ * @see RtpPacket
+ */
+public class RtpPacketView {
+
+	/***************************************************************************
+	 * Variables
+	 **************************************************************************/
+
+	/** The array holding the packet. */
+	private byte[] buffer = null;
+
+	/** The offset of the first byte of the RTP header in the array. */
+	private int offset = 0;
+
+	/** The number of bytes of the packet in the array. */
+	private int length = 0;
+
+	/***************************************************************************
+	 * Constructor
+	 **************************************************************************/
+
+	/**
+	 * Construct an empty RTP packet view. Call one of the <tt>wrap</tt>
+	 * methods before reading any field.
+	 */
+	public RtpPacketView() {
+
+	}
+
+	/***************************************************************************
+	 * Methods
+	 **************************************************************************/
+
+	/**
+	 * Point this view at a region of a byte array.
+	 *
+	 * @param bytes
+	 *            The array holding the packet.
+	 * @param offset
+	 *            The offset of the RTP header in the array.
+	 * @param length
+	 *            The number of packet bytes in the array.
+	 * @return this view.
+	 * @throws IllegalArgumentException
+	 *             if the region is too short to hold an RTP header.
+	 */
+	public RtpPacketView wrap(byte[] bytes, int offset, int length)
+			throws IllegalArgumentException {
+
+		if (length < RtpPacket.FIXED_HEADER_LENGTH
+				|| offset < 0 || offset + length > bytes.length)
+			throw new IllegalArgumentException(RtpException.OUT_OF_RANGE);
+
+		this.buffer = bytes;
+		this.offset = offset;
+		this.length = length;
+		return this;
+
+	}
+
+	/**
+	 * Point this view at the remaining bytes of a heap byte buffer. The
+	 * buffer's position and limit are not modified.
+	 *
+	 * @param byteBuffer
+	 *            The buffer holding the packet between its position and limit.
+	 * @return this view.
+	 * @throws IllegalArgumentException
+	 *             if the buffer is not array-backed or is too short.
+	 */
+	public RtpPacketView wrap(ByteBuffer byteBuffer)
+			throws IllegalArgumentException {
+
+		if (!byteBuffer.hasArray())
+			throw new IllegalArgumentException(
+					"Only array-backed buffers can be wrapped");
+
+		return wrap(byteBuffer.array(), byteBuffer.arrayOffset()
+				+ byteBuffer.position(), byteBuffer.remaining());
+
+	}
+
+	/**
+	 * Get the version (2 bits).
+	 *
+	 * @return the version.
+	 */
+	public int getV() {
+
+		return (buffer[offset] >>> 6) & 0x03;
+
+	}
+
+	/**
+	 * Get the padding bit.
+	 *
+	 * @return the padding bit.
+	 */
+	public int getP() {
+
+		return (buffer[offset] >>> 5) & 0x01;
+
+	}
+
+	/**
+	 * Get the extension bit.
+	 *
+	 * @return the extension bit.
+	 */
+	public int getX() {
+
+		return (buffer[offset] >>> 4) & 0x01;
+
+	}
+
+	/**
+	 * Get the CSRC count.
+	 *
+	 * @return the CSRC count.
+	 */
+	public int getCC() {
+
+		return buffer[offset] & 0x0F;
+
+	}
+
+	/**
+	 * Get the marker.
+	 *
+	 * @return the marker.
+	 */
+	public int getM() {
+
+		return (buffer[offset + 1] >>> 7) & 0x01;
+
+	}
+
+	/**
+	 * Get the payload type.
+	 *
+	 * @return the payload type.
+	 */
+	public int getPT() {
+
+		return buffer[offset + 1] & 0x7F;
+
+	}
+
+	/**
+	 * Get the sequence number.
+	 *
+	 * @return the sequence number.
+	 */
+	public int getSN() {
+
+		return ((buffer[offset + 2] & 0xFF) << 8)
+				| (buffer[offset + 3] & 0xFF);
+
+	}
+
+	/**
+	 * Get the time stamp.
+	 *
+	 * @return the time stamp.
+	 */
+	public long getTS() {
+
+		return readUnsignedInt(offset + 4);
+
+	}
+
+	/**
+	 * Get the synchronization source identifier.
+	 *
+	 * @return the synchronization source identifier.
+	 */
+	public long getSSRC() {
+
+		return readUnsignedInt(offset + 8);
+
+	}
+
+	/**
+	 * Get the array this view reads from.
+	 *
+	 * @return the underlying array.
+	 */
+	public byte[] getBuffer() {
+
+		return buffer;
+
+	}
+
+	/**
+	 * Get the offset of the payload in the underlying array.
+	 *
+	 * @return the payload offset.
+	 */
+	public int getPayloadOffset() {
+
+		int headerLength = RtpPacket.FIXED_HEADER_LENGTH + 4 * getCC();
+
+		if (getX() == 1 && headerLength + 4 <= length) {
+			// Extension header: 16 bits profile, 16 bits length in words
+			int words = ((buffer[offset + headerLength + 2] & 0xFF) << 8)
+					| (buffer[offset + headerLength + 3] & 0xFF);
+			headerLength += 4 + 4 * words;
+		}
+
+		return offset + Math.min(headerLength, length);
+
+	}
+
+	/**
+	 * Get the payload length, excluding any padding.
+	 *
+	 * @return the payload length.
+	 */
+	public int getPayloadLength() {
+
+		int payloadLength = offset + length - getPayloadOffset();
+
+		if (getP() == 1 && payloadLength > 0)
+			payloadLength -= buffer[offset + length - 1] & 0xFF;
+
+		return Math.max(payloadLength, 0);
+
+	}
+
+	/**
+	 * Copy this view into a new RTP packet, for callers that need to keep
+	 * the packet after the underlying buffer is reused. Since
+	 * <tt>RtpPacket</tt> does not support CSRCs or header extensions, the
+	 * copy has CC and X cleared and carries only the payload.
+	 *
+	 * @return a new RTP packet holding a copy of the payload.
+	 */
+	public RtpPacket toRtpPacket() {
+
+		RtpPacket rtpPacket = new RtpPacket();
+		rtpPacket.setV(getV());
+		rtpPacket.setM(getM());
+		rtpPacket.setPT(getPT());
+		rtpPacket.setSN(getSN());
+		rtpPacket.setTS(getTS());
+		rtpPacket.setSSRC(getSSRC());
+
+		int payloadLength = getPayloadLength();
+		byte[] payload = new byte[payloadLength];
+		System.arraycopy(buffer, getPayloadOffset(), payload, 0, payloadLength);
+		rtpPacket.setPayload(payload, payloadLength);
+
+		return rtpPacket;
+
+	}
+
+	/**
+	 * Read a 32-bit big-endian unsigned value from the underlying array.
+	 */
+	private long readUnsignedInt(int index) {
+
+		return (((long) (buffer[index] & 0xFF)) << 24)
+				| ((buffer[index + 1] & 0xFF) << 16)
+				| ((buffer[index + 2] & 0xFF) << 8)
+				| (buffer[index + 3] & 0xFF);
+
+	}
+
+	/**
+	 * Get the XML formatted string representation.
+	 *
+	 * @return the XML formatted string representation.
+	 */
+	public String toString() {
+
+		StringBuffer sb = new StringBuffer();
+		sb.append("<rtp-header").append("\nversion = \"" + getV() + "\"")
+				.append("\nheaderExtension \"" + getX() + "\"")
+				.append("\nmarker = \"" + getM() + "\"")
+				.append("\npayloadType =\"" + getPT() + "\"")
+				.append("\nSequenceNumber =\"" + getSN() + "\"")
+				.append("\nimeStamp = \"" + getTS() + "\"")
+				.append("\nSSRC= \"" + getSSRC() + "\"").append("\n/>");
+		return sb.toString();
+
+	}
+
+}
@@ -0,0 +1,416 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * The NIST RTP stack is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ * .
+ */
+package gov.nist.jrtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import gov.nist.util.Trace;
+
+/**
+ * This class implements a multiplexed RTP receiver. Instead of one blocking
+ * <tt>RtpPacketReceiver</tt> thread per session, a reactor serves the
+ * non-blocking <tt>DatagramChannel</tt>s of any number of sessions from a
+ * small, fixed set of <tt>Selector</tt> threads. Each session is pinned to
+ * one selector thread, so its listeners always see packets in the order they
+ * were read.
+ * <p>
+ * Received packets pass through the same reorder window as with
+ * <tt>RtpPacketReceiver</tt> and are delivered through the usual
+ * <tt>RtpListener</tt> contract on the selector thread. Listeners must
+ * therefore return quickly and never block, or they will delay every other
+ * session on that thread.
+ *
+ * @see RtpManager#RtpManager(String, RtpReactor)
+ */
+public class RtpReactor {
+
+	/***************************************************************************
+	 * Constants
+	 **************************************************************************/
+
+	/** The receive buffer size, large enough for any UDP datagram. */
+	private static final int RECEIVE_BUFFER_SIZE = RtpPacket.FIXED_HEADER_LENGTH
+			+ RtpPacket.MAX_PAYLOAD_BUFFER_SIZE;
+
+	/***************************************************************************
+	 * Variables
+	 **************************************************************************/
+
+	/** The process-wide reactor, created on first use. */
+	private static RtpReactor defaultReactor = null;
+
+	/** The selector threads. */
+	private final SelectorThread[] selectorThreads;
+
+	/** Round-robin counter for assigning sessions to selector threads. */
+	private final AtomicInteger nextThread = new AtomicInteger();
+
+	/***************************************************************************
+	 * Constructors
+	 **************************************************************************/
+
+	/**
+	 * Construct a reactor with one selector thread per available processor.
+	 *
+	 * @throws IOException
+	 *             if a selector cannot be opened.
+	 */
+	public RtpReactor() throws IOException {
+
+		this(Runtime.getRuntime().availableProcessors());
+
+	}
+
+	/**
+	 * Construct a reactor with the given number of selector threads.
+	 *
+	 * @param threadCount
+	 *            The number of selector threads, at least 1.
+	 * @throws IOException
+	 *             if a selector cannot be opened.
+	 */
+	public RtpReactor(int threadCount) throws IOException {
+
+		if (threadCount < 1)
+			throw new IllegalArgumentException(RtpException.OUT_OF_RANGE);
+
+		selectorThreads = new SelectorThread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			selectorThreads[i] = new SelectorThread(Selector.open(),
+					"RtpReactor-" + i);
+			selectorThreads[i].start();
+		}
+
+	}
+
+	/***************************************************************************
+	 * Methods
+	 **************************************************************************/
+
+	/**
+	 * Get the process-wide reactor, creating it on first use. Its threads are
+	 * daemons, so it does not need to be shut down explicitly.
+	 *
+	 * @return the shared reactor.
+	 * @throws IOException
+	 *             if a selector cannot be opened.
+	 */
+	public static synchronized RtpReactor getDefault() throws IOException {
+
+		if (defaultReactor == null)
+			defaultReactor = new RtpReactor();
+		return defaultReactor;
+
+	}
+
+	/**
+	 * Get the number of selector threads.
+	 *
+	 * @return the number of selector threads.
+	 */
+	public int getThreadCount() {
+
+		return selectorThreads.length;
+
+	}
+
+	/**
+	 * Start delivering packets received on a session's channel to its
+	 * listeners. Called by <tt>RtpSession.receiveRTPPackets()</tt>.
+	 *
+	 * @param rtpSession
+	 *            The session, which must own a non-blocking channel.
+	 */
+	void register(RtpSession rtpSession) {
+
+		int index = (nextThread.getAndIncrement() & Integer.MAX_VALUE)
+				% selectorThreads.length;
+		selectorThreads[index].register(rtpSession);
+
+	}
+
+	/**
+	 * Stop delivering packets for a session. Closing the session's channel
+	 * has the same effect; this only detaches it from its selector.
+	 *
+	 * @param channel
+	 *            The session's channel.
+	 */
+	void deregister(DatagramChannel channel) {
+
+		for (SelectorThread selectorThread : selectorThreads) {
+			SelectionKey key = channel.keyFor(selectorThread.selector);
+			if (key != null) {
+				key.cancel();
+				selectorThread.selector.wakeup();
+			}
+		}
+
+	}
+
+	/**
+	 * Stop all selector threads. Sessions registered with this reactor stop
+	 * receiving packets but are not closed.
+	 */
+	public void shutDown() {
+
+		for (SelectorThread selectorThread : selectorThreads)
+			selectorThread.shutDown();
+
+		synchronized (RtpReactor.class) {
+			if (defaultReactor == this)
+				defaultReactor = null;
+		}
+
+	}
+
+	/**
+	 * A thread that owns one selector and the receive state of every session
+	 * registered with it.
+	 */
+	private static class SelectorThread extends Thread {
+
+		/** The selector. */
+		private final Selector selector;
+
+		/** Sessions waiting to be registered on the selector thread. */
+		private final ConcurrentLinkedQueue<RtpSession> pending = new ConcurrentLinkedQueue<RtpSession>();
+
+		/** The receive buffer shared by all sessions on this thread. */
+		private final ByteBuffer buffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+
+		/** Registrations holding packets that wait for a missing one. */
+		private final ArrayList<Registration> holding = new ArrayList<Registration>();
+
+		/** Set when the reactor is shut down. */
+		private volatile boolean stopped = false;
+
+		SelectorThread(Selector selector, String name) {
+
+			super(name);
+			this.selector = selector;
+			setDaemon(true);
+
+		}
+
+		void register(RtpSession rtpSession) {
+
+			pending.add(rtpSession);
+			selector.wakeup();
+
+		}
+
+		void shutDown() {
+
+			stopped = true;
+			selector.wakeup();
+
+		}
+
+		public void run() {
+
+			try {
+
+				while (!stopped) {
+
+					long timeout = expireHeldPackets();
+					if (timeout > 0)
+						selector.select(timeout);
+					else
+						selector.select();
+
+					RtpSession rtpSession;
+					while ((rtpSession = pending.poll()) != null)
+						attach(rtpSession);
+
+					Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (key.isValid() && key.isReadable()) {
+							Registration registration = (Registration) key
+									.attachment();
+							read(key);
+							if (!registration.isHolding
+									&& registration.reorderBuffer.getDeadline() > 0) {
+								registration.isHolding = true;
+								holding.add(registration);
+							}
+						}
+					}
+
+				}
+
+			} catch (IOException ioe) {
+
+				Trace.event(Trace.ERROR, Trace.SELECTOR_FAILED, getId(), 0);
+
+			} catch (ClosedSelectorException cse) {
+
+				// Shut down
+
+			} finally {
+
+				try {
+					selector.close();
+				} catch (IOException ioe) {
+					// Ignore
+				}
+
+			}
+
+		}
+
+		/**
+		 * Give up on gaps that have been waited on for too long.
+		 *
+		 * @return the time until the next gap must be given up on, or 0 if
+		 *         no packets are held.
+		 */
+		private long expireHeldPackets() {
+
+			if (holding.isEmpty())
+				return 0;
+
+			long now = System.currentTimeMillis();
+			long timeout = Long.MAX_VALUE;
+
+			for (int i = holding.size() - 1; i >= 0; i--) {
+				Registration registration = holding.get(i);
+				try {
+					registration.reorderBuffer.expire(now);
+				} catch (RuntimeException re) {
+					// One session's listener must not stop the others
+					Trace.event(Trace.ERROR, Trace.CALLOUT_FAILED, getId(), 0);
+				}
+				long deadline = registration.reorderBuffer.getDeadline();
+				if (deadline == 0) {
+					registration.isHolding = false;
+					holding.remove(i);
+				} else
+					timeout = Math.min(timeout, Math.max(deadline - now, 1));
+			}
+
+			return holding.isEmpty() ? 0 : timeout;
+
+		}
+
+		/**
+		 * Register a session's channel on this thread's selector.
+		 */
+		private void attach(RtpSession rtpSession) {
+
+			DatagramChannel channel = rtpSession.getRtpRecvChannel();
+			if (channel == null || !channel.isOpen())
+				return;
+
+			try {
+				channel.register(selector, SelectionKey.OP_READ,
+						new Registration(rtpSession));
+			} catch (ClosedChannelException cce) {
+				// Session was shut down before it could be registered
+			}
+
+		}
+
+		/**
+		 * Drain every datagram waiting on a ready channel.
+		 */
+		private void read(SelectionKey key) {
+
+			DatagramChannel channel = (DatagramChannel) key.channel();
+			Registration registration = (Registration) key.attachment();
+
+			try {
+
+				for (;;) {
+					buffer.clear();
+					if (channel.receive(buffer) == null)
+						break; // Nothing more to read
+					buffer.flip();
+					try {
+						if (registration.rtpSession.demultiplexRtcp(
+								buffer.array(), 0, buffer.limit()))
+							continue;
+						registration.reorderBuffer.offer(buffer.array(), 0,
+								buffer.limit(), System.currentTimeMillis());
+					} catch (RuntimeException re) {
+						// One session's listener must not stop the others
+						Trace.event(Trace.ERROR, Trace.CALLOUT_FAILED, getId(),
+								0);
+					}
+				}
+
+			} catch (IOException ioe) {
+
+				key.cancel();
+				RtpErrorEvent rtpEvent = new RtpErrorEvent(
+						registration.rtpSession, ioe);
+				for (RtpListener listener : registration.rtpSession.listeners) {
+					try {
+						listener.handleRtpErrorEvent(rtpEvent);
+					} catch (RuntimeException re) {
+						Trace.event(Trace.ERROR, Trace.CALLOUT_FAILED, getId(),
+								0);
+					}
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * The receive state of one session, attached to its selection key.
+	 */
+	private static class Registration {
+
+		/** The session. */
+		final RtpSession rtpSession;
+
+		/** Releases received packets to listeners in sequence order. */
+		final RtpReorderBuffer reorderBuffer;
+
+		/** Whether this registration is in its thread's holding list. */
+		boolean isHolding = false;
+
+		Registration(RtpSession rtpSession) {
+
+			this.rtpSession = rtpSession;
+			this.reorderBuffer = new RtpReorderBuffer(rtpSession);
+
+		}
+
+	}
+
+}
@@ -0,0 +1,471 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * The NIST RTP stack is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ * .
+ */
+package gov.nist.jrtp;
+
+/**
+ * This class implements a fixed-size reorder window for received RTP packets.
+ * Sequence numbers are extended to 64 bits so that 16-bit wraparound is
+ * transparent, and validated along the lines of <a
+ * href="http://www.ietf.org/rfc/rfc3550.txt">IETF RFC 3550</a> appendix A.1:
+ * small forward gaps and small backward steps are accepted, duplicates are
+ * dropped, and a very large jump is only believed once it is confirmed by the
+ * next packet in sequence (as happens when the sender restarts). The first
+ * packet after the jump is held until then, and released first.
+ * <p>
+ * Each SSRC has a window of its own, so a sender that restarts with a new
+ * SSRC, or a second sender on the same session, starts a new sequence instead
+ * of being taken for a jump or for duplicates of the first one. Up to
+ * MAX_SOURCES windows are kept; when another SSRC arrives, the window that
+ * has been quiet the longest releases what it holds and is reused.
+ * <p>
+ * Packets are released to the session's listeners in sequence order. A packet
+ * that arrives ahead of a gap is held until the gap fills, the window fills
+ * up, or the packet has been held for the session's reorder hold time,
+ * whichever comes first. A packet that arrives after its gap was given up on
+ * is still released, immediately, since consumers such as the text
+ * depacketizer can still use it.
+ * <p>
+ * This class is not thread safe; each instance is owned by the single thread
+ * that receives for its session.
+ */
+class RtpReorderBuffer {
+
+	/***************************************************************************
+	 * Constants
+	 **************************************************************************/
+
+	/** The number of packets the window spans. Must be a power of 2. */
+	static final int WINDOW_SIZE = 64;
+
+	/** The most SSRCs that have a window at the same time. */
+	static final int MAX_SOURCES = 4;
+
+	/** Mask for mapping an extended sequence number to a slot. */
+	private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+	/***************************************************************************
+	 * Variables
+	 **************************************************************************/
+
+	/** The session whose listeners receive released packets. */
+	private final RtpSession rtpSession;
+
+	/** Reused to read the header before copying a packet. */
+	private final RtpPacketView view = new RtpPacketView();
+
+	/** The windows in use, the first sourceCount of them. */
+	private final Window[] windows = new Window[MAX_SOURCES];
+
+	/** The number of windows in use. */
+	private int sourceCount = 0;
+
+	/** The window the last packet went to, tried first. */
+	private Window lastWindow = null;
+
+	/***************************************************************************
+	 * Constructors
+	 **************************************************************************/
+
+	/**
+	 * Construct a reorder buffer.
+	 *
+	 * @param rtpSession
+	 *            The session whose listeners receive released packets.
+	 */
+	RtpReorderBuffer(RtpSession rtpSession) {
+
+		this.rtpSession = rtpSession;
+
+	}
+
+	/***************************************************************************
+	 * Methods
+	 **************************************************************************/
+
+	/**
+	 * Offer a received datagram. The datagram is only copied if it is
+	 * released or held; duplicates and invalid packets cost nothing.
+	 *
+	 * @param data
+	 *            The receive buffer, which may be reused once this returns.
+	 * @param offset
+	 *            The offset of the RTP header in the buffer.
+	 * @param length
+	 *            The datagram length.
+	 * @param now
+	 *            The current time in milliseconds.
+	 */
+	void offer(byte[] data, int offset, int length, long now) {
+
+		if (length < RtpPacket.FIXED_HEADER_LENGTH)
+			return; // Runt datagram, not RTP
+
+		view.wrap(data, offset, length);
+		Window window = getWindow(view.getSSRC(), now);
+		window.lastReceiveTime = now;
+		window.offer(data, offset, length, view.getSN(), now);
+
+	}
+
+	/**
+	 * Release held packets whose gap has been waited on for longer than the
+	 * session's reorder hold time.
+	 *
+	 * @param now
+	 *            The current time in milliseconds.
+	 */
+	void expire(long now) {
+
+		for (int i = 0; i < sourceCount; i++)
+			windows[i].expire(now);
+
+	}
+
+	/**
+	 * Get the time at which held packets must next be checked with expire().
+	 *
+	 * @return The deadline in milliseconds, or 0 if nothing is held.
+	 */
+	long getDeadline() {
+
+		long deadline = 0;
+		for (int i = 0; i < sourceCount; i++) {
+			long windowDeadline = windows[i].getDeadline();
+			if (windowDeadline > 0
+					&& (deadline == 0 || windowDeadline < deadline))
+				deadline = windowDeadline;
+		}
+		return deadline;
+
+	}
+
+	/**
+	 * Find the window of an SSRC, starting one if it has none.
+	 */
+	private Window getWindow(long ssrc, long now) {
+
+		if (lastWindow != null && lastWindow.ssrc == ssrc)
+			return lastWindow;
+
+		Window window = null;
+		for (int i = 0; i < sourceCount; i++) {
+			if (windows[i].ssrc == ssrc) {
+				window = windows[i];
+				break;
+			}
+		}
+
+		if (window == null) {
+			if (sourceCount < MAX_SOURCES) {
+				window = new Window();
+				windows[sourceCount++] = window;
+			} else {
+				// Reuse the quietest window, once it has let go of its packets
+				window = windows[0];
+				for (int i = 1; i < sourceCount; i++)
+					if (windows[i].lastReceiveTime < window.lastReceiveTime)
+						window = windows[i];
+				window.flush();
+			}
+			window.start(ssrc);
+		}
+
+		lastWindow = window;
+		return window;
+
+	}
+
+	/**
+	 * Copy a datagram out of the receive buffer.
+	 */
+	private static RtpPacket copy(byte[] data, int offset, int length) {
+
+		if (offset == 0)
+			return new RtpPacket(data, length);
+
+		byte[] bytes = new byte[length];
+		System.arraycopy(data, offset, bytes, 0, length);
+		return new RtpPacket(bytes, length);
+
+	}
+
+	/**
+	 * Send a packet event to the session's listeners.
+	 */
+	private void release(RtpPacket rtpPacket) {
+
+		RtpPacketEvent rtpEvent = new RtpPacketEvent(rtpSession, rtpPacket,
+				"Received RTP packet");
+
+		for (RtpListener listener : rtpSession.listeners)
+			listener.handleRtpPacketEvent(rtpEvent);
+
+	}
+
+	/**
+	 * The reorder window of one SSRC.
+	 */
+	private class Window {
+
+		/** The SSRC whose packets this window orders. */
+		long ssrc;
+
+		/** When a packet last arrived for this SSRC. */
+		long lastReceiveTime = 0;
+
+		/** Held packets, indexed by extended sequence number & WINDOW_MASK. */
+		private final RtpPacket[] held = new RtpPacket[WINDOW_SIZE];
+
+		/**
+		 * The extended sequence number last held or released through each
+		 * slot, used to recognise duplicates. -1 if the slot is unused.
+		 */
+		private final long[] slotSequenceNumber = new long[WINDOW_SIZE];
+
+		/** The extended sequence number of the next packet to release. */
+		private long nextSequenceNumber = 0;
+
+		/** Whether the first packet has been received. */
+		private boolean initialized = false;
+
+		/** The number of packets currently held. */
+		private int heldCount = 0;
+
+		/** When the oldest outstanding gap started being waited on. */
+		private long holdStartTime = 0;
+
+		/** The sequence number that would confirm a large jump, or -1. */
+		private int badSequenceNumber = -1;
+
+		/** The packet that started a large jump, held until it is confirmed. */
+		private RtpPacket probationPacket = null;
+
+		/**
+		 * Start ordering the packets of a new SSRC.
+		 */
+		void start(long ssrc) {
+
+			this.ssrc = ssrc;
+			initialized = false;
+			badSequenceNumber = -1;
+			probationPacket = null;
+			for (int i = 0; i < WINDOW_SIZE; i++)
+				slotSequenceNumber[i] = -1;
+
+		}
+
+		/**
+		 * Offer a received datagram of this window's SSRC.
+		 */
+		void offer(byte[] data, int offset, int length, int sequenceNumber,
+				long now) {
+
+			if (!initialized) {
+				initialized = true;
+				nextSequenceNumber = sequenceNumber;
+			}
+
+			// Signed 16-bit distance from the next expected sequence number
+			int delta = (short) (sequenceNumber - (int) (nextSequenceNumber & 0xFFFF));
+			long extendedSequenceNumber = nextSequenceNumber + delta;
+
+			if (RtpSequence.isJump(sequenceNumber,
+					(int) (nextSequenceNumber - 1) & 0xFFFF)) {
+
+				if (sequenceNumber != badSequenceNumber) {
+					// Very large jump; believe it only if the next packet
+					// follows
+					badSequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+					probationPacket = copy(data, offset, length);
+					return;
+				}
+
+				// Two sequential packets: the sender restarted. Release what
+				// we have, then the held first packet, and resynchronize on
+				// it.
+				skipTo(nextSequenceNumber + WINDOW_SIZE);
+				for (int i = 0; i < WINDOW_SIZE; i++)
+					slotSequenceNumber[i] = -1;
+				nextSequenceNumber = probationPacket.getSN();
+				slotSequenceNumber[(int) (nextSequenceNumber & WINDOW_MASK)] =
+						nextSequenceNumber;
+				nextSequenceNumber++;
+				RtpPacket firstPacket = probationPacket;
+				probationPacket = null;
+				release(firstPacket);
+				extendedSequenceNumber = nextSequenceNumber;
+				delta = 0;
+
+			}
+			badSequenceNumber = -1;
+			probationPacket = null;
+
+			int slot = (int) (extendedSequenceNumber & WINDOW_MASK);
+
+			if (delta < 0) {
+
+				// Behind the window: a duplicate, or a late packet whose gap
+				// we already gave up on
+				if (-delta <= WINDOW_SIZE) {
+					if (slotSequenceNumber[slot] == extendedSequenceNumber)
+						return;
+					if (held[slot] == null)
+						slotSequenceNumber[slot] = extendedSequenceNumber;
+				}
+
+				release(copy(data, offset, length));
+
+			} else if (delta == 0) {
+
+				slotSequenceNumber[slot] = extendedSequenceNumber;
+				nextSequenceNumber++;
+				release(copy(data, offset, length));
+				drain(now);
+
+			} else if (rtpSession.getReorderHoldTime() <= 0) {
+
+				// Holding disabled: release immediately and skip the gap
+				slotSequenceNumber[slot] = extendedSequenceNumber;
+				skipTo(extendedSequenceNumber + 1);
+				release(copy(data, offset, length));
+
+			} else {
+
+				if (delta >= WINDOW_SIZE) {
+					// No room: give up on the oldest gaps to make some
+					skipTo(extendedSequenceNumber - WINDOW_SIZE + 1);
+					drain(now);
+					if (extendedSequenceNumber == nextSequenceNumber) {
+						offer(data, offset, length, sequenceNumber, now);
+						return;
+					}
+				}
+
+				if (slotSequenceNumber[slot] == extendedSequenceNumber)
+					return; // Duplicate of a held packet
+
+				slotSequenceNumber[slot] = extendedSequenceNumber;
+				held[slot] = copy(data, offset, length);
+				if (heldCount++ == 0)
+					holdStartTime = now;
+
+			}
+
+			expire(now);
+
+		}
+
+		/**
+		 * Release held packets whose gap has been waited on for too long.
+		 */
+		void expire(long now) {
+
+			while (heldCount > 0
+					&& now - holdStartTime >= rtpSession.getReorderHoldTime()) {
+
+				// Give up on the gap before the oldest held packet
+				long target = nextSequenceNumber;
+				while (held[(int) (target & WINDOW_MASK)] == null)
+					target++;
+				skipTo(target);
+				holdStartTime = now;
+				drain(now);
+
+			}
+
+		}
+
+		/**
+		 * Get the time at which held packets must next be checked.
+		 */
+		long getDeadline() {
+
+			if (heldCount == 0)
+				return 0;
+			return holdStartTime + Math.max(rtpSession.getReorderHoldTime(), 1);
+
+		}
+
+		/**
+		 * Release everything held, giving up on every gap, before the window
+		 * is reused for another SSRC. A packet on probation after a jump is
+		 * released last.
+		 */
+		void flush() {
+
+			skipTo(nextSequenceNumber + WINDOW_SIZE);
+			if (probationPacket != null) {
+				RtpPacket rtpPacket = probationPacket;
+				probationPacket = null;
+				release(rtpPacket);
+			}
+
+		}
+
+		/**
+		 * Release consecutive held packets starting at nextSequenceNumber.
+		 */
+		private void drain(long now) {
+
+			int slot = (int) (nextSequenceNumber & WINDOW_MASK);
+			boolean released = false;
+
+			while (held[slot] != null
+					&& slotSequenceNumber[slot] == nextSequenceNumber) {
+				RtpPacket rtpPacket = held[slot];
+				held[slot] = null;
+				heldCount--;
+				nextSequenceNumber++;
+				release(rtpPacket);
+				released = true;
+				slot = (int) (nextSequenceNumber & WINDOW_MASK);
+			}
+
+			// The next gap starts now
+			if (released && heldCount > 0)
+				holdStartTime = now;
+
+		}
+
+		/**
+		 * Advance nextSequenceNumber to target, releasing any held packets on
+		 * the way in order.
+		 */
+		private void skipTo(long target) {
+
+			while (nextSequenceNumber < target) {
+				int slot = (int) (nextSequenceNumber & WINDOW_MASK);
+				if (held[slot] != null) {
+					RtpPacket rtpPacket = held[slot];
+					held[slot] = null;
+					heldCount--;
+					release(rtpPacket);
+				}
+				nextSequenceNumber++;
+				if (heldCount == 0 && target - nextSequenceNumber > WINDOW_SIZE)
+					nextSequenceNumber = target; // Nothing left to release
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,110 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * The NIST RTP stack is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ * .
+ */
+package gov.nist.jrtp;
+
+/**
+ * This class holds the sequence number checks of <a
+ * href="http://www.ietf.org/rfc/rfc3550.txt">IETF RFC 3550</a> appendix A.1,
+ * so that every part of the stack that follows a sender's sequence numbers
+ * tells gaps, late packets and restarts apart the same way.
+ * <p>
+ * Sequence numbers are 16 bits and compared modulo 2^16, so wraparound needs
+ * no special handling by the caller.
+ */
+public final class RtpSequence {
+
+	/***************************************************************************
+	 * Constants
+	 **************************************************************************/
+
+	/** RTP sequence numbers wrap at this. */
+	public static final int RTP_SEQ_MOD = 0x10000;
+
+	/** The largest forward jump taken as a gap rather than a restart. */
+	public static final int MAX_DROPOUT = 3000;
+
+	/** The largest backward step taken as a late or duplicate packet. */
+	public static final int MAX_MISORDER = 100;
+
+	/***************************************************************************
+	 * Constructor
+	 **************************************************************************/
+
+	private RtpSequence() {
+
+	}
+
+	/***************************************************************************
+	 * Methods
+	 **************************************************************************/
+
+	/**
+	 * Get how far a sequence number is ahead of the highest one seen, modulo
+	 * 2^16.
+	 *
+	 * @param sequenceNumber
+	 *            The received sequence number.
+	 * @param highest
+	 *            The highest sequence number seen so far.
+	 * @return The distance, from 0 to 65535.
+	 */
+	public static int distance(int sequenceNumber, int highest) {
+
+		return (sequenceNumber - highest) & (RTP_SEQ_MOD - 1);
+
+	}
+
+	/**
+	 * Check whether a sequence number follows the highest one seen, allowing
+	 * for lost packets in between.
+	 *
+	 * @param sequenceNumber
+	 *            The received sequence number.
+	 * @param highest
+	 *            The highest sequence number seen so far.
+	 * @return Whether the sequence number is ahead by less than MAX_DROPOUT.
+	 */
+	public static boolean isAhead(int sequenceNumber, int highest) {
+
+		int udelta = distance(sequenceNumber, highest);
+		return udelta != 0 && udelta < MAX_DROPOUT;
+
+	}
+
+	/**
+	 * Check whether a sequence number is too far from the highest one seen
+	 * to be a gap or a late packet. Such a jump means either a stray packet
+	 * or that the sender restarted; the next packet tells which.
+	 *
+	 * @param sequenceNumber
+	 *            The received sequence number.
+	 * @param highest
+	 *            The highest sequence number seen so far.
+	 * @return Whether the sequence number jumped.
+	 */
+	public static boolean isJump(int sequenceNumber, int highest) {
+
+		int udelta = distance(sequenceNumber, highest);
+		return udelta >= MAX_DROPOUT && udelta <= RTP_SEQ_MOD - MAX_MISORDER;
+
+	}
+
+}
@@ -20,8 +20,11 @@
 package gov.nist.jrtp;
 
 import gov.nist.util.ByteUtil;
+import gov.nist.util.Trace;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -47,6 +50,27 @@ public class RtpSession {
 	/** Determines if a de-serialized file is compatible with this class. */
 	private static final long serialVersionUID = 0;
 
+	/**
+	 * The initial size of the reusable send buffer. Text packets are far
+	 * smaller than this, so the buffer normally never grows.
+	 */
+	private static final int INITIAL_SEND_BUFFER_SIZE = 1500;
+
+	/**
+	 * The default time in milliseconds that a received packet is held waiting
+	 * for an earlier, missing packet before the gap is given up on.
+	 */
+	public static final int DEFAULT_REORDER_HOLD_TIME = 100;
+
+	/**
+	 * The range of the second octet that marks a packet on a multiplexed
+	 * port as RTCP rather than RTP (RFC 5761 section 4). RTP payload types
+	 * 64-95 with the marker bit set fall in this range, so they must not be
+	 * used on a multiplexed session.
+	 */
+	static final int RTCP_MUX_FIRST_TYPE = 192;
+	static final int RTCP_MUX_LAST_TYPE = 223;
+
 	/**
 	 * The relative directory path for storing RTP log files.
 	 */
@@ -80,6 +104,36 @@ public class RtpSession {
 	/** The remote Inet address. */
 	private InetAddress remoteInetAddress = null;
 
+	/** The buffer outgoing RTP packets are serialized into. Guarded by this. */
+	private byte[] sendBuffer = null;
+
+	/** The datagram reused for every outgoing RTP packet. Guarded by this. */
+	private DatagramPacket outgoingDatagramPacket = null;
+
+	/**
+	 * The reactor serving this session, or null if this session uses its own
+	 * RtpPacketReceiver thread.
+	 */
+	private RtpReactor reactor = null;
+
+	/** The non-blocking channel behind myRtpRecvSocket in reactor mode. */
+	private DatagramChannel myRtpRecvChannel = null;
+
+	/** Wraps sendBuffer for channel sends in reactor mode. Guarded by this. */
+	private ByteBuffer sendByteBuffer = null;
+
+	/** The remote RTP address for channel sends in reactor mode. */
+	private InetSocketAddress remoteSocketAddress = null;
+
+	/** Whether myRtpRecvChannel has been handed to the reactor. */
+	private boolean registeredWithReactor = false;
+
+	/** See setReorderHoldTime(). */
+	private volatile int reorderHoldTime = DEFAULT_REORDER_HOLD_TIME;
+
+	/** See setRtcpListener(). */
+	private volatile RtcpListener rtcpListener = null;
+
 	/** List of RTP listeners. */
 	protected ArrayList<RtpListener> listeners = null;
 
@@ -130,6 +184,45 @@ public class RtpSession {
 
 	}
 
+	/**
+	 * Construct an RTP session whose packets are received by a reactor rather
+	 * than a dedicated RtpPacketReceiver thread. The receive port is bound
+	 * through a non-blocking DatagramChannel, which is also used for sending.
+	 * 
+	 * @param myIpAddress
+	 *            The IP address of this host.
+	 * @param myRtpRecvPort
+	 *            The RTP receive port.
+	 * @param remoteIpAddress
+	 *            The remote IP address.
+	 * @param remoteRtpRecvPort
+	 *            The remote RTP receive port.
+	 * @param reactor
+	 *            The reactor that will receive packets for this session.
+	 * @throws SocketException
+	 * @throws IOException
+	 */
+	public RtpSession(InetAddress myIpAddress, int myRtpRecvPort,
+			String remoteIpAddress, int remoteRtpRecvPort, RtpReactor reactor)
+			throws SocketException, IOException {
+
+		this.myIpAddress = myIpAddress;
+		this.myRtpRecvPort = myRtpRecvPort;
+		this.remoteIpAddress = remoteIpAddress;
+		this.remoteRtpRecvPort = remoteRtpRecvPort;
+		this.reactor = reactor;
+
+		openRecvChannel(myRtpRecvPort);
+
+		// The remote address may be set later, as with
+		// RtpSession(InetAddress, int)
+		if (remoteIpAddress.length() > 0)
+			remoteInetAddress = InetAddress.getByName(remoteIpAddress);
+
+		listeners = new ArrayList<RtpListener>();
+
+	}
+
 	/**
 	 * Construct an RTP session. This constructor is typically used if the
 	 * remoteRtpRecvPort is not known at the time of instantiation. Here, only
@@ -214,6 +307,13 @@ public class RtpSession {
 	public void receiveRTPPackets() throws SocketException, RtpException {
 		if ( this.myRtpRecvSocket == null 	) throw new RtpException("No socket -- cannot recieve packets! ");
 		if ( this.myRtpRecvSocket.isClosed()) throw new SocketException("Socket is closed.");
+		if (reactor != null) {
+			if (!registeredWithReactor) {
+				registeredWithReactor = true;
+				reactor.register(this);
+			}
+			return;
+		}
 		if ((rtpPacketReceiver == null)
 				|| (rtpPacketReceiver.getState() == Thread.State.TERMINATED)) {
 			rtpPacketReceiver = new RtpPacketReceiver(this);
@@ -228,7 +328,16 @@ public class RtpSession {
 	 * 
 	 */
 	public void stopRtpPacketReceiver() {
-		this.rtpPacketReceiver.interrupt();
+		if (reactor != null) {
+			// The channel stays open for sending; just stop receiving
+			if (myRtpRecvChannel != null)
+				reactor.deregister(myRtpRecvChannel);
+			registeredWithReactor = false;
+			this.myRtpRecvPort = 0;
+			return;
+		}
+		if (this.rtpPacketReceiver != null)
+			this.rtpPacketReceiver.interrupt();
 		this.myRtpRecvPort = 0;
 		// Note that the interrupt call will close the socket
 		// if the remote rtp recv port is still open, we
@@ -258,14 +367,77 @@ public class RtpSession {
 	public synchronized void sendRtpPacket(RtpPacket rtpPacket)
 			throws RtpException, UnknownHostException, IOException {
 
-		// Ensure that outgoingDatagramPacket has been initialized
-		// with a remote IP address and remote RTP receive port
+		checkRemoteAddress("RTP");
+		
+		/*System.out.println("---------------\n[RtpSession] RTP Data:");
+		System.out.println("[RtpSession] Sending V: " + rtpPacket.getV());
+		System.out.println("[RtpSession] Sending P: " + rtpPacket.getP());
+		System.out.println("[RtpSession] Sending X: " + rtpPacket.getX());
+		System.out.println("[RtpSession] Sending CC: " + rtpPacket.getCC());
+		System.out.println("[RtpSession] Sending M: " + rtpPacket.getM());
+		System.out.println("[RtpSession] Sending PT: " + rtpPacket.getPT());
+		System.out.println("[RtpSession] Sending SN: " + rtpPacket.getSN());
+		System.out.println("[RtpSession] Sending TS: " + rtpPacket.getTS());
+		System.out.println("[RtpSession] Sending SSRC: " + rtpPacket.getSSRC());
+		System.out.println("[RtpSession] Sending Payload size: " + rtpPacket.getPayloadLength());*/
+		
+
+		// Serialize into the session's reusable send buffer, growing it only
+		// if a packet is larger than any sent before
+		int rtpPacketLength = rtpPacket.getLength();
+		if (sendBuffer == null || sendBuffer.length < rtpPacketLength)
+			sendBuffer = new byte[Math.max(rtpPacketLength,
+					INITIAL_SEND_BUFFER_SIZE)];
+		rtpPacket.writeTo(sendBuffer, 0);
+		sendDatagram(rtpPacketLength);
+
+		Trace.event(Trace.DEBUG, Trace.RTP_SENT, rtpPacket.getSSRC(),
+				rtpPacket.getSN());
+		
+		// Increment sequence number (use mod 65535 to repeat when > 65535)
+		rtpPacket.SN = ++rtpPacket.SN % ByteUtil.getMaxIntValueForNumBits(16);
+
+	}
+
+	/**
+	 * Send an RTCP packet from this session's RTP port to the remote RTP
+	 * port. This is only valid once RTCP has been multiplexed onto the RTP
+	 * port with setRtcpListener(), as described in RFC 5761.
+	 * 
+	 * @param data
+	 *            The buffer holding the compound RTCP packet.
+	 * @param offset
+	 *            The offset of the packet in data.
+	 * @param length
+	 *            The length of the packet.
+	 * @throws IOException
+	 * @throws UnknownHostException
+	 * @throws RtpException
+	 */
+	public synchronized void sendRtcpPacket(byte[] data, int offset,
+			int length) throws RtpException, UnknownHostException, IOException {
+
+		checkRemoteAddress("RTCP");
+
+		if (sendBuffer == null || sendBuffer.length < length)
+			sendBuffer = new byte[Math.max(length, INITIAL_SEND_BUFFER_SIZE)];
+		System.arraycopy(data, offset, sendBuffer, 0, length);
+		sendDatagram(length);
+
+	}
+
+	/**
+	 * Ensure that a remote IP address and remote RTP receive port are known.
+	 */
+	private void checkRemoteAddress(String protocol) throws RtpException,
+			UnknownHostException {
+
 		if (remoteInetAddress == null) {
 
 			if (remoteIpAddress == "") {
 
-				throw new RtpException("Failed sending RTP packet. "
-						+ "Remote IP address is undefined.");
+				throw new RtpException("Failed sending " + protocol
+						+ " packet. Remote IP address is undefined.");
 
 			} else {
 
@@ -277,38 +449,42 @@ public class RtpSession {
 
 		if (remoteRtpRecvPort < 0) {
 
-			throw new RtpException("ERROR: Cannot send RTP packet. "
-					+ "Remote RTP receive port is undefined.");
+			throw new RtpException("ERROR: Cannot send " + protocol
+					+ " packet. Remote RTP receive port is undefined.");
 
 		}
-		
-		/*System.out.println("---------------\n[RtpSession] RTP Data:");
-		System.out.println("[RtpSession] Sending V: " + rtpPacket.getV());
-		System.out.println("[RtpSession] Sending P: " + rtpPacket.getP());
-		System.out.println("[RtpSession] Sending X: " + rtpPacket.getX());
-		System.out.println("[RtpSession] Sending CC: " + rtpPacket.getCC());
-		System.out.println("[RtpSession] Sending M: " + rtpPacket.getM());
-		System.out.println("[RtpSession] Sending PT: " + rtpPacket.getPT());
-		System.out.println("[RtpSession] Sending SN: " + rtpPacket.getSN());
-		System.out.println("[RtpSession] Sending TS: " + rtpPacket.getTS());
-		System.out.println("[RtpSession] Sending SSRC: " + rtpPacket.getSSRC());
-		System.out.println("[RtpSession] Sending Payload size: " + rtpPacket.getPayloadLength());*/
-		
 
-		DatagramPacket outgoingDatagramPacket = new DatagramPacket(new byte[1],
-				1, remoteInetAddress, remoteRtpRecvPort);
-		
-		// Convert RTP packet to byte array
-		byte[] rtpPacketBytes = rtpPacket.getData();
+	}
 
-		// Set RTP packet as UDP payload and send
-		outgoingDatagramPacket.setData(rtpPacketBytes);
+	/**
+	 * Send the first length bytes of sendBuffer to the remote RTP port.
+	 * Guarded by this.
+	 */
+	private void sendDatagram(int length) throws IOException {
+
+		if (outgoingDatagramPacket == null)
+			outgoingDatagramPacket = new DatagramPacket(sendBuffer, 0,
+					length, remoteInetAddress, remoteRtpRecvPort);
+		else {
+			outgoingDatagramPacket.setData(sendBuffer, 0, length);
+			outgoingDatagramPacket.setAddress(remoteInetAddress);
+			outgoingDatagramPacket.setPort(remoteRtpRecvPort);
+		}
 		
-		if (myRtpSendSocket != null)
+		if (myRtpSendSocket != null && myRtpSendSocket.getChannel() != null) {
+			// A non-blocking channel's socket cannot send(DatagramPacket)
+			if (sendByteBuffer == null || sendByteBuffer.array() != sendBuffer)
+				sendByteBuffer = ByteBuffer.wrap(sendBuffer);
+			if (remoteSocketAddress == null
+					|| !remoteSocketAddress.getAddress().equals(remoteInetAddress)
+					|| remoteSocketAddress.getPort() != remoteRtpRecvPort)
+				remoteSocketAddress = new InetSocketAddress(remoteInetAddress,
+						remoteRtpRecvPort);
+			sendByteBuffer.clear().limit(length);
+			myRtpSendSocket.getChannel().send(sendByteBuffer,
+					remoteSocketAddress);
+		} else if (myRtpSendSocket != null)
 			myRtpSendSocket.send(outgoingDatagramPacket);
-		
-		// Increment sequence number (use mod 65535 to repeat when > 65535)
-		rtpPacket.SN = ++rtpPacket.SN % ByteUtil.getMaxIntValueForNumBits(16);
 
 	}
 
@@ -335,13 +511,15 @@ public class RtpSession {
 	 */
 	public void shutDown() {
 
-		System.out.println("[RtpSession " + getMyIpAddress() + ":"
-					+ getMyRtpRecvPort() + "] shutting down");
+		Trace.event(Trace.INFO, Trace.SESSION_SHUT_DOWN, getMyRtpRecvPort(), 0);
 
 		if (rtpPacketReceiver != null) // may be null because recieve port has
 										// not yet been associagted
 			rtpPacketReceiver.interrupt(); // Shut down RTP packet receiver
 
+		if (reactor != null && myRtpRecvChannel != null)
+			reactor.deregister(myRtpRecvChannel);
+
 		if (myRtpRecvSocket != null) {
 			myRtpRecvSocket.close();
 			myRtpRecvSocket = null;
@@ -427,9 +605,18 @@ public class RtpSession {
 				this.rtpPacketReceiver.interrupt();
 			this.rtpPacketReceiver = null;
 			this.myRtpRecvPort = myRtpRecvPort;
-			this.myRtpRecvSocket = new DatagramSocket(myRtpRecvPort);
-			this.myRtpSendSocket = myRtpRecvSocket;
-		} catch (SocketException ex) {
+			if (reactor != null) {
+				if (myRtpRecvChannel != null) {
+					reactor.deregister(myRtpRecvChannel);
+					myRtpRecvChannel.close();
+				}
+				registeredWithReactor = false;
+				openRecvChannel(myRtpRecvPort);
+			} else {
+				this.myRtpRecvSocket = new DatagramSocket(myRtpRecvPort);
+				this.myRtpSendSocket = myRtpRecvSocket;
+			}
+		} catch (IOException ex) {
 			throw new RtpException("failed to assign recv port", ex);
 		}
 
@@ -467,6 +654,113 @@ public class RtpSession {
 
 	}
 
+	/**
+	 * Set how long a received packet that arrives ahead of a gap in the
+	 * sequence numbers is held, waiting for the missing packet, before the gap
+	 * is given up on. Received packets are released to listeners in sequence
+	 * order, per SSRC; a value of 0 disables holding, so packets are released
+	 * as soon as they arrive, but duplicates are still dropped.
+	 * 
+	 * @param reorderHoldTime
+	 *            The hold time in milliseconds.
+	 */
+	public void setReorderHoldTime(int reorderHoldTime) {
+
+		if (reorderHoldTime < 0)
+			throw new IllegalArgumentException(RtpException.OUT_OF_RANGE);
+		this.reorderHoldTime = reorderHoldTime;
+
+	}
+
+	/**
+	 * Get the reorder hold time.
+	 * 
+	 * @return The reorder hold time in milliseconds.
+	 */
+	public int getReorderHoldTime() {
+
+		return reorderHoldTime;
+
+	}
+
+	/**
+	 * Multiplex RTCP onto this session's RTP port, as described in RFC 5761.
+	 * Received packets whose second octet is an RTCP packet type are handed
+	 * to the listener, on the receiving thread, instead of being parsed as
+	 * RTP. A null listener turns multiplexing off.
+	 * 
+	 * @param rtcpListener
+	 *            The listener for received RTCP packets, or null.
+	 */
+	public void setRtcpListener(RtcpListener rtcpListener) {
+
+		this.rtcpListener = rtcpListener;
+
+	}
+
+	/**
+	 * Get whether RTCP is multiplexed onto this session's RTP port.
+	 * 
+	 * @return True if an RTCP listener is set.
+	 */
+	public boolean isRtcpMultiplexed() {
+
+		return rtcpListener != null;
+
+	}
+
+	/**
+	 * Hand a received datagram to the RTCP listener if RTCP is multiplexed
+	 * and the datagram is RTCP.
+	 * 
+	 * @return True if the datagram was RTCP and has been consumed.
+	 */
+	boolean demultiplexRtcp(byte[] data, int offset, int length) {
+
+		RtcpListener listener = rtcpListener;
+		if (listener == null || length < 2)
+			return false;
+		int packetType = data[offset + 1] & 0xff;
+		if (packetType < RTCP_MUX_FIRST_TYPE
+				|| packetType > RTCP_MUX_LAST_TYPE)
+			return false;
+		listener.handleRtcpPacket(data, offset, length);
+		return true;
+
+	}
+
+	/**
+	 * Get my RTP receive channel. This is only set for sessions served by a
+	 * reactor.
+	 * 
+	 * @return My non-blocking RTP receive channel, or null.
+	 */
+	DatagramChannel getRtpRecvChannel() {
+
+		return myRtpRecvChannel;
+
+	}
+
+	/**
+	 * Open a non-blocking channel bound to the given port and use its socket
+	 * for both receiving and sending.
+	 */
+	private void openRecvChannel(int port) throws IOException {
+
+		myRtpRecvChannel = DatagramChannel.open();
+		try {
+			myRtpRecvChannel.socket().bind(new InetSocketAddress(port));
+			myRtpRecvChannel.configureBlocking(false);
+		} catch (IOException ex) {
+			myRtpRecvChannel.close();
+			myRtpRecvChannel = null;
+			throw ex;
+		}
+		myRtpRecvSocket = myRtpRecvChannel.socket();
+		myRtpSendSocket = myRtpRecvSocket;
+
+	}
+
 	/**
 	 * Get the XML formatted string representation.
 	 * 
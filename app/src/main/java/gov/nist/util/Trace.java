@@ -0,0 +1,356 @@
+/* This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 United States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ * 
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS".  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof including, but
+ * not limited to, the correctness, accuracy, reliability or usefulness of
+ * the software.
+ * 
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a low-overhead tracing facade for the RTP hot paths,
+ * shared by the <tt>gov.nist.jrtp</tt> and <tt>se.omnitor</tt> packages.
+ * <p>
+ * An event is a numeric id and two <tt>long</tt> arguments. Recording one
+ * costs a level check when tracing is off. When it is on, the event is
+ * written into a lock-free binary ring buffer, without building any strings.
+ * A background thread drains the ring and formats the events for a
+ * <tt>Sink</tt>, by default <tt>java.util.logging</tt>. If the drain thread
+ * falls behind, the oldest events are overwritten and counted as dropped.
+ * <p>
+ * Typical use:
+ * 
+ * <pre>
+ * Trace.event(Trace.DEBUG, Trace.RTP_RECEIVED, ssrc, sequenceNumber);
+ * </pre>
+ */
+public final class Trace {
+
+	/***************************************************************************
+	 * Constants
+	 **************************************************************************/
+
+	/** Level that records nothing. */
+	public static final int OFF = 0;
+
+	/** Level for failures. */
+	public static final int ERROR = 1;
+
+	/** Level for session life cycle events. */
+	public static final int INFO = 2;
+
+	/** Level for per-packet events. */
+	public static final int DEBUG = 3;
+
+	/** An RTP packet was received. a = SSRC, b = sequence number. */
+	public static final int RTP_RECEIVED = 1;
+
+	/** An RTP packet was sent. a = SSRC, b = sequence number. */
+	public static final int RTP_SENT = 2;
+
+	/** Text was taken from the send buffer. a = bytes, b = SSRC. */
+	public static final int TEXT_TAKEN = 3;
+
+	/** An RTP session shut down. a = local port, b = unused. */
+	public static final int SESSION_SHUT_DOWN = 4;
+
+	/** An RTP packet receiver thread shut down. a = local port, b = unused. */
+	public static final int RECEIVER_SHUT_DOWN = 5;
+
+	/** A reactor selector thread failed. a = thread id, b = unused. */
+	public static final int SELECTOR_FAILED = 6;
+
+	/** A text packet was given up as lost. a = sequence number, b = unused. */
+	public static final int PACKET_LOST = 7;
+
+	/**
+	 * A listener or other callout threw, and the thread that called it went
+	 * on. a = thread id, b = unused.
+	 */
+	public static final int CALLOUT_FAILED = 8;
+
+	/** Event names, indexed by id. */
+	private static final String[] EVENT_NAMES = { "?", "RTP_RECEIVED",
+			"RTP_SENT", "TEXT_TAKEN", "SESSION_SHUT_DOWN",
+			"RECEIVER_SHUT_DOWN", "SELECTOR_FAILED", "PACKET_LOST",
+			"CALLOUT_FAILED" };
+
+	/** Number of events the ring holds, a power of two. */
+	private static final int CAPACITY = 4096;
+
+	/** Fields per event: time, level and id, a, b. */
+	private static final int FIELDS = 4;
+
+	/** How often the drain thread wakes up, in milliseconds. */
+	private static final int DRAIN_INTERVAL = 500;
+
+	/** Marks a slot that is being written. */
+	private static final long WRITING = -1;
+
+	/***************************************************************************
+	 * Variables
+	 **************************************************************************/
+
+	/** The current level. Only events at or below it are recorded. */
+	private static volatile int level = OFF;
+
+	/** The event fields. */
+	private static final AtomicLongArray events = new AtomicLongArray(CAPACITY
+			* FIELDS);
+
+	/**
+	 * One more than the sequence number of the event in each slot, 0 if the
+	 * slot is empty, or WRITING.
+	 */
+	private static final AtomicLongArray published = new AtomicLongArray(
+			CAPACITY);
+
+	/** The sequence number of the next event to record. */
+	private static final AtomicLong next = new AtomicLong();
+
+	/** The sequence number of the next event to drain. */
+	private static long drained = 0;
+
+	/** Events overwritten before they were drained. */
+	private static long dropped = 0;
+
+	/** Where drained events go. */
+	private static volatile Sink sink = new LoggerSink();
+
+	/** The drain thread, started the first time tracing is turned on. */
+	private static Thread drainThread = null;
+
+	/***************************************************************************
+	 * Constructors
+	 **************************************************************************/
+
+	private Trace() {
+
+		// Only static methods
+
+	}
+
+	/***************************************************************************
+	 * Methods
+	 **************************************************************************/
+
+	/**
+	 * Set the trace level, starting the drain thread if needed.
+	 * 
+	 * @param newLevel
+	 *            OFF, ERROR, INFO or DEBUG.
+	 */
+	public static synchronized void setLevel(int newLevel) {
+
+		level = newLevel;
+
+		if (newLevel > OFF && drainThread == null) {
+			drainThread = new Thread(new Runnable() {
+				public void run() {
+					while (true) {
+						try {
+							Thread.sleep(DRAIN_INTERVAL);
+						} catch (InterruptedException ie) {
+							// Drain now
+						}
+						drain(sink);
+					}
+				}
+			}, "Trace");
+			drainThread.setDaemon(true);
+			drainThread.start();
+		}
+
+	}
+
+	/**
+	 * Set where drained events go.
+	 * 
+	 * @param newSink
+	 *            The sink.
+	 */
+	public static void setSink(Sink newSink) {
+
+		sink = newSink;
+
+	}
+
+	/**
+	 * Check whether events at a level are recorded.
+	 * 
+	 * @param eventLevel
+	 *            The level.
+	 * @return true if they are recorded.
+	 */
+	public static boolean isEnabled(int eventLevel) {
+
+		return eventLevel <= level;
+
+	}
+
+	/**
+	 * Record an event. Does nothing unless the level is enabled, and never
+	 * blocks or allocates.
+	 * 
+	 * @param eventLevel
+	 *            The level of the event.
+	 * @param id
+	 *            The event id.
+	 * @param a
+	 *            The first argument, see the event id.
+	 * @param b
+	 *            The second argument, see the event id.
+	 */
+	public static void event(int eventLevel, int id, long a, long b) {
+
+		if (eventLevel > level)
+			return;
+
+		long sequence = next.getAndIncrement();
+		int slot = (int) (sequence & (CAPACITY - 1));
+		int base = slot * FIELDS;
+
+		published.set(slot, WRITING);
+		events.set(base, System.currentTimeMillis());
+		events.set(base + 1, ((long) eventLevel << 32) | id);
+		events.set(base + 2, a);
+		events.set(base + 3, b);
+		published.set(slot, sequence + 1);
+
+	}
+
+	/**
+	 * Pass every recorded event that has not been drained yet to a sink.
+	 * Called by the drain thread, but may also be called directly.
+	 * 
+	 * @param target
+	 *            The sink.
+	 */
+	public static synchronized void drain(Sink target) {
+
+		long end = next.get();
+
+		if (end - drained > CAPACITY) {
+			dropped += end - drained - CAPACITY;
+			drained = end - CAPACITY;
+		}
+
+		while (drained < end) {
+
+			int slot = (int) (drained & (CAPACITY - 1));
+			int base = slot * FIELDS;
+
+			long mark = drained + 1;
+			long current = published.get(slot);
+
+			if (current != mark) {
+				if (current == WRITING || current < mark)
+					break; // Still being written, try next time
+				dropped++; // Overwritten by a later lap
+				drained++;
+				continue;
+			}
+
+			long time = events.get(base);
+			long levelAndId = events.get(base + 1);
+			long a = events.get(base + 2);
+			long b = events.get(base + 3);
+
+			if (published.get(slot) == mark)
+				target.record(time, (int) (levelAndId >>> 32),
+						(int) levelAndId, a, b);
+			else
+				dropped++;
+
+			drained++;
+
+		}
+
+	}
+
+	/**
+	 * Get the number of events overwritten before they could be drained.
+	 * 
+	 * @return the number of dropped events.
+	 */
+	public static synchronized long getDropped() {
+
+		return dropped;
+
+	}
+
+	/**
+	 * Get the name of an event id.
+	 * 
+	 * @param id
+	 *            The event id.
+	 * @return the name.
+	 */
+	public static String getEventName(int id) {
+
+		if (id > 0 && id < EVENT_NAMES.length)
+			return EVENT_NAMES[id];
+		return "EVENT_" + id;
+
+	}
+
+	/**
+	 * Receives drained events, on the drain thread.
+	 */
+	public interface Sink {
+
+		/**
+		 * Handle one event.
+		 * 
+		 * @param time
+		 *            When it was recorded, as System.currentTimeMillis().
+		 * @param eventLevel
+		 *            Its level.
+		 * @param id
+		 *            Its id.
+		 * @param a
+		 *            The first argument.
+		 * @param b
+		 *            The second argument.
+		 */
+		void record(long time, int eventLevel, int id, long a, long b);
+
+	}
+
+	/**
+	 * The default sink, which formats events for java.util.logging.
+	 */
+	private static class LoggerSink implements Sink {
+
+		private final Logger logger = Logger.getLogger("gov.nist.util.Trace");
+
+		public void record(long time, int eventLevel, int id, long a, long b) {
+
+			Level logLevel = (eventLevel == ERROR) ? Level.WARNING
+					: (eventLevel == INFO) ? Level.INFO : Level.FINE;
+			if (logger.isLoggable(logLevel))
+				logger.log(logLevel, time + " " + getEventName(id) + " " + a
+						+ " " + b);
+
+		}
+
+	}
+
+}
@@ -21,7 +21,8 @@ package se.omnitor.protocol.rtp;
 /**
  * This class provides generic packet assembly and disassembly functions, which
  * are used in various parts of the project e.g. assembling and disassembling
- * RTP and RTCP packets etc.
+ * RTP and RTCP packets etc. None of them keep any state, so they can be
+ * called from any thread without locking.
  *
  * @author Unknown
  */
@@ -37,22 +38,17 @@ public class PacketUtils {
      *     @return    The desired packet which is A concatenated with B.
      */
     
-    public static synchronized byte[] append (  byte[] packetA, 
+    public static byte[] append (  byte[] packetA, 
 						byte[] packetB ) {
 
         // Create a new array whose size is equal to sum of packets
         // being added
         byte[] packetAB = new byte [ packetA.length + packetB.length ];
 	
-        // First paste in packetA
-        for ( int i=0; i < packetA.length; i++ ) {
-            packetAB [i] = packetA [i];
-	}
-	
-        // Now start pasting packetB
-        for ( int i=0; i < packetB.length; i++ ) {
-            packetAB [i+packetA.length] = packetB [i];
-	}
+        // First paste in packetA, then packetB
+        System.arraycopy ( packetA, 0, packetAB, 0, packetA.length );
+        System.arraycopy ( packetB, 0, packetAB, packetA.length,
+			   packetB.length );
 	
         return packetAB;
     }
@@ -64,7 +60,7 @@ public class PacketUtils {
      *
      * @return The unsigned long representation of the signed int.
      */
-    public static synchronized long convertSignedIntToLong ( int intToConvert)
+    public static long convertSignedIntToLong ( int intToConvert)
     {
         int in = intToConvert;
         // IP: Removed
@@ -86,7 +82,7 @@ public class PacketUtils {
      *
      * @return The desired byte array which is populated with the long value.
      */
-    public static synchronized byte[] longToBytes ( long ldata, int n )
+    public static byte[] longToBytes ( long ldata, int n )
     {
         byte[] buff = new byte [ n ];
 	
@@ -99,6 +95,42 @@ public class PacketUtils {
         return buff;
     }
     
+    /**
+     * Seconds from the NTP epoch (1900) to the Java epoch (1970).
+     */
+    public static final long NTP_EPOCH_OFFSET = 2208988800L;
+
+    /**
+     * Convert a Java time to a 64 bit NTP timestamp, as used in RTCP sender
+     * reports.
+     *
+     * @param millis The time in milliseconds since 1970.
+     *
+     * @return The NTP timestamp, seconds in the upper 32 bits and the
+     *         fraction of a second in the lower 32 bits.
+     */
+    public static long toNtpTimestamp ( long millis )
+    {
+        long seconds = millis / 1000 + NTP_EPOCH_OFFSET;
+        long fraction = ( ( millis % 1000 ) << 32 ) / 1000;
+
+        return ( seconds << 32 ) | fraction;
+    }
+
+    /**
+     * Convert a Java time to the middle 32 bits of its NTP timestamp, which
+     * is what the LSR field of a reception report holds. The unit is
+     * 1/65536 seconds.
+     *
+     * @param millis The time in milliseconds since 1970.
+     *
+     * @return The compact NTP timestamp.
+     */
+    public static long toCompactNtp ( long millis )
+    {
+        return ( toNtpTimestamp ( millis ) >>> 16 ) & 0xFFFFFFFFL;
+    }
+
     /**
      * Calculate number of octets required to fit the
      * given number of octets into 32 bit boundary.
@@ -108,27 +140,12 @@ public class PacketUtils {
      * @return The required number of octets which must be appended to this
      *         packet to make it fit into a 32 bit boundary.
      */
-    public static synchronized int calculatePadLength 
+    public static int calculatePadLength 
 	( int lengthOfUnpaddedPacket ) {
 
         // Determine the number of 8 bit words required to fit the packet in
-	// 32 bit boundary
-        int remain = 
-	    (int) Math.IEEEremainder ( (double) lengthOfUnpaddedPacket , 
-				       (double) 4 );
-	
-        int padLen = 0;
-	
-        // e.g. remainder -1, then we need to pad 1 extra
-        // byte to the end to make it to the 32 bit boundary
-        if ( remain < 0 )
-            padLen = Math.abs ( remain );
-	
-        // e.g. remainder is +1 then we need to pad 3 extra bytes
-        else if ( remain > 0 )
-            padLen = 4-remain;
-	
-        return ( padLen );
+	// 32 bit boundary, e.g. a remainder of 1 needs 3 extra bytes
+        return ( ( 4 - ( lengthOfUnpaddedPacket & 3 ) ) & 3 );
 	
     }
     
@@ -34,7 +34,7 @@ public class RTCPThreadHandler extends java.lang.Object
      *   Reference to the RTCP Receiver Thread
      *
      */
-    private RTCPReceiverThread rtcpReceiverThread;
+    private volatile RTCPReceiverThread rtcpReceiverThread;
 
     /**
      *   Reference to the RTCP Sender Thread
@@ -50,6 +50,8 @@ public class RTCPThreadHandler extends java.lang.Object
     private java.net.MulticastSocket socket;
     private boolean symmetric;
 
+    private RtcpTransport transport;
+
     /**
      * Constructor creates the sender and receiver
      * threads. (Does not start the threads)
@@ -85,6 +87,24 @@ public class RTCPThreadHandler extends java.lang.Object
 	}
     }
 
+    /**
+     * Constructor for a session that sends its RTCP through a transport,
+     * such as the RTP socket when RTCP is multiplexed onto it. No socket is
+     * opened, and no receiver thread is run; received packets are given to
+     * packetReceived() instead.
+     *
+     * @param rtpSession The session to use
+     * @param transport The transport to send RTCP packets through
+     */
+    public RTCPThreadHandler (  Session rtpSession,
+				RtcpTransport transport
+				)
+    {
+	this.rtpSession = rtpSession;
+	this.transport = transport;
+	symmetric=true;
+    }
+
     /**
      * Starts the RTCP Sender thread.
      *
@@ -95,7 +115,10 @@ public class RTCPThreadHandler extends java.lang.Object
 					       int rtcpGroupPort)
     {
         // create an rtcpSender thread
-	if(symmetric) {
+	if(transport != null) {
+	    rtcpSenderThread =
+		new RTCPSenderThread ( rtpSession, transport );
+	} else if(symmetric) {
 	    rtcpSenderThread =
 		new RTCPSenderThread ( multicastGroupIPAddress,
 				       rtcpSendFromPort,
@@ -120,7 +143,10 @@ public class RTCPThreadHandler extends java.lang.Object
      */
     public void stopRTCPReceiverThread()
     {
-        rtcpReceiverThread.stop();
+        if (rtcpReceiverThread != null) {
+            rtcpReceiverThread.stop();
+            rtcpReceiverThread = null;
+        }
     }
 
     /**
@@ -132,7 +158,12 @@ public class RTCPThreadHandler extends java.lang.Object
 	(int rtcpGroupPort)
     {
         // create an rtcpReceiver thread
-	if(symmetric) {
+	if(transport != null) {
+	    // Packets are handed over by packetReceived(), so there is no
+	    // thread to start
+	    rtcpReceiverThread = new RTCPReceiverThread ( rtpSession );
+	    return;
+	} else if(symmetric) {
 	    rtcpReceiverThread =
 		new RTCPReceiverThread ( multicastGroupIPAddress,
 					 rtcpGroupPort,
@@ -149,6 +180,23 @@ public class RTCPThreadHandler extends java.lang.Object
         rtcpReceiverThread.start();
     }
 
+    /**
+     * Handles an RTCP packet received through the transport. Packets that
+     * arrive before the receiver is created or after it is stopped are
+     * dropped.
+     *
+     * @param data The buffer holding the compound packet
+     * @param offset The offset of the packet in data
+     * @param length The length of the packet
+     */
+    public void packetReceived(byte[] data, int offset, int length)
+    {
+	RTCPReceiverThread receiver = rtcpReceiverThread;
+	if (receiver != null) {
+	    receiver.packetReceived(data, offset, length);
+	}
+    }
+
     /**
      *   Interrupts a running RTCP sender thread.  This will
      *   cause the sender to send BYE packet and finally terminate.
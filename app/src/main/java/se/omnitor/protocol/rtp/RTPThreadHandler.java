@@ -19,6 +19,7 @@
 package se.omnitor.protocol.rtp;
 
 import se.omnitor.protocol.rtp.packets.RTPPacket;
+import gov.nist.util.Trace;
 
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -452,12 +453,7 @@ public class RTPThreadHandler implements Runnable {
             }
 
             //Update own status to Active Sender
-            Source s1 = rtpSession.getMySource();
-            s1.activeSender = true;
-            rtpSession.tc = rtpSession.currentTime();
-            rtpSession.timeOfLastRTPSent = rtpSession.currentTime();
-            rtpSession.packetCount++;
-            rtpSession.octetCount += packet.getPayloadData().length;
+            rtpSession.rtpPacketSent(packet.getPayloadData().length);
 
         }
         /*catch ( java.io.IOException e ) {
@@ -539,13 +535,8 @@ public class RTPThreadHandler implements Runnable {
                             ((buf[10] & 0xff) << 8) |
                             (buf[11] & 0xff));
 
-                    rtpSession.outprintln("RTP (");
-                    rtpSession.outprintln("ssrc=0x" +
-                                          Long.toHexString(ssrc) +
-                                          "\tts=" + timeStamp +
-                                          "\tseq=" + seqNo +
-                                          "\tpt=" + pt);
-                    rtpSession.outprintln(")");
+                    Trace.event(Trace.DEBUG, Trace.RTP_RECEIVED,
+                                ssrc & 0xffffffffL, seqNo & 0xffff);
 
                     // Create a RTPPacket and post it with Session.
                     // If there are any interested actionListeners, they will
@@ -574,27 +565,9 @@ public class RTPThreadHandler implements Runnable {
                         }
                     }
 
-                    // Get the source corresponding to this SSRC
-                    Source rtpSource = rtpSession.getSource(ssrc);
-
-                    //Set teh Active Sender Property to true
-                    rtpSource.activeSender = true;
-
-                    //Set the time of last RTP Arrival
-                    rtpSource.timeOfLastRTPArrival =
-                            rtpSession.tc = rtpSession.currentTime();
-
-                    //Update the sequence number
-                    rtpSource.updateSeq(seqNo);
-
-                    // if this is the first RTP Packet Received from this
-                    // source then store the seq no. as its base
-                    if (rtpSource.noOfRTPPacketsRcvd == 0) {
-                        rtpSource.base_seq = seqNo;
-                    }
-
-                    // Increment the total number of RTP Packets Received
-                    rtpSource.noOfRTPPacketsRcvd++;
+                    // Update the statistics of the source of this SSRC
+                    rtpSession.rtpPacketReceived(ssrc, seqNo & 0xffff,
+                            timeStamp & 0xffffffffL);
                 } else {
                     //System.err.println
                     //	("RTP Receiver: Bad RTP Packet received");
@@ -637,10 +610,8 @@ public class RTPThreadHandler implements Runnable {
      */
     public void stop() {
         if (thisThread != null) {
+            // Closing the receive socket below releases the thread
             thisThread.setState(StateThread.STOP);
-            if (thisThread != null) { 
-            	thisThread.interrupt();
-            }
         }
 
         if (m_sockSend != null) {
@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2004-2008  University of Wisconsin-Madison and Omnitor AB
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package se.omnitor.protocol.rtp;
+
+/**
+ * Reads compound RTCP packets where they were received, without copying
+ * them. <br>
+ * <br>
+ * The parser is pointed at a received datagram with wrap(), which checks
+ * the compound packet as in RFC 3550 appendix A.2. Then next() steps
+ * through the RTCP packets in it, and the getters read fields of the
+ * current packet straight out of the datagram. SDES items are stepped
+ * through with nextItem() in the same way. Nothing is allocated, so one
+ * parser can be reused for every packet a session receives. A parser is
+ * not thread safe. <br>
+ *
+ * @author Unknown
+ */
+public class RtcpParser
+{
+    private byte[] data;
+    private int end;
+
+    /**
+     *   Whether reduced-size packets (RFC 5506) are accepted.
+     */
+    private boolean reducedSize = false;
+
+    /**
+     *   Start of the current RTCP packet, and of the one after it.
+     */
+    private int packetStart;
+    private int packetEnd;
+
+    /**
+     *   The current SDES item, and where the next one starts.
+     */
+    private int itemStart;
+    private int itemEnd;
+
+    /**
+     * Sets whether reduced-size RTCP packets (RFC 5506) are accepted. Then
+     * the first packet may be of any type, since a reduced-size packet is
+     * not a compound packet.
+     *
+     * @param reducedSize true to accept reduced-size packets
+     */
+    public void setReducedSize(boolean reducedSize)
+    {
+	this.reducedSize = reducedSize;
+    }
+
+    /**
+     * Points the parser at a compound RTCP packet and checks it. The
+     * version must be 2 throughout, the first packet must be an SR or RR
+     * without padding unless reduced-size packets are accepted, and the
+     * packet lengths must add up to the length of the compound packet.
+     *
+     * @param data The received data
+     * @param offset Where the compound packet starts
+     * @param length The length of the compound packet
+     *
+     * @return true if the compound packet is valid. If not, next() returns
+     * false at once.
+     */
+    public boolean wrap(byte[] data, int offset, int length)
+    {
+	this.data = data;
+	this.end = offset + length;
+	this.packetStart = offset;
+	this.packetEnd = offset;
+
+	if (length < 8) {
+	    end = offset;
+	    return false;
+	}
+
+	int first = data[offset] & 0xff;
+	int pt = data[offset + 1] & 0xff;
+	if (!reducedSize &&
+	    ((pt != RTCPConstants.RTCP_SR && pt != RTCPConstants.RTCP_RR) ||
+	     (first & 0x20) != 0)) {
+	    end = offset;
+	    return false;
+	}
+
+	int position = offset;
+	while (position + 4 <= end) {
+	    if (((data[position] & 0xff) >> 6) != RTCPConstants.VERSION) {
+		break;
+	    }
+	    position += (readShort(position + 2) + 1) * 4;
+	}
+	if (position != end) {
+	    end = offset;
+	    return false;
+	}
+	return true;
+    }
+
+    /**
+     * Moves to the next RTCP packet in the compound packet. Packets too
+     * short for their type and count are skipped, so the getters of the
+     * current packet never read past it.
+     *
+     * @return false if there are no more
+     */
+    public boolean next()
+    {
+	do {
+	    packetStart = packetEnd;
+	    if (packetStart + 4 > end) {
+		return false;
+	    }
+	    packetEnd = packetStart + (readShort(packetStart + 2) + 1) * 4;
+	} while (packetEnd - packetStart < getMinimumLength());
+	itemEnd = packetStart + 8;
+	return true;
+    }
+
+    /**
+     * Gets the packet type of the current packet, see RTCPConstants.
+     *
+     * @return The packet type
+     */
+    public int getPacketType()
+    {
+	return data[packetStart + 1] & 0xff;
+    }
+
+    /**
+     * Gets the count field of the current packet, which is the number of
+     * report blocks, SDES chunks or BYE SSRCs, depending on its type.
+     *
+     * @return The count
+     */
+    public int getCount()
+    {
+	return data[packetStart] & 0x1f;
+    }
+
+    /**
+     * Gets the length of the current packet.
+     *
+     * @return The length in bytes, including the header
+     */
+    public int getPacketLength()
+    {
+	return packetEnd - packetStart;
+    }
+
+    /**
+     * Gets the SSRC of the sender of an SR or RR, or the first SSRC of an
+     * SDES or BYE.
+     *
+     * @return The SSRC
+     */
+    public long getSsrc()
+    {
+	return readInt(packetStart + 4);
+    }
+
+    /**
+     * Checks whether the current SR has its sender info.
+     *
+     * @return true if it has
+     */
+    public boolean hasSenderInfo()
+    {
+	return getPacketType() == RTCPConstants.RTCP_SR &&
+	    getPacketLength() >= 28;
+    }
+
+    /**
+     * Gets the NTP timestamp of the current SR.
+     *
+     * @return The 64 bit NTP timestamp
+     */
+    public long getNtpTimeStamp()
+    {
+	return (readInt(packetStart + 8) << 32) | readInt(packetStart + 12);
+    }
+
+    /**
+     * Gets the middle 32 bits of the NTP timestamp of the current SR, which
+     * are what reports about it echo as LSR.
+     *
+     * @return The compact NTP timestamp
+     */
+    public long getCompactNtpTimeStamp()
+    {
+	return readInt(packetStart + 10);
+    }
+
+    /**
+     * Gets the RTP timestamp of the current SR.
+     *
+     * @return The RTP timestamp
+     */
+    public long getRtpTimeStamp()
+    {
+	return readInt(packetStart + 16);
+    }
+
+    /**
+     * Gets the sender's packet count of the current SR.
+     *
+     * @return The packet count
+     */
+    public long getSenderPacketCount()
+    {
+	return readInt(packetStart + 20);
+    }
+
+    /**
+     * Gets the sender's octet count of the current SR.
+     *
+     * @return The octet count
+     */
+    public long getSenderOctetCount()
+    {
+	return readInt(packetStart + 24);
+    }
+
+    /**
+     * Gets the number of complete report blocks in the current SR or RR.
+     * This is normally getCount(), but never more than fit in the packet.
+     *
+     * @return The number of report blocks
+     */
+    public int getReportBlockCount()
+    {
+	int fits = (packetEnd - reportBlockStart(0)) /
+	    RtcpWriter.REPORT_BLOCK_SIZE;
+	return Math.max(0, Math.min(getCount(), fits));
+    }
+
+    /**
+     * Gets the SSRC a report block is about.
+     *
+     * @param block The index of the report block
+     * @return The SSRC
+     */
+    public long getBlockSsrc(int block)
+    {
+	return readInt(reportBlockStart(block));
+    }
+
+    /**
+     * Gets the fraction lost of a report block.
+     *
+     * @param block The index of the report block
+     * @return The fraction lost, in 256ths
+     */
+    public int getBlockFractionLost(int block)
+    {
+	return data[reportBlockStart(block) + 4] & 0xff;
+    }
+
+    /**
+     * Gets the cumulative number of packets lost of a report block.
+     *
+     * @param block The index of the report block
+     * @return The number of packets lost, which may be negative
+     */
+    public long getBlockCumulativeLost(int block)
+    {
+	// Signed 24 bits
+	return (readInt(reportBlockStart(block) + 4) << 40) >> 40;
+    }
+
+    /**
+     * Gets the extended highest sequence number received of a report
+     * block.
+     *
+     * @param block The index of the report block
+     * @return The extended highest sequence number
+     */
+    public long getBlockExtendedHighestSeq(int block)
+    {
+	return readInt(reportBlockStart(block) + 8);
+    }
+
+    /**
+     * Gets the interarrival jitter of a report block.
+     *
+     * @param block The index of the report block
+     * @return The jitter, in RTP timestamp units
+     */
+    public long getBlockJitter(int block)
+    {
+	return readInt(reportBlockStart(block) + 12);
+    }
+
+    /**
+     * Gets the last SR timestamp (LSR) of a report block.
+     *
+     * @param block The index of the report block
+     * @return The LSR
+     */
+    public long getBlockLastSr(int block)
+    {
+	return readInt(reportBlockStart(block) + 16);
+    }
+
+    /**
+     * Gets the delay since last SR (DLSR) of a report block.
+     *
+     * @param block The index of the report block
+     * @return The DLSR, in 1/65536 seconds
+     */
+    public long getBlockDelayLastSr(int block)
+    {
+	return readInt(reportBlockStart(block) + 20);
+    }
+
+    /**
+     * Moves to the next item of the first chunk of the current SDES.
+     *
+     * @return false if there are no more
+     */
+    public boolean nextItem()
+    {
+	itemStart = itemEnd;
+	if (itemStart + 2 > packetEnd ||
+	    data[itemStart] == RTCPConstants.RTCP_SDES_END) {
+	    return false;
+	}
+	itemEnd = itemStart + 2 + (data[itemStart + 1] & 0xff);
+	return itemEnd <= packetEnd;
+    }
+
+    /**
+     * Gets the type of the current SDES item, see RTCPConstants.
+     *
+     * @return The item type
+     */
+    public int getItemType()
+    {
+	return data[itemStart] & 0xff;
+    }
+
+    /**
+     * Gets where the value of the current SDES item starts in the data.
+     *
+     * @return The offset of the value
+     */
+    public int getItemOffset()
+    {
+	return itemStart + 2;
+    }
+
+    /**
+     * Gets the length of the value of the current SDES item.
+     *
+     * @return The length in bytes
+     */
+    public int getItemLength()
+    {
+	return data[itemStart + 1] & 0xff;
+    }
+
+    /**
+     * Gets the number of SSRCs in the current BYE that fit in the packet.
+     *
+     * @return The number of SSRCs
+     */
+    public int getByeSsrcCount()
+    {
+	return Math.min(getCount(), (packetEnd - packetStart - 4) / 4);
+    }
+
+    /**
+     * Gets one of the SSRCs in the current BYE.
+     *
+     * @param index The index of the SSRC
+     * @return The SSRC
+     */
+    public long getByeSsrc(int index)
+    {
+	return readInt(packetStart + 4 + index * 4);
+    }
+
+    /**
+     * Gets where the reason for leaving of the current BYE starts in the
+     * data. This is never past the end of the packet.
+     *
+     * @return The offset of the reason
+     */
+    public int getByeReasonOffset()
+    {
+	return Math.min(byeReasonLengthOffset() + 1, packetEnd);
+    }
+
+    /**
+     * Gets the length of the reason for leaving of the current BYE.
+     *
+     * @return The length in bytes, 0 if there is none
+     */
+    public int getByeReasonLength()
+    {
+	int lengthOffset = byeReasonLengthOffset();
+	if (lengthOffset >= packetEnd) {
+	    return 0;
+	}
+	return Math.min(data[lengthOffset] & 0xff,
+			packetEnd - lengthOffset - 1);
+    }
+
+    /**
+     * Gets the data the parser reads from, to read SDES items and BYE
+     * reasons out of.
+     *
+     * @return The data
+     */
+    public byte[] getData()
+    {
+	return data;
+    }
+
+    private int byeReasonLengthOffset()
+    {
+	return packetStart + 4 + getByeSsrcCount() * 4;
+    }
+
+    /**
+     * Gets the shortest the current packet can be for its type and count:
+     * SR and RR need room for their report blocks, SDES for the SSRC of its
+     * first chunk, BYE for its SSRCs and APP for its SSRC and name.
+     */
+    private int getMinimumLength()
+    {
+	switch (getPacketType()) {
+	case RTCPConstants.RTCP_SR:
+	    return 28 + getCount() * RtcpWriter.REPORT_BLOCK_SIZE;
+	case RTCPConstants.RTCP_RR:
+	    return 8 + getCount() * RtcpWriter.REPORT_BLOCK_SIZE;
+	case RTCPConstants.RTCP_SDES:
+	    return getCount() == 0 ? 4 : 8;
+	case RTCPConstants.RTCP_BYE:
+	    return 4 + getCount() * 4;
+	case RTCPConstants.RTCP_APP:
+	    return 12;
+	default:
+	    return 4;
+	}
+    }
+
+    private int reportBlockStart(int block)
+    {
+	int start = packetStart + 8;
+	if (getPacketType() == RTCPConstants.RTCP_SR) {
+	    start += 20;
+	}
+	return start + block * RtcpWriter.REPORT_BLOCK_SIZE;
+    }
+
+    private int readShort(int offset)
+    {
+	return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    private long readInt(int offset)
+    {
+	return ((long) (data[offset] & 0xff) << 24) |
+	    ((data[offset + 1] & 0xff) << 16) |
+	    ((data[offset + 2] & 0xff) << 8) |
+	    (data[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2004-2008  University of Wisconsin-Madison and Omnitor AB
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package se.omnitor.protocol.rtp;
+
+import java.io.IOException;
+
+/**
+ * Sends RTCP packets for a session that does not have an RTCP socket of
+ * its own, such as one that multiplexes RTCP onto the RTP port as in
+ * RFC 5761. Packets received the same way are given to the session with
+ * Session.rtcpPacketReceived(). <br>
+ *
+ * @author Unknown
+ */
+public interface RtcpTransport
+{
+    /**
+     * Sends a compound RTCP packet to the remote host.
+     *
+     * @param data The buffer holding the packet
+     * @param offset The offset of the packet in data
+     * @param length The length of the packet
+     *
+     * @throws IOException If the packet could not be sent
+     */
+    public void send(byte[] data, int offset, int length) throws IOException;
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2004-2008  University of Wisconsin-Madison and Omnitor AB
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package se.omnitor.protocol.rtp;
+
+/**
+ * Writes compound RTCP packets straight into one buffer, which is reused for
+ * every packet. <br>
+ * <br>
+ * A compound packet is started with reset(). Each RTCP packet in it is
+ * started with one of the begin methods, filled in, and then ended, which
+ * writes its count and length into its header. Nothing is allocated once
+ * the writer exists, so one writer can send the reports of a session for as
+ * long as it runs. A writer is not thread safe. <br>
+ *
+ * @author Unknown
+ */
+public class RtcpWriter
+{
+    /**
+     *   Largest compound packet written: an SR with 31 report blocks
+     *   (772 bytes), an SDES with full length CNAME and EMAIL items (528)
+     *   and a BYE with a full length reason (268).
+     */
+    public static final int MAX_PACKET_SIZE = 1568;
+
+    /**
+     *   Size of a reception report block.
+     */
+    public static final int REPORT_BLOCK_SIZE = 24;
+
+    /**
+     *   Most reception report blocks, or SSRCs in a BYE, in one packet.
+     */
+    public static final int MAX_COUNT = 31;
+
+    private final byte[] buffer = new byte[MAX_PACKET_SIZE];
+
+    /**
+     *   Bytes written so far.
+     */
+    private int length = 0;
+
+    /**
+     *   Start of the RTCP packet being written.
+     */
+    private int packetStart = 0;
+
+    /**
+     *   Count field of the RTCP packet being written.
+     */
+    private int count = 0;
+
+    /**
+     * Starts a new compound packet, throwing away what was written.
+     *
+     */
+    public void reset()
+    {
+	length = 0;
+	packetStart = 0;
+	count = 0;
+    }
+
+    /**
+     * Gets the buffer the compound packet is written to. Only the first
+     * getLength() bytes are valid.
+     *
+     * @return The buffer
+     */
+    public byte[] getBuffer()
+    {
+	return buffer;
+    }
+
+    /**
+     * Gets the length of the compound packet written so far.
+     *
+     * @return The length in bytes
+     */
+    public int getLength()
+    {
+	return length;
+    }
+
+    /**
+     * Starts a sender report (SR), with the sender info. Reception report
+     * blocks may follow, then endPacket() must be called.
+     *
+     * @param ssrc The SSRC of the sender
+     * @param ntpTimeStamp The 64 bit NTP timestamp of the report
+     * @param rtpTimeStamp The RTP timestamp of the report
+     * @param packetCount The number of RTP packets sent
+     * @param octetCount The number of RTP payload octets sent
+     */
+    public void beginSenderReport(long ssrc, long ntpTimeStamp,
+				  long rtpTimeStamp, long packetCount,
+				  long octetCount)
+    {
+	beginPacket(RTCPConstants.RTCP_SR);
+	writeInt(ssrc);
+	writeInt(ntpTimeStamp >>> 32);
+	writeInt(ntpTimeStamp);
+	writeInt(rtpTimeStamp);
+	writeInt(packetCount);
+	writeInt(octetCount);
+    }
+
+    /**
+     * Starts a receiver report (RR). Reception report blocks may follow,
+     * then endPacket() must be called.
+     *
+     * @param ssrc The SSRC of the sender of the report
+     */
+    public void beginReceiverReport(long ssrc)
+    {
+	beginPacket(RTCPConstants.RTCP_RR);
+	writeInt(ssrc);
+    }
+
+    /**
+     * Checks whether one more reception report block fits in the report
+     * being written.
+     *
+     * @return true if it fits
+     */
+    public boolean hasRoomForReportBlock()
+    {
+	return count < MAX_COUNT;
+    }
+
+    /**
+     * Writes a reception report block about a source into the report being
+     * written. The statistics of the source must be up to date, see
+     * Source.updateStatistics().
+     *
+     * @param source The source the block is about
+     */
+    public void writeReportBlock(Source source)
+    {
+	writeInt(source.ssrc);
+	writeByte((int) source.fraction);
+	writeByte((int) (source.lost >> 16));
+	writeByte((int) (source.lost >> 8));
+	writeByte((int) source.lost);
+	writeInt(source.last_seq);
+	writeInt(source.jitter);
+	writeInt(source.lst);
+	writeInt((long) source.dlsr);
+	count++;
+    }
+
+    /**
+     * Writes a source description (SDES) packet with one chunk, for the
+     * sender's own SSRC. This does not need endPacket().
+     *
+     * @param ssrc The SSRC of the sender
+     * @param cname The CNAME item, at most 255 bytes
+     * @param email The EMAIL item, or null to leave it out
+     */
+    public void writeSourceDescription(long ssrc, byte[] cname, byte[] email)
+    {
+	beginPacket(RTCPConstants.RTCP_SDES);
+	count = 1;
+	writeInt(ssrc);
+	writeItem(RTCPConstants.RTCP_SDES_CNAME, cname);
+	if (email != null) {
+	    writeItem(RTCPConstants.RTCP_SDES_EMAIL, email);
+	}
+
+	// The item list ends with at least one null octet, up to the next
+	// 32 bit boundary
+	do {
+	    writeByte(RTCPConstants.RTCP_SDES_END);
+	} while ((length & 3) != 0);
+	endPacket();
+    }
+
+    /**
+     * Writes a BYE packet for the sender's own SSRC. This does not need
+     * endPacket().
+     *
+     * @param ssrc The SSRC of the sender
+     * @param reason The reason for leaving, or null for none. Only the first
+     * 255 bytes are written.
+     */
+    public void writeBye(long ssrc, byte[] reason)
+    {
+	beginPacket(RTCPConstants.RTCP_BYE);
+	count = 1;
+	writeInt(ssrc);
+	if (reason != null) {
+	    int reasonLength = Math.min(reason.length, 255);
+
+	    writeByte(reasonLength);
+	    System.arraycopy(reason, 0, buffer, length, reasonLength);
+	    length += reasonLength;
+	    while ((length & 3) != 0) {
+		writeByte(0);
+	    }
+	}
+	endPacket();
+    }
+
+    /**
+     * Ends the RTCP packet being written, filling in its count and length.
+     *
+     */
+    public void endPacket()
+    {
+	buffer[packetStart] |= (byte) (count & 0x1F);
+
+	// Length is in 32 bit words minus one, including the header
+	int words = (length - packetStart) / 4 - 1;
+	buffer[packetStart + 2] = (byte) (words >> 8);
+	buffer[packetStart + 3] = (byte) words;
+    }
+
+    private void beginPacket(int packetType)
+    {
+	packetStart = length;
+	count = 0;
+	writeByte((RTCPConstants.VERSION << 6) |
+		  (RTCPConstants.PADDING << 5));
+	writeByte(packetType);
+	writeByte(0);
+	writeByte(0);
+    }
+
+    private void writeItem(byte type, byte[] value)
+    {
+	int valueLength = Math.min(value.length, 255);
+
+	writeByte(type);
+	writeByte(valueLength);
+	System.arraycopy(value, 0, buffer, length, valueLength);
+	length += valueLength;
+    }
+
+    private void writeByte(int value)
+    {
+	buffer[length++] = (byte) value;
+    }
+
+    private void writeInt(long value)
+    {
+	buffer[length++] = (byte) (value >> 24);
+	buffer[length++] = (byte) (value >> 16);
+	buffer[length++] = (byte) (value >> 8);
+	buffer[length++] = (byte) value;
+    }
+}
@@ -29,7 +29,7 @@ import se.omnitor.protocol.rtp.packets.RTCPSDESPacket;
 import se.omnitor.protocol.rtp.packets.RTCPSenderReportPacket;
 import se.omnitor.protocol.rtp.packets.RTP_actionListener;
 import se.omnitor.protocol.rtp.packets.RTPPacket;
-import se.omnitor.protocol.rtp.text.RtpTextDePacketizer;
+import se.omnitor.protocol.rtp.text.RtpTextDemultiplexer;
 import se.omnitor.util.FifoBuffer;
 import se.omnitor.protocol.rtp.text.RtpTextBuffer;
 
@@ -42,7 +42,7 @@ import se.omnitor.protocol.rtp.text.RtpTextBuffer;
  */
 public class RtpTextReceiver implements RTP_actionListener, RTCP_actionListener {
 
-    private RtpTextDePacketizer textDePacketizer;
+    private RtpTextDemultiplexer textDemultiplexer;
 
     private int localPort;
 
@@ -77,7 +77,7 @@ public class RtpTextReceiver implements RTP_actionListener, RTCP_actionListener
         this.localPort = localPort;
 		this.dataBuffer = dataBuffer;
 
-		textDePacketizer = new RtpTextDePacketizer(t140PayloadType,
+		textDemultiplexer = new RtpTextDemultiplexer(t140PayloadType,
 						   redPayloadType,
 						   redFlagIncoming);
 
@@ -123,15 +123,39 @@ public class RtpTextReceiver implements RTP_actionListener, RTCP_actionListener
 		inBuffer.setOffset(0);
 		inBuffer.setSsrc(rtpPacket.getSsrc());
 
-		textDePacketizer.decode(inBuffer, outBuffer);
+		textDemultiplexer.decode(inBuffer, outBuffer);
 
 		rtpPacket.setPayloadData(null);
-		byte[] datap = outBuffer.getData();
+		deliver(outBuffer.getData());
+    }
 
+    /**
+     * Handles an RTCP BYE for a stream, or its end known some other way.
+     * Text still held for the stream is put into the buffer.
+     *
+     * @param ssrc The SSRC of the stream that left
+     */
+    public void sourceLeft(long ssrc)
+    {
+		RtpTextBuffer outBuffer = new RtpTextBuffer();
+		textDemultiplexer.sourceLeft(ssrc, outBuffer);
+		deliver(outBuffer.getData());
+    }
+
+    /**
+     * Puts depacketized text into the buffer.
+     *
+     * @param datap The text, which may be empty
+     */
+    private void deliver(byte[] datap)
+    {
 		//EZ: T140 redundancy filter
-		byte[] data = redFilter.filterInput(datap);
+		int length = redFilter.filterInput(datap, 0,
+						   (datap == null) ? 0 : datap.length);
 
-        if (data != null) {
+        if (length > 0) {
+			byte[] data = new byte[length];
+			System.arraycopy(redFilter.getOutput(), 0, data, 0, length);
 			logger.finest("Data to buffer: " + new String(data));
 			dataBuffer.setData(data);
 		}
@@ -179,11 +203,12 @@ public class RtpTextReceiver implements RTP_actionListener, RTCP_actionListener
     }
 
     /**
-     * Does nothing. This is just an implementation of the RTCP_actionListener
+     * Ends the stream of the source that sent the BYE.
      *
      * @param byepkt The incoming packet
      */
     public void handleRTCPEvent ( RTCPBYEPacket byepkt) {
+	sourceLeft(byepkt.getSsrc());
     }
 
     /**
@@ -23,10 +23,14 @@ import android.util.Log;
 import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import gov.nist.jrtp.RtpException;
 import gov.nist.jrtp.RtpPacket;
 import gov.nist.jrtp.RtpSession;
+import gov.nist.util.Trace;
 import se.omnitor.protocol.rtp.Session;
 import se.omnitor.protocol.rtp.StateThread;
 import se.omnitor.protocol.rtp.packets.RTPPacket;
@@ -47,8 +51,12 @@ import java.util.logging.Logger;
 public class RtpTextTransmitter implements Runnable {
 
 	private StateThread thisThread = null;
+	private ScheduledExecutorService scheduler = null;
+	private ScheduledFuture<?> scheduledTask = null;
+	private volatile boolean tickArmed = false;
 	//private SendThread sender;
 	private RtpSession session;
+	private Session rtcpSession = null;
 	private RtpTextPacketizer textPacketizer;
 
 	private String ipAddress;
@@ -66,9 +74,26 @@ public class RtpTextTransmitter implements Runnable {
 
 	private int redundantT140Generations = 0;
 
+	// Adaptive redundancy. The remote end's reports pick how many of the
+	// redundant generations are sent, see setRemoteReception().
+	private static final float MEDIUM_LOSS_FRACTION = 0.01f;
+	private static final float HIGH_LOSS_FRACTION = 0.05f;
+	private static final long HIGH_JITTER = 200; // ms, the T.140 clock
+	private static final int REPORTS_BEFORE_DECREASE = 3;
+	private int activeGenerations = 0;
+	private int goodReports = 0;
+
 	//EZ: SSRC
 	private long ssrc = 0;
 
+	private long lastSentTime = 0;
+
+	// Reused for every packet, since only one thread sends at a time
+	private RtpTextBuffer inBuffer = new RtpTextBuffer();
+	private RtpTextBuffer outBuffer = new RtpTextBuffer();
+	private RTPPacket outputPacket = new RTPPacket();
+	private RtpPacket convertedPacket = new RtpPacket();
+
 	// declare package and classname
 	public final static String CLASS_NAME = RtpTextTransmitter.class.getName();
 	// get an instance of Logger
@@ -130,28 +155,10 @@ public class RtpTextTransmitter implements Runnable {
 				(redFlagOutgoing, redundantT140Generations);
 		}
 
-		// Calculate new buffertime and cpp according to cps
-		/*
-	if (cps > 0) {
-	    cpp = (int)Math.round((double)cps * (double)bufferTime/1000.0);
-	    if (cpp == 0) {
-		cpp = 1;
-	    }
-	    this.bufferTime =
-		Math.round(1000.0 * (double)cpp / (double)cps);
-
-	    useCpp = true;
-	}
-	else {
-	    this.bufferTime = bufferTime;
-	    cpp = 100;
-	    useCpp = false;
-	}
-		 */
-
 		textPacketizer = new RtpTextPacketizer(t140PayloadType,
 				redPayloadType,
 				redundantT140Generations);
+		activeGenerations = redFlagOutgoing ? redundantT140Generations : 0;
 
 		/*if (redFlagOutgoing) {
 			rtpSession.setSendPayloadType(redPayloadType);
@@ -252,94 +259,26 @@ public class RtpTextTransmitter implements Runnable {
 		// log when entering a method
 		logger.entering(CLASS_NAME, METHOD);
 
-		RTPPacket outputPacket;
 		byte[] data;
 
-		RtpTextBuffer inBuffer;
-		RtpTextBuffer outBuffer;
-
-		long lastSentTime = 0;
-		long timeNow = 0;
-		int bufferTime;
-
 		logger.logp(Level.FINEST, CLASS_NAME, METHOD, "is using redundacy:" + redFlagOutgoing);
 
 		dataBuffer.start();
 		dataBuffer.setData(TextConstants.ZERO_WIDTH_NO_BREAK_SPACE);
 
-		bufferTime = dataBuffer.getBufferTime();
-
 		while (thisThread.checkState() != StateThread.STOP) {
 
-			outputPacket = new RTPPacket();
-
 			// Catch data from buffer
 			try {
 				data = dataBuffer.getData();
 
-				for (int cnt5=0; cnt5<data.length; cnt5++) {
-					logger.logp(Level.FINEST, CLASS_NAME, METHOD, "data fetched from buffer, element " + cnt5 + " was '" + data[cnt5] + "' from buffer");
-				}
-
 				if (data.length > 0 || redFlagOutgoing) {
 
 					if (thisThread.checkState() == StateThread.STOP) {
 						break;
 					}
 
-					//EZ: Add T.140 redundancy
-					if (redundantT140Generations > 0) {
-						data = redFilter.addRedundancy(data);
-					}
-
-					inBuffer = new RtpTextBuffer();
-					inBuffer.setData(data);
-					if (data == null) {
-						inBuffer.setLength(0);
-					} else {
-						inBuffer.setLength(data.length);
-					}
-
-					outBuffer = new RtpTextBuffer();
-
-					textPacketizer.encode(inBuffer, outBuffer);
-					timeNow = outBuffer.getTimeStamp();
-
-					//EZ: Mark packets after idle period of bufferTime.
-					//    Allow an additional 250 ms for processing.
-					//    Also mark first packet.
-					//    Ignores time wraparounds.
-					if ((timeNow - lastSentTime) > (bufferTime + 250)) {
-						outBuffer.setMarker(true);
-					} else {
-						outBuffer.setMarker(false);
-					}
-					lastSentTime = timeNow;
-
-					// Temp: adding zero at end. This will be removed.
-					if (isEconf351Client) {
-						byte[] dataToSend = outBuffer.getData();
-						byte[] newData = new byte[dataToSend.length + 1];
-						System.arraycopy(dataToSend, 0, newData, 0,
-								dataToSend.length);
-						newData[dataToSend.length] = 0;
-						outBuffer.setData(newData);
-					}
-					outputPacket.setPayloadData(outBuffer.getData());
-					outputPacket.setTimeStamp(outBuffer.getTimeStamp());
-					outputPacket.setSequenceNumber(outBuffer.
-							getSequenceNumber());
-					outputPacket.setMarker(outBuffer.getMarker());
-					outputPacket.setSsrc(ssrc);
-
-					RtpPacket convertedPacket = convertPacket(outputPacket);
-
-					try {
-						session.sendRtpPacket(convertedPacket);
-					} catch (Exception e) {
-						Log.e("RtpTextTransmitter", "Packet not sent, probably lost");
-						e.printStackTrace();
-					}
+					sendData(data);
 				}
 
 			}
@@ -354,8 +293,263 @@ public class RtpTextTransmitter implements Runnable {
 		logger.exiting(CLASS_NAME, METHOD);
 	}
 
-	private RtpPacket convertPacket(RTPPacket packet) {
-		RtpPacket converted = new RtpPacket();
+	/**
+	 * Packetizes data from the buffer and sends it.
+	 *
+	 * @param data The data, which may be empty when only redundancy is
+	 * sent.
+	 */
+	private void sendData(byte[] data) {
+		byte[] payload;
+		int payloadLength;
+		int dataLength = (data == null) ? 0 : data.length;
+		long timeNow;
+		int bufferTime = dataBuffer.getBufferTime();
+
+		Trace.event(Trace.DEBUG, Trace.TEXT_TAKEN, dataLength, ssrc);
+
+		//EZ: Add T.140 redundancy
+		if (redundantT140Generations > 0) {
+			dataLength = redFilter.addRedundancy(data, dataLength);
+			data = redFilter.getOutput();
+		}
+
+		inBuffer.setData(data);
+		inBuffer.setLength(dataLength);
+
+		textPacketizer.encode(inBuffer, outBuffer);
+		timeNow = outBuffer.getTimeStamp();
+
+		//EZ: Mark packets after idle period of bufferTime.
+		//    Allow an additional 250 ms for processing.
+		//    Also mark first packet.
+		//    Ignores time wraparounds.
+		if ((timeNow - lastSentTime) > (bufferTime + 250)) {
+			outBuffer.setMarker(true);
+		} else {
+			outBuffer.setMarker(false);
+		}
+		lastSentTime = timeNow;
+
+		// The packetizer reuses its packet buffer, so only the first
+		// payloadLength bytes are this packet.
+		payload = outBuffer.getData();
+		payloadLength = outBuffer.getLength();
+
+		// Temp: adding zero at end. This will be removed.
+		if (isEconf351Client) {
+			byte[] newData = new byte[payloadLength + 1];
+			System.arraycopy(payload, 0, newData, 0,
+					payloadLength);
+			newData[payloadLength] = 0;
+			payload = newData;
+			payloadLength++;
+		}
+		outputPacket.setPayloadData(payload);
+		outputPacket.setTimeStamp(outBuffer.getTimeStamp());
+		outputPacket.setSequenceNumber(outBuffer.
+				getSequenceNumber());
+		outputPacket.setMarker(outBuffer.getMarker());
+		outputPacket.setSsrc(ssrc);
+
+		convertPacket(outputPacket, payloadLength);
+
+		try {
+			session.sendRtpPacket(convertedPacket);
+			if (rtcpSession != null) {
+				rtcpSession.rtpPacketSent(payloadLength);
+			}
+		} catch (Exception e) {
+			Log.e("RtpTextTransmitter", "Packet not sent, probably lost");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sets the session that sends RTCP for this transmitter's RTP, so its
+	 * sender reports count the packets sent. Must be called before
+	 * transmission starts.
+	 *
+	 * @param rtcpSession The session, created with this transmitter's SSRC.
+	 */
+	public void setRtcpSession(Session rtcpSession) {
+		this.rtcpSession = rtcpSession;
+	}
+
+	/**
+	 * Adapts the number of redundant generations sent to what the remote
+	 * end reports about our packets, typically in RTCP receiver reports.
+	 * Until the first report all generations are sent. Loss or high jitter
+	 * raises the number at once, and it is lowered one generation at a
+	 * time after a few reports that would allow it, so a short clean spell
+	 * in a lossy call does not leave text unprotected. On a clean link
+	 * this ends with no redundant generations at all. <br>
+	 * <br>
+	 * The RED payload type is kept throughout, and the RED headers tell
+	 * the remote end how many generations each packet has, so nothing has
+	 * to be renegotiated.
+	 *
+	 * @param fractionLost The fraction of our packets lost, from 0 to 1
+	 * @param jitter The interarrival jitter of our packets, in ms
+	 */
+	public synchronized void setRemoteReception(float fractionLost,
+			long jitter) {
+		if (!redFlagOutgoing || redundantT140Generations == 0) {
+			return;
+		}
+
+		int wanted;
+		if (fractionLost >= HIGH_LOSS_FRACTION) {
+			wanted = redundantT140Generations;
+		}
+		else if (fractionLost >= MEDIUM_LOSS_FRACTION) {
+			wanted = 2;
+		}
+		else if (fractionLost > 0 || jitter >= HIGH_JITTER) {
+			wanted = 1;
+		}
+		else {
+			wanted = 0;
+		}
+		wanted = Math.min(wanted, redundantT140Generations);
+
+		if (wanted >= activeGenerations) {
+			goodReports = 0;
+			if (wanted == activeGenerations) {
+				return;
+			}
+			activeGenerations = wanted;
+		}
+		else if (++goodReports >= REPORTS_BEFORE_DECREASE) {
+			goodReports = 0;
+			activeGenerations--;
+		}
+		else {
+			return;
+		}
+
+		logger.logp(Level.FINE, CLASS_NAME, "setRemoteReception()",
+				"redundant generations", Integer.valueOf(activeGenerations));
+		textPacketizer.setActiveGenerations(activeGenerations);
+		dataBuffer.setRedGen(activeGenerations);
+	}
+
+	/**
+	 * Gets the number of redundant generations currently sent.
+	 *
+	 * @return The number of generations, 0 if redundancy is not used
+	 */
+	public synchronized int getRedundantGenerations() {
+		return activeGenerations;
+	}
+
+	/**
+	 * Gets the SSRC the RTP packets are sent with.
+	 *
+	 * @return The SSRC
+	 */
+	public long getSsrc() {
+		return ssrc;
+	}
+
+	/**
+	 * Sets the most characters per second the remote end accepts. Text is
+	 * paced by the buffer, so going over the limit only delays it.
+	 *
+	 * @param cps The cps from the remote end's SDP, 0 or less for no
+	 * limit.
+	 */
+	public void setCps(int cps) {
+		dataBuffer.setCps(cps);
+	}
+
+	/**
+	 * Starts transmitting from a scheduler instead of a thread of its own.
+	 * While there is something to send, the buffer is polled once per
+	 * buffer time on the scheduler, so one scheduler thread can serve the
+	 * transmitters of many sessions. Each poll is scheduled after the
+	 * previous one with the buffer's current buffer time, so adaptive
+	 * buffer times take effect at once. When the buffer is idle, polling
+	 * stops until text is set, and keepalives come from the shared
+	 * KeepaliveScheduler. The buffer must not be started.
+	 *
+	 * @param scheduler The scheduler to run on.
+	 */
+	public synchronized void start(ScheduledExecutorService scheduler)
+	{
+		if (thisThread == null && this.scheduler == null)
+		{
+			this.scheduler = scheduler;
+			dataBuffer.setWakeup(new Runnable() {
+				public void run() {
+					wakeUp();
+				}
+			});
+			dataBuffer.startKeepalive();
+			dataBuffer.setData(TextConstants.ZERO_WIDTH_NO_BREAK_SPACE);
+		}
+	}
+
+	/**
+	 * Makes sure a poll is scheduled. Called on the writer's thread
+	 * whenever text is set, so it does not lock unless polling has
+	 * stopped.
+	 */
+	private void wakeUp() {
+		if (tickArmed) {
+			return;
+		}
+		synchronized (this) {
+			if (!tickArmed && scheduler != null) {
+				armTick();
+			}
+		}
+	}
+
+	private void armTick() {
+		tickArmed = true;
+		scheduledTask = scheduler.schedule(tick, dataBuffer.getBufferTime(),
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * One buffer period on the scheduler.
+	 */
+	private final Runnable tick = new Runnable() {
+		public void run() {
+			byte[] data = null;
+
+			try {
+				data = dataBuffer.poll();
+				if (data != null &&
+						(data.length > 0 || redFlagOutgoing)) {
+					sendData(data);
+				}
+			}
+			catch (RuntimeException re) {
+				logger.logp(Level.SEVERE, CLASS_NAME, "run()",
+						"unexpected exception caught (swallowed)", re);
+			}
+
+			synchronized (RtpTextTransmitter.this) {
+				// Not rescheduled once stopped
+				if (scheduler == null) {
+					return;
+				}
+
+				// Disarm before checking for data, so text set meanwhile
+				// either sees the tick disarmed or is seen here
+				tickArmed = false;
+				scheduledTask = null;
+				if (data != null || dataBuffer.hasDataWaiting()) {
+					armTick();
+				}
+			}
+		}
+	};
+
+	private RtpPacket convertPacket(RTPPacket packet, int length) {
+		RtpPacket converted = convertedPacket;
 		byte[] t140Data = packet.getPayloadData();
 
 		converted.setCC((int) packet.getCsrcCount());
@@ -364,7 +558,7 @@ public class RtpTextTransmitter implements Runnable {
 		converted.setTS(0xFFFFFFFFL & packet.getTimeStamp()); // mask off high order 4 bytes, which Omnitor normally does later
 		converted.setSN((int)packet.getSequenceNumber());
 		converted.setPT(payloadType);
-		converted.setPayload(t140Data, t140Data.length);
+		converted.setPayload(t140Data, length);
 		converted.setV(2);
 
 		return converted;
@@ -386,7 +580,7 @@ public class RtpTextTransmitter implements Runnable {
 	 */
 	public void start()
 	{
-		if (thisThread == null)
+		if (thisThread == null && scheduler == null)
 		{
 			//logger.finest("Starting transmit thread.");
 			thisThread = new StateThread(this, "RtpTextTransmitter");
@@ -403,9 +597,22 @@ public class RtpTextTransmitter implements Runnable {
 		if (thisThread != null)
 		{
 			//logger.finest("Stopping transmit thread.");
-			dataBuffer.stop();
+			// The state goes first, so the thread sees it when the
+			// stopped buffer releases it from getData()
 			thisThread.setState(StateThread.STOP);
-			thisThread.interrupt();
+			dataBuffer.stop();
+		}
+		if (scheduler != null)
+		{
+			dataBuffer.setWakeup(null);
+			dataBuffer.stop();
+			if (scheduledTask != null)
+			{
+				scheduledTask.cancel(false);
+				scheduledTask = null;
+			}
+			scheduler = null;
+			tickArmed = false;
 		}
 		/*if (rtpSession != null) {
 			// logger.finest("Stopping RTP and RTCP sessions.");
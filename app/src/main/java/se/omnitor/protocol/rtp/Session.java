@@ -29,11 +29,11 @@ import se.omnitor.protocol.rtp.packets.RTPPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.UnknownHostException;
-import java.util.Date;
 import java.util.Enumeration;
-import java.util.Hashtable;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -47,6 +47,9 @@ import java.util.Vector;
 //     multiple sessions to be created
 // IP: TODO remove all public variables
 // IP: TODO Check that functions are thread safe
+// The sources, statistics, SDES items and listeners are read and changed
+// without locking the session. Only the RTCP timing state (calculateInterval
+// and removeAllSources) and the thread start and stop methods still lock it.
 
 public class Session extends java.lang.Object
 {
@@ -60,13 +63,13 @@ public class Session extends java.lang.Object
      * Canonical end-point identifier SDES Item.
      *
      */
-    private String cname;
+    private volatile String cname;
 
     /**
      *   Electronic mail Address SDES Item.
      *
      */
-    private String email;
+    private volatile String email;
 
     /**
      *   Bandwidth Available to the session.
@@ -82,8 +85,8 @@ public class Session extends java.lang.Object
     // private byte         PayloadType;
     // IP: Added sendPayloadType and receivePayloadType because of the nature
     // of T.140
-    private byte sendPayloadType;
-    private byte receivePayloadType;
+    private volatile byte sendPayloadType;
+    private volatile byte receivePayloadType;
 
     /**
      *   Synchronization Source identifier for this source.
@@ -96,14 +99,14 @@ public class Session extends java.lang.Object
      * starting transmission.
      *
      */
-    protected long packetCount;
+    protected final AtomicLong packetCount = new AtomicLong();
 
     /**
      *   Total Number of payload octets (i.e not including header or padding)
      *   sent out by this source since starting transmission.
      *
      */
-    protected long octetCount;
+    protected final AtomicLong octetCount = new AtomicLong();
 
     /**
      *   Multicast Address.
@@ -161,24 +164,33 @@ public class Session extends java.lang.Object
      *   Reference to the RTP event action listener.
      *
      */
-    private RTP_actionListener m_RTP_actionListener = null;
+    private volatile RTP_actionListener m_RTP_actionListener = null;
 
     /**
      *   Reference to the RTCP event action listener.
      *
      */
-    private RTCP_actionListener m_RTCP_actionListener = null;
+    private volatile RTCP_actionListener m_RTCP_actionListener = null;
+
+    /**
+     *   Run every time an RTCP packet has been sent, if set.
+     *
+     */
+    private volatile Runnable rtcpSentListener = null;
 
 
     /**
-     *   The last time an RTCP packet was transmitted.
+     *   The last time an RTCP packet was transmitted, in milliseconds.
+     *   The times below are written by the RTP path and both RTCP threads
+     *   without locking, so they are volatile longs, which are read and
+     *   written whole.
      */
-    protected double timeOfLastRTCPSent = 0;
+    protected volatile long timeOfLastRTCPSent = 0;
 
     /**
-     *    The current time.
+     *    The current time, in milliseconds.
      */
-    protected double tc = 0;
+    protected volatile long tc = 0;
 
     /**
      *    The next scheduled transmission time of an RTCP packet.
@@ -205,9 +217,44 @@ public class Session extends java.lang.Object
     protected boolean we_sent = false;
 
     /**
-     *   The average RTCP packet size sent by this user.
+     *   The average RTCP packet size sent and received by this user,
+     *   including the UDP and IP headers. Only changed through
+     *   updateAverageRtcpSize().
+     */
+    protected volatile double avg_rtcp_size = 0;
+
+    /**
+     *   Guards the read-modify-write of avg_rtcp_size, which both RTCP
+     *   threads do.
+     */
+    private final Object avgRtcpSizeLock = new Object();
+
+    /**
+     *   Size of the UDP and IPv4 headers, which RFC 3550 counts in the
+     *   average RTCP packet size.
+     */
+    static final int UDP_IP_HEADER_SIZE = 28;
+
+    /**
+     *   Minimum average time between RTCP packets from this site, in
+     *   seconds. RFC 3550 recommends 5 seconds, but allows less, and
+     *   RFC 4585 lets a session that negotiated it go lower still.
+     */
+    private volatile double rtcpMinTime = 5.0;
+
+    /**
+     *   Fraction of the RTCP bandwidth that is shared among active
+     *   senders. RFC 3550 uses 1/4, and the SDP b=RS and b=RR lines of
+     *   RFC 3556 may give another.
+     */
+    private volatile double rtcpSenderBwFraction = 0.25;
+
+    /**
+     *   True if reduced-size RTCP (RFC 5506) was negotiated, so that
+     *   reports may be sent and received without the rest of a compound
+     *   packet.
      */
-    protected double avg_rtcp_size = 0;
+    private volatile boolean reducedSize = false;
 
     /**
      *   Flag that is true if the application has not yet sent an
@@ -236,15 +283,30 @@ public class Session extends java.lang.Object
     protected double t = 0;
 
     /**
-     *   Time this source last sent an RTP Packet
+     *   Time this source last sent an RTP Packet, in milliseconds
+     */
+    protected volatile long timeOfLastRTPSent = 0;
+
+    /**
+     * A map that stores all the sources subscribed to this multicast
+     * group. It is read and changed without locking the session, by the RTP
+     * path and the RTCP threads alike.
+     */
+    protected final ConcurrentHashMap<Long, Source> sourceMap =
+	new ConcurrentHashMap<Long, Source>();
+
+    /**
+     * The sources in sourceMap as an array, replaced whenever a source is
+     * added or removed, so the sources can be gone through on every RTCP
+     * interval without copying them.
      */
-    protected double timeOfLastRTPSent = 0;
+    private volatile Source[] sourceArray = new Source[0];
 
     /**
-     * A hastable that stores all the sources subscribed to this multicast
-     * group
+     * Held while sourceArray is replaced, so that it is never replaced by
+     * an older copy of sourceMap.
      */
-    protected Hashtable<Long, Source> sourceMap;
+    private final Object sourceArrayLock = new Object();
 
     // IP: Moved these two methods from RTPThreadHandler since it is also used
     //     by RTCPSenderThread
@@ -271,13 +333,13 @@ public class Session extends java.lang.Object
     public int updateSources()
     {
 	// iterate through the sources updating their flags
-	Enumeration SourceCollection  = getSources();
+	Source[] sources = getSourceArray();
 
 	int n = 0;
 
-	while ( SourceCollection.hasMoreElements() )
+	for ( int i = 0; i < sources.length; i++ )
 	    {
-		Source s = (Source) SourceCollection.nextElement();
+		Source s = sources[i];
 
 
 		// If Time of last RTPSent < tc - t, then drop them from the
@@ -348,8 +410,6 @@ public class Session extends java.lang.Object
 	cname = "";
 	email = "";
 
-	sourceMap = new Hashtable<Long, Source>();
-
 	m_InetAddress = getInetAddress ( multicastGroupIPAddress );
 
 	// Create a new RTP Handler thread (but do not start it yet)
@@ -360,6 +420,7 @@ public class Session extends java.lang.Object
 	m_RTCPHandler = new RTCPThreadHandler ( m_InetAddress, localPort+1, this, true);
 
 	// Initilize session level variables
+	ssrc = randomSsrc();
 	initialize();
 
 	// IP: Removed following line
@@ -367,6 +428,60 @@ public class Session extends java.lang.Object
 	//" CName: " + CNAME );
     }
 
+    /**
+     * Creates a session that only runs RTCP, for RTP that is sent and
+     * received somewhere else. The RTP path must tell the session about
+     * every packet with rtpPacketSent() and rtpPacketReceived(), so that
+     * the reports describe it. RTCP is sent from and received on one
+     * socket, and is started with startRTCP().
+     *
+     * @param remoteAddress The address of the remote host
+     * @param bandwidth Bandwidth available to the session.
+     * @param rtcpLocalPort The local RTCP port
+     * @param ssrc The SSRC the RTP is sent with
+     */
+    public Session (String remoteAddress, double bandwidth, int rtcpLocalPort,
+		    long ssrc)
+    {
+	this.bandwidth = bandwidth;
+
+	cname = "";
+	email = "";
+
+	m_InetAddress = getInetAddress ( remoteAddress );
+
+	// RTP is handled elsewhere, so there is no RTP handler
+	m_RTCPHandler = new RTCPThreadHandler ( m_InetAddress, rtcpLocalPort,
+						this, true );
+
+	this.ssrc = ssrc & 0xFFFFFFFFL;
+	initialize();
+    }
+
+    /**
+     * Creates a session that only runs RTCP, and sends and receives it
+     * through a transport instead of a socket of its own, such as the RTP
+     * socket when RTCP is multiplexed onto it as in RFC 5761. Received RTCP
+     * packets must be given to rtcpPacketReceived(). RTCP is started with
+     * startRTCP().
+     *
+     * @param bandwidth Bandwidth available to the session.
+     * @param ssrc The SSRC the RTP is sent with
+     * @param transport The transport to send RTCP packets through
+     */
+    public Session (double bandwidth, long ssrc, RtcpTransport transport)
+    {
+	this.bandwidth = bandwidth;
+
+	cname = "";
+	email = "";
+
+	m_RTCPHandler = new RTCPThreadHandler ( this, transport );
+
+	this.ssrc = ssrc & 0xFFFFFFFFL;
+	initialize();
+    }
+
     // IP: Added method
     // Andreas Piirimets: added support for different ports (local
     // and remote)
@@ -411,7 +526,7 @@ public class Session extends java.lang.Object
     //public synchronized void setPayloadType ( int payloadType ) {
     //    PayloadType = (byte) payloadType;
     //}
-    public synchronized void setReceivePayloadType ( int payloadType ) {
+    public void setReceivePayloadType ( int payloadType ) {
 	receivePayloadType = (byte) payloadType;
     }
 
@@ -420,7 +535,7 @@ public class Session extends java.lang.Object
      *
      * @param payloadType The RTP payload type number to transmit
      */
-    public synchronized void setSendPayloadType ( int payloadType ) {
+    public void setSendPayloadType ( int payloadType ) {
 	sendPayloadType = (byte) payloadType;
     }
 
@@ -433,7 +548,7 @@ public class Session extends java.lang.Object
     //public synchronized byte getPayloadType ( ) {
     //    return PayloadType;
     //}
-    public synchronized byte getReceivePayloadType ( ) {
+    public byte getReceivePayloadType ( ) {
 	return receivePayloadType;
     }
 
@@ -442,7 +557,7 @@ public class Session extends java.lang.Object
      *
      * @return The RTP payload type that is sent
      */
-    public synchronized byte getSendPayloadType ( ) {
+    public byte getSendPayloadType ( ) {
 	return sendPayloadType;
     }
 
@@ -451,7 +566,7 @@ public class Session extends java.lang.Object
      *
      * @param cname The CNAME to set
      */
-    public synchronized void setCName ( String cname ) {
+    public void setCName ( String cname ) {
 	this.cname = cname;
     }
 
@@ -460,7 +575,7 @@ public class Session extends java.lang.Object
      *
      * @return The CNAME
      */
-    public synchronized String getCName () {
+    public String getCName () {
 	return cname;
     }
 
@@ -469,7 +584,7 @@ public class Session extends java.lang.Object
      *
      * @param email The email address.
      */
-    public synchronized void setEmail ( String email ) {
+    public void setEmail ( String email ) {
 	this.email = email;
     }
 
@@ -478,7 +593,7 @@ public class Session extends java.lang.Object
      *
      * @return The email address.
      */
-    public synchronized String getEMail ( ) {
+    public String getEMail ( ) {
 	return email;
     }
 
@@ -550,17 +665,18 @@ public class Session extends java.lang.Object
      *   @return    The source corresponding the given SSRC, this source may be
      *               extracted from the map or newly created.
      */
-    public synchronized Source getSource ( long keySSRC )
+    public Source getSource ( long keySSRC )
     {
-	Source s;
+	Source s = sourceMap.get ( Long.valueOf( keySSRC) );
 
-	if ( sourceMap.containsKey ( Long.valueOf( keySSRC) ) )
-	    s = (Source) sourceMap.get ( Long.valueOf( keySSRC) );
-	else    // source doesn't exist in the map, add it
+	if ( s == null )    // source doesn't exist in the map, add it
 	    {
 		s = new Source ( keySSRC );
-		addSource ( keySSRC, s);
-
+		if ( addSource ( keySSRC, s ) < 0 )
+		    {
+			// Another thread added it first
+			s = sourceMap.get ( Long.valueOf( keySSRC) );
+		    }
 	    }
 
 	return s;
@@ -573,11 +689,11 @@ public class Session extends java.lang.Object
      *
      * @return Always returns zero.
      */
-    public synchronized int removeSource ( long sourceSSRC )
+    public int removeSource ( long sourceSSRC )
     {
-	if (sourceMap.get ( Long.valueOf(sourceSSRC)) != null )
+	if (sourceMap.remove ( Long.valueOf(sourceSSRC)) != null )
 	    {
-		sourceMap.remove ( Long.valueOf(sourceSSRC) );
+		updateSourceArray();
 		this.outprintln("Removing Source : " + "SSRC = 0x" +
 				Integer.toHexString((int)sourceSSRC));
 		this.outprintln("No. of members" + getNumberOfMembers ());
@@ -599,7 +715,7 @@ public class Session extends java.lang.Object
      * <b> InetAddress </b> object will be created and returned.
      * @return Desired InetAddress object.
      */
-    public synchronized InetAddress getInetAddress ( String multicastAddress )
+    public InetAddress getInetAddress ( String multicastAddress )
     {
 	InetAddress ia = null;
 	/*try
@@ -642,14 +758,11 @@ public class Session extends java.lang.Object
      */
     public int getNumberOfActiveSenders()
     {
-	// Hasttable
-	Enumeration sourceCollection  = getSources();
+	Source[] sources = getSourceArray();
 	int i=0;
-	while ( sourceCollection.hasMoreElements() )
+	for ( int j = 0; j < sources.length; j++ )
 	    {
-		Source s = (Source) sourceCollection.nextElement();
-
-		if ( s.activeSender == true )
+		if ( sources[j].activeSender == true )
 		    {
 			i++;
 		    }
@@ -680,9 +793,9 @@ public class Session extends java.lang.Object
 	 * sessions are small and the law of large numbers isn't helping
 	 * to smooth out the traffic. It also keeps the report interval
 	 * from becoming ridiculously small during transient outages like
-	 * a network partition.
+	 * a network partition. It is 5 seconds unless set with
+	 * setMinimumInterval().
 	 */
-	final long RTCP_MIN_TIME = (long) 5.;
 
 	/*
 	 * Fraction of the RTCP bandwidth to be shared among active
@@ -690,12 +803,13 @@ public class Session extends java.lang.Object
 	 * session with one or two active senders, the computed report
 	 * time would be roughly equal to the minimum report time so that
 	 * we don't unnecessarily slow down receiver reports.) The
-	 * receiver fraction must be 1 � the sender fraction.
+	 * receiver fraction must be 1 - the sender fraction.
 	 */
-	final double RTCP_SENDER_BW_FRACTION = (double) 0.25;
+	final double RTCP_SENDER_BW_FRACTION = rtcpSenderBwFraction;
 	final double RTCP_RCVR_BW_FRACTION = (1-RTCP_SENDER_BW_FRACTION);
+	double bw = rtcp_bw; /* bandwidth for computation */
 	double t; /* interval */
-	double rtcp_min_time = RTCP_MIN_TIME;
+	double rtcp_min_time = rtcpMinTime;
 	double n; /* no. of members for computation */
 	/*
 	 * Very first call at application start-up uses half the min
@@ -719,12 +833,12 @@ public class Session extends java.lang.Object
 	    {
 		if ( getMySource().activeSender )
                     {
-                        rtcp_bw *= RTCP_SENDER_BW_FRACTION;
+                        bw *= RTCP_SENDER_BW_FRACTION;
                         n = senders;
                     }
 		else
                     {
-                        rtcp_bw *= RTCP_RCVR_BW_FRACTION;
+                        bw *= RTCP_RCVR_BW_FRACTION;
                         n -= senders;
                     }
 	    }
@@ -738,7 +852,7 @@ public class Session extends java.lang.Object
 	 * time interval we send one report so this time is also our
 	 * average time between reports.
 	 */
-	t = (double) avg_rtcp_size  *n / rtcp_bw;
+	t = (double) avg_rtcp_size  *n / bw;
 	if (t < rtcp_min_time) t = rtcp_min_time;
 	/*
 	 * To avoid traffic bursts from unintended synchronization with
@@ -752,6 +866,84 @@ public class Session extends java.lang.Object
 	return t;
     }
 
+    /**
+     *   Sets the minimum average time between RTCP packets. The interval
+     *   is still bounded by the RTCP bandwidth, so a shorter minimum only
+     *   gives faster reports when the bandwidth allows them. The first
+     *   report is sent after half the minimum.
+     *
+     *   @param seconds The minimum interval, 5 seconds by default.
+     */
+    public void setMinimumInterval ( double seconds )
+    {
+	if ( !( seconds > 0 ) )
+	    throw new IllegalArgumentException ( "minimum RTCP interval " +
+						 seconds );
+	rtcpMinTime = seconds;
+    }
+
+    /**
+     *   Sets the RTCP bandwidth, for example from the b=RS and b=RR lines
+     *   of the remote end's SDP (RFC 3556). The two are shared among the
+     *   active senders and the other members the same way as the default
+     *   5 percent of the session bandwidth.
+     *
+     *   @param senderBandwidth RTCP bandwidth for active senders, in
+     *          octets per second.
+     *   @param receiverBandwidth RTCP bandwidth for other members, in
+     *          octets per second.
+     */
+    public synchronized void setRtcpBandwidth ( double senderBandwidth,
+						double receiverBandwidth )
+    {
+	double total = senderBandwidth + receiverBandwidth;
+	if ( senderBandwidth < 0 || receiverBandwidth < 0 || !( total > 0 ) )
+	    throw new IllegalArgumentException ( "RTCP bandwidth " +
+						 senderBandwidth + "/" +
+						 receiverBandwidth );
+	rtcp_bw = total;
+	rtcpSenderBwFraction = senderBandwidth / total;
+    }
+
+    /**
+     *   Sets whether reduced-size RTCP (RFC 5506) is used. This must only
+     *   be set when both ends have signalled support for it, with the
+     *   a=rtcp-rsize SDP attribute. Then most reports are sent on their
+     *   own, without the SDES packet of a compound packet, and received
+     *   packets do not have to start with a report.
+     *
+     *   @param reducedSize true to use reduced-size RTCP.
+     */
+    public void setReducedSize ( boolean reducedSize )
+    {
+	this.reducedSize = reducedSize;
+    }
+
+    /**
+     *   Checks whether reduced-size RTCP (RFC 5506) is used.
+     *
+     *   @return true if it is.
+     */
+    public boolean isReducedSize ()
+    {
+	return reducedSize;
+    }
+
+    /**
+     *   Updates the average RTCP packet size with an RTCP packet sent or
+     *   received, as in RFC 3550 section 6.3.3.
+     *
+     *   @param length The length of the packet, without the UDP and IP
+     *          headers.
+     */
+    void updateAverageRtcpSize ( int length )
+    {
+	synchronized ( avgRtcpSizeLock ) {
+	    avg_rtcp_size = ( length + UDP_IP_HEADER_SIZE ) / 16.0 +
+		15 * avg_rtcp_size / 16.0;
+	}
+    }
+
     /**
      *   Initialize the Session level variables.
      *
@@ -769,14 +961,8 @@ public class Session extends java.lang.Object
 	// TODO: Set avg_pkt_sz to the size of the first packet generated by
 	//       app
 
-	int randomInt;
-	do {
-		randomInt = rnd.nextInt();
-	} while (randomInt == Integer.MIN_VALUE);
-	ssrc = (long) Math.abs(randomInt) ;
-
-	packetCount = 0;
-	octetCount = 0;
+	packetCount.set ( 0 );
+	octetCount.set ( 0 );
 
 
 	// Set the next transmission time to the interval
@@ -789,15 +975,28 @@ public class Session extends java.lang.Object
 	return (0);
     }
 
+    /**
+     *   Generates a random SSRC.
+     *
+     *   @return The SSRC.
+     */
+    private long randomSsrc()
+    {
+	int randomInt;
+	do {
+		randomInt = rnd.nextInt();
+	} while (randomInt == Integer.MIN_VALUE);
+	return (long) Math.abs(randomInt) ;
+    }
+
     /**
      *   Returns a self source object.
      *
      *   @return My source object.
      */
-    public synchronized Source getMySource()
+    public Source getMySource()
     {
-	Source s = (Source) sourceMap.get ( Long.valueOf( ssrc ) );
-	return s;
+	return sourceMap.get ( Long.valueOf( ssrc ) );
 
     }
 
@@ -813,13 +1012,13 @@ public class Session extends java.lang.Object
     public int addSource ( long newSSRC , Source src)
     {
 
-	if ( sourceMap.containsKey ( new Long ( newSSRC) ) )
+	if ( sourceMap.putIfAbsent ( Long.valueOf ( newSSRC), src ) != null )
 	    {
 		return -1;
 	    }
 	else
 	    {
-		sourceMap.put ( Long.valueOf ( newSSRC), src );
+		updateSourceArray();
 		this.outprintln("Adding Source : " + "SSRC = 0x" +
 				Integer.toHexString((int)newSSRC));
 		this.outprintln("No. of members" + getNumberOfMembers ());
@@ -834,21 +1033,18 @@ public class Session extends java.lang.Object
      *
      *   @return Enumeration of all active senders.
      */
-    public synchronized Enumeration getActiveSenders ()
+    public Enumeration getActiveSenders ()
     {
-	Enumeration enumAllMembers = sourceMap.elements();
+	Source[] sources = getSourceArray();
 
 	Vector<Source> vectActiveSenders = new Vector<Source>();
 
-	Source s;
-
-	// Go through this enumeration and for each source
+	// Go through the sources and for each source
 	// if it is and active sender, add into a temp vector
-	while ( enumAllMembers.hasMoreElements() )
+	for ( int i = 0; i < sources.length; i++ )
 	    {
-		s = (Source) enumAllMembers.nextElement();
-		if ( s.activeSender )
-		    vectActiveSenders.addElement ( s );
+		if ( sources[i].activeSender )
+		    vectActiveSenders.addElement ( sources[i] );
 	    }
 
 	// Return the enumeration of the temp vector.
@@ -861,20 +1057,44 @@ public class Session extends java.lang.Object
      *
      *   @return Enumeration of all the sources (members).
      */
-    public synchronized Enumeration getSources ()
+    public Enumeration getSources ()
     {
 	return sourceMap.elements();
     }
 
     /**
-     *   Returns current time from the Date().getTime() function.
+     *   Returns all sources as an array. The array is not copied and must
+     *   not be changed; it is replaced, not updated, when sources are added
+     *   or removed.
+     *
+     *   @return The sources (members).
+     */
+    public Source[] getSourceArray ()
+    {
+	return sourceArray;
+    }
+
+    /**
+     *   Replaces the source array after sourceMap changed.
+     *
+     */
+    private void updateSourceArray ()
+    {
+	synchronized ( sourceArrayLock ) {
+	    sourceArray = sourceMap.values().toArray ( new Source[0] );
+	}
+    }
+
+    /**
+     *   Returns current time from System.currentTimeMillis().
      *
      *   @return The current time.
      */
     public long currentTime()
     {
-	tc = (new Date()).getTime();
-	return (long)tc;
+	long now = System.currentTimeMillis();
+	tc = now;
+	return now;
     }
 
     /**
@@ -885,13 +1105,13 @@ public class Session extends java.lang.Object
      */
     public synchronized int removeAllSources()
     {
-	Enumeration sourceCollection  = getSources();
+	Source[] sources = getSourceArray();
 
 	int n = 0;
 
-	while ( sourceCollection.hasMoreElements() )
+	for ( int i = 0; i < sources.length; i++ )
 	    {
-		Source s = (Source) sourceCollection.nextElement();
+		Source s = sources[i];
 
 		if ( s.ssrc != ssrc )
                     {
@@ -917,12 +1137,23 @@ public class Session extends java.lang.Object
      *   @param listener who implements the RTCP_actionListener interface and
      *           will be the one to which all RTCP actions will be posted.
      */
-    public synchronized void addRTCP_actionListener
+    public void addRTCP_actionListener
 	(RTCP_actionListener listener)
     {
 	m_RTCP_actionListener = listener;
     }
 
+    /**
+     *   Checks whether an RTCP action listener is registered, so that the
+     *   packets posted to it are only built when someone will get them.
+     *
+     *   @return true if a listener is registered.
+     */
+    boolean hasRTCP_actionListener ()
+    {
+	return m_RTCP_actionListener != null;
+    }
+
     /**
      *   Register RTP action listener.
      *   The instantiators of the session must implement
@@ -932,7 +1163,7 @@ public class Session extends java.lang.Object
      *   @param listener who implements the RTP_actionListener interface and
      *           will be the one to which all RTP actions will be posted.
      */
-    public synchronized void addRTP_actionListener
+    public void addRTP_actionListener
 	( RTP_actionListener listener )
     {
 	m_RTP_actionListener = listener;
@@ -944,10 +1175,11 @@ public class Session extends java.lang.Object
      *
      *   @param    rrpkt The Receiver Report packet received.
      */
-    public synchronized void postAction ( RTCPReceiverReportPacket rrpkt )
+    public void postAction ( RTCPReceiverReportPacket rrpkt )
     {
-	if ( m_RTCP_actionListener != null )
-	    m_RTCP_actionListener.handleRTCPEvent ( rrpkt );
+	RTCP_actionListener listener = m_RTCP_actionListener;
+	if ( listener != null )
+	    listener.handleRTCPEvent ( rrpkt );
     }
 
     /**
@@ -956,10 +1188,11 @@ public class Session extends java.lang.Object
      *
      *   @param srpkt The sender report packet received.
      */
-    public synchronized void postAction ( RTCPSenderReportPacket srpkt )
+    public void postAction ( RTCPSenderReportPacket srpkt )
     {
-	if ( m_RTCP_actionListener != null )
-	    m_RTCP_actionListener.handleRTCPEvent ( srpkt );
+	RTCP_actionListener listener = m_RTCP_actionListener;
+	if ( listener != null )
+	    listener.handleRTCPEvent ( srpkt );
 
     }
 
@@ -969,10 +1202,11 @@ public class Session extends java.lang.Object
      *
      *   @param sdespkt The SDES packet received.
      */
-    public synchronized void postAction ( RTCPSDESPacket sdespkt )
+    public void postAction ( RTCPSDESPacket sdespkt )
     {
-	if ( m_RTCP_actionListener != null )
-	    m_RTCP_actionListener.handleRTCPEvent ( sdespkt );
+	RTCP_actionListener listener = m_RTCP_actionListener;
+	if ( listener != null )
+	    listener.handleRTCPEvent ( sdespkt );
     }
 
     /**
@@ -981,10 +1215,11 @@ public class Session extends java.lang.Object
      *
      *   @param byepkt The BYE packet received.
      */
-    public synchronized void postAction ( RTCPBYEPacket byepkt )
+    public void postAction ( RTCPBYEPacket byepkt )
     {
-	if ( m_RTCP_actionListener != null )
-	    m_RTCP_actionListener.handleRTCPEvent ( byepkt );
+	RTCP_actionListener listener = m_RTCP_actionListener;
+	if ( listener != null )
+	    listener.handleRTCPEvent ( byepkt );
     }
 
     /**
@@ -993,14 +1228,121 @@ public class Session extends java.lang.Object
      *
      *   @param rtppkt The RTP Packet received.
      */
-    public synchronized void postAction ( RTPPacket rtppkt )
+    public void postAction ( RTPPacket rtppkt )
     {
-	if ( m_RTP_actionListener != null )
-	    m_RTP_actionListener.handleRTPEvent ( rtppkt );
+	RTP_actionListener listener = m_RTP_actionListener;
+	if ( listener != null )
+	    listener.handleRTPEvent ( rtppkt );
 	else
 	    System.err.println ("ERROR: No RTP Action Listener registered :(");
     }
 
+    /**
+     *   Sets something to run every time an RTCP packet has been sent, for
+     *   example to send other packets along with it.
+     *
+     *   @param listener Run on the RTCP sender thread, or null for none.
+     */
+    public void setRtcpSentListener ( Runnable listener )
+    {
+	rtcpSentListener = listener;
+    }
+
+    /**
+     *   Called by the RTCP sender thread after an RTCP packet is sent.
+     *
+     */
+    void rtcpSent ()
+    {
+	Runnable listener = rtcpSentListener;
+	if ( listener != null )
+	    listener.run();
+    }
+
+    /**
+     *   Updates the statistics after an RTP packet is sent, so that the
+     *   next report is a sender report with the right counts.
+     *
+     *   @param payloadLength The number of payload octets in the packet.
+     */
+    public void rtpPacketSent ( int payloadLength )
+    {
+	//Update own status to Active Sender
+	Source s1 = getMySource();
+	s1.activeSender = true;
+	timeOfLastRTPSent = currentTime();
+	packetCount.incrementAndGet();
+	octetCount.addAndGet ( payloadLength );
+    }
+
+    /**
+     *   Updates the statistics of the sending source after an RTP packet is
+     *   received, so that the next report has a reception report block
+     *   about it.
+     *
+     *   @param packetSsrc The SSRC of the packet.
+     *   @param seqNo The sequence number of the packet.
+     *   @param timeStamp The RTP timestamp of the packet.
+     */
+    public void rtpPacketReceived ( long packetSsrc, long seqNo,
+				    long timeStamp )
+    {
+	// Get the source corresponding to this SSRC
+	Source rtpSource = getSource(packetSsrc);
+
+	synchronized (rtpSource) {
+	    //Set teh Active Sender Property to true
+	    rtpSource.activeSender = true;
+
+	    //Set the time of last RTP Arrival
+	    long now = currentTime();
+	    rtpSource.timeOfLastRTPArrival = now;
+
+	    // T.140 timestamps are in milliseconds, like the arrival time
+	    rtpSource.updateJitter(timeStamp, now);
+
+	    //Update the sequence number, the first one is the base
+	    rtpSource.updateSeq(seqNo);
+
+	    // Increment the total number of RTP Packets Received
+	    rtpSource.noOfRTPPacketsRcvd++;
+	}
+    }
+
+    /**
+     *   Returns the number of RTP packets sent in this session.
+     *
+     *   @return The packet count.
+     */
+    public long getPacketCount()
+    {
+	return packetCount.get();
+    }
+
+    /**
+     *   Calculates the round trip time from a reception report about this
+     *   source that just arrived, as in RFC 3550 section 6.4.1.
+     *
+     *   @param lastSr The LSR field of the report block.
+     *   @param delayLastSr The DLSR field of the report block.
+     *   @return The round trip time in milliseconds, or -1 if the report
+     *           does not refer to a sender report from this source.
+     */
+    public long getRoundTripTime ( long lastSr, long delayLastSr )
+    {
+	if ( lastSr == 0 )
+	    return -1;
+
+	long now = PacketUtils.toCompactNtp ( currentTime() );
+	long rtt = ( now - lastSr - delayLastSr ) & 0xFFFFFFFFL;
+
+	// A negative round trip shows up as a huge one after masking
+	if ( rtt > 0x7FFFFFFFL )
+	    return 0;
+
+	return rtt * 1000 / 65536;
+    }
+
     /**
      * Print a newline. Provided to enable the
      * debug console print messages in the source code. By setting the
@@ -1009,7 +1351,7 @@ public class Session extends java.lang.Object
      *
      * @see Session#debugOutput
      */
-    public synchronized void outprintln () {
+    public void outprintln () {
 	if ( debugOutput ) System.out.println ();
     }
 
@@ -1023,7 +1365,7 @@ public class Session extends java.lang.Object
      *
      * @see Session#debugOutput
      */
-    public synchronized void outprintln ( String s ) {
+    public void outprintln ( String s ) {
 	if ( debugOutput ) System.out.println ( s );
     }
 
@@ -1036,7 +1378,7 @@ public class Session extends java.lang.Object
      *
      * @see Session#debugOutput
      */
-    public synchronized void outprint ( String s ) {
+    public void outprint ( String s ) {
 	if ( debugOutput ) System.out.print ( s );
     }
 
@@ -1095,8 +1437,47 @@ public class Session extends java.lang.Object
 	stopRTCPReceiverThread();
 	// IP: Added following method call so that send socket is
 	// properly closed
-	m_RTPHandler.stop();
-	stopRTPThread();
+	if ( m_RTPHandler != null ) {
+	    m_RTPHandler.stop();
+	    stopRTPThread();
+	}
+    }
+
+    /**
+     * Starts the RTCP sender and receiver threads of a session that only
+     * runs RTCP.
+     *
+     * @param rtcpLocalPort The local RTCP port
+     * @param rtcpRemotePort The remote RTCP port
+     */
+    public void startRTCP (int rtcpLocalPort, int rtcpRemotePort)
+    {
+	createAndStartRTCPSenderThread(rtcpLocalPort, rtcpRemotePort);
+	createAndStartRTCPReceiverThread(rtcpLocalPort);
+    }
+
+    /**
+     * Starts the RTCP sender of a session that runs RTCP through a
+     * transport, and starts accepting packets with rtcpPacketReceived().
+     */
+    public void startRTCP ()
+    {
+	createAndStartRTCPSenderThread(0, 0);
+	createAndStartRTCPReceiverThread(0);
+    }
+
+    /**
+     * Handles an RTCP packet that was received through the transport of the
+     * session. The packet is parsed before this method returns, so the
+     * buffer may be reused afterwards.
+     *
+     * @param data The buffer holding the compound packet
+     * @param offset The offset of the packet in data
+     * @param length The length of the packet
+     */
+    public void rtcpPacketReceived (byte[] data, int offset, int length)
+    {
+	m_RTCPHandler.packetReceived(data, offset, length);
     }
 
 }
@@ -18,7 +18,7 @@
  */
 package se.omnitor.protocol.rtp;
 
-import java.util.Date;
+import gov.nist.jrtp.RtpSequence;
 
 /**
 * This class encapsulates all the per source state information. Every source
@@ -31,12 +31,6 @@ import java.util.Date;
 */
 public class Source extends Object {
 
-    /**
-     * Since Packets lost is a 24 bit number, it should be clamped at
-     * WRAPMAX = 0xFFFFFFFF
-     */
-    protected static final long WRAPMAX = 0xFFFFFFFF;
-
     /**
      * source SSRC uint 32.
      */
@@ -130,6 +124,16 @@ public class Source extends Object {
      * Seq No. are only 16 bits
      */
     protected long cycles;
+
+    /**
+     * Relative transit time of the last RTP packet, used for the jitter.
+     */
+    protected long transit;
+
+    /**
+     * Interarrival jitter estimate, kept unrounded between packets.
+     */
+    protected double jitterEstimate;
     
     /**
      * Constructor requires an SSRC for it to be a valid source. The
@@ -170,28 +174,63 @@ public class Source extends Object {
     }
     
     /**
-    * This safe sequence update function will try to 
-    * determine if seq has wrapped over resulting in a
-    * new cycle.  It sets the cycle -- source level 
-    * variable which keeps track of wraparounds.
+    * Updates the highest sequence number from a newly received RTP
+    * packet, counting wraparounds in cycles. The first packet sets the
+    * base sequence number. Late and duplicate packets leave it alone, and
+    * a large jump ahead starts counting over, as after the source
+    * restarts. This is a simplified form of update_seq() in RFC 3550
+    * appendix A.1, with the checks of RtpSequence but without the
+    * probation period. Call it before noOfRTPPacketsRcvd is incremented.
     *
     * @param seq  Sequence Number
     */
     public void updateSeq( long seq )
     {
-        // If the diferrence between max_seq and seq 
-        // is more than 1000, then we can assume that 
-        // cycle has wrapped around.
-        if ( max_seq == 0 )
+        if ( noOfRTPPacketsRcvd == 0 )
+        {
+            base_seq = seq;
             max_seq = seq;
-        else
+        }
+        else if ( RtpSequence.isAhead( (int) seq, (int) max_seq ) )
         {
-            if ( max_seq - seq  > 0.5*WRAPMAX )
-                cycles += WRAPMAX;
+            // In order, with a permissible gap
+            if ( seq < max_seq )
+                cycles += RtpSequence.RTP_SEQ_MOD;
 
-        max_seq =  seq;
+            max_seq = seq;
         }
-        
+        else if ( RtpSequence.isJump( (int) seq, (int) max_seq ) )
+        {
+            // The sequence number made a very large jump
+            base_seq = seq;
+            max_seq = seq;
+            cycles = 0;
+            noOfRTPPacketsRcvd = 0;
+            expected_prior = 0;
+            received_prior = 0;
+        }
+        // else duplicate or reordered packet
+    }
+
+    /**
+     * Updates the interarrival jitter from a newly received RTP packet, as
+     * in RFC 3550 appendix A.8. The arrival time must be in the same units
+     * as the RTP timestamp, which for T.140 is milliseconds.
+     *
+     * @param timeStamp The RTP timestamp of the packet
+     * @param arrival The arrival time of the packet
+     */
+    public void updateJitter( long timeStamp, long arrival )
+    {
+        long newTransit = arrival - timeStamp;
+
+        if ( noOfRTPPacketsRcvd > 0 )
+        {
+            long d = Math.abs( newTransit - transit );
+            jitterEstimate += ( d - jitterEstimate ) / 16;
+            jitter = (long) jitterEstimate;
+        }
+        transit = newTransit;
     }
  
     
@@ -233,24 +272,81 @@ public class Source extends Object {
         if (expected_interval ==0 || lost_interval <=0) 
             fraction =0;
         else
-            fraction = (lost_interval << 8) / (double)expected_interval;
+            fraction = Math.min(255,
+                    (lost_interval << 8) / (double)expected_interval);
               
-        //dlsr - express it in units of 1/65336 seconds
-        dlsr = (timeofLastSRRcvd - currentTime())/ 65536;
+        //dlsr - express it in units of 1/65536 seconds, zero if no SR
+        // has been received yet
+        if (lst == 0)
+            dlsr = 0;
+        else
+            dlsr = (currentTime() - timeofLastSRRcvd) * 65536 / 1000;
               
         return 0;
     }
 
 
+    /**
+     * Gets the SSRC of this source.
+     *
+     * @return The SSRC
+     */
+    public long getSsrc()
+    {
+        return ssrc;
+    }
+
+    /**
+     * Gets the number of RTP packets received from this source.
+     *
+     * @return The number of packets
+     */
+    public int getPacketsReceived()
+    {
+        return noOfRTPPacketsRcvd;
+    }
+
+    /**
+     * Gets the cumulative number of packets lost from this source, as of
+     * the last reception report sent about it.
+     *
+     * @return The number of packets lost
+     */
+    public long getCumulativeLost()
+    {
+        return lost;
+    }
+
+    /**
+     * Gets the fraction of packets lost from this source in the interval
+     * before the last reception report sent about it.
+     *
+     * @return The fraction lost, from 0 to 1
+     */
+    public float getFractionLost()
+    {
+        return (float) (fraction / 256);
+    }
+
+    /**
+     * Gets the interarrival jitter of packets from this source.
+     *
+     * @return The jitter in RTP timestamp units
+     */
+    public long getJitter()
+    {
+        return jitter;
+    }
+
     // IP: Added to get rid of static method
     /**
-    *   Returns current time from the Date().getTime() function.
+    *   Returns current time from System.currentTimeMillis().
     *
     *   @return The current time.
     */
     private long currentTime()
     {
-        return (new Date()).getTime();
+        return System.currentTimeMillis();
     }
 
 
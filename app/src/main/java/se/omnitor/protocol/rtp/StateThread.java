@@ -18,8 +18,13 @@
  */
 package se.omnitor.protocol.rtp;
 
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * An extention to Thread that also holds the state that the thread is in.
+ * The state is read without locking, so the thread can check it on every
+ * loop iteration for free. While the state is WAIT the thread is parked,
+ * and it is unparked as soon as the state changes.
  * @author  Ingemar Persson
  * @version 0.1, 2003-jul-28 (Original version is marked as 0.1 and it is 
  * then incremented by 0.1 for every change made)
@@ -44,7 +49,7 @@ public class StateThread extends Thread {
 
     private static final int NUMBER_OF_STATES   = 3;
 
-    private int state = RUN;
+    private volatile int state = RUN;
 
     /**
      * Initialize the thread.
@@ -77,22 +82,21 @@ public class StateThread extends Thread {
     }
 
     /**
-     * Sets new state of this thread. If state is changed from WAIT to RUN the
-     * notify method will be called
+     * Sets new state of this thread. If the new state is RUN or STOP the
+     * thread is unparked, so a thread waiting in checkState() sees it at
+     * once.
      *
      * @param state defines new state for this thread
      */
-    public synchronized void setState(int state)
+    public void setState(int state)
     {
         // Make sure this is a legal state before altering state
         if ( (state < NUMBER_OF_STATES) && (state >= 0) )
         {
-            int oldState = this.state;
-
             this.state = state;
-            if (state == RUN && oldState != RUN)
+            if (state != WAIT)
             {
-                notify();
+                LockSupport.unpark(this);
             }
         }
     }
@@ -100,21 +104,22 @@ public class StateThread extends Thread {
     /**
      * Returns the current state of this thread. If the state of this thread 
      * is WAIT this method will not return until
-     * the state has changed to another state.
+     * the state has changed to another state. Only this thread may call
+     * this method, since it is the one that is parked.
      *
      * @return state of this thread.
      */
-    public synchronized int checkState()
+    public int checkState()
     {
-        while (state == WAIT)
+        int current = state;
+        while (current == WAIT)
         {
-            try
-            {
-                wait();
-            } catch (InterruptedException e){
-		// Ignore interruptions
-	    }
+            LockSupport.park(this);
+            // Ignore interruptions, as a wait() would, or park() would
+            // return at once from now on
+            Thread.interrupted();
+            current = state;
         }
-        return state;
+        return current;
     }
 }
@@ -19,20 +19,42 @@
 
 package se.omnitor.protocol.rtp.t140redundancy;
 
-import java.util.Vector;
-import java.util.LinkedList;
-import java.util.Iterator;
-
 /**
- *  handles inserting and filtering of highlevel text redundancy data
+ *  handles inserting and filtering of highlevel text redundancy data <br>
+ *  <br>
+ *  Both directions work as streaming filters over reusable buffers. The
+ *  sender writes the SOS header, the stored generations, ST and the new
+ *  text straight into its output buffer, and keeps the generations in a
+ *  ring of reused slots. The receiver recognises the SOS-ST markers byte by
+ *  byte as the text passes through, so text outside redundancy blocks is
+ *  copied once and never boxed or searched twice. <br>
+ *  <br>
+ *  A filter keeps state between calls and must only be used for one
+ *  direction, by one thread at a time.
  *
  *  @author Staffan Hellström
  *  @author Erik Zetterström
  */
 public class RedundancyFilter {
 
+    //Receive states
+    private static final int STATE_TEXT  = 0; //Plain text
+    private static final int STATE_SOS_1 = 1; //Seen first SOS byte
+    private static final int STATE_SOS_2 = 2; //Seen second SOS byte
+    private static final int STATE_BLOCK = 3; //Inside SOS-ST block
+    private static final int STATE_ST_1  = 4; //Seen first ST byte in block
+
+    //Largest block the sender can produce: four header digits, and for at
+    //most nine generations a two digit length and up to 99 bytes.
+    private static final int MAX_BLOCK_SIZE = 4 + 9 * (2 + 99);
+
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
     //Add redundancy variables
-    private LinkedList<byte[]> fifoBuffer = new LinkedList<byte[]>();
+    private byte[][] generationData = null;
+    private int[] generationLength = null;
+    private int generationCount = 0;    //Number of stored generations
+    private int oldestGeneration = 0;   //Slot of the oldest generation
 
     private int primarySeqNumber=0;
     private int redundancyLevels=3;
@@ -48,13 +70,21 @@ public class RedundancyFilter {
     // "packet" counter
     private int lastReceivedSeqNr=-1;
 
+    //Filter output, reused for every call.
+    private byte[] output = new byte[INITIAL_BUFFER_SIZE];
+    private int outputLength = 0;
+
+    //The contents of the block being received, between SOS and ST.
+    private byte[] block = new byte[MAX_BLOCK_SIZE];
+    private int blockLength = 0;
+    private int state = STATE_TEXT;
+
 
     /**
      * Creates the redundany filter with default settings.
      */
     public RedundancyFilter() {
-	// preallocate for sender
-	//fifoBuffer.add(new byte[0]);
+	this(false, 3);
     }
 
     /**
@@ -68,472 +98,335 @@ public class RedundancyFilter {
 			    int redundancyLevels) {
         this.redFlagOutgoing=redFlagOutgoing;
 	this.redundancyLevels=redundancyLevels;
-    }
-
-
 
-    /**
-     * Converts a char in byte form to a number.
-     *
-     * @param c The byte to convert.
-     * @return The converted number.
-     */
-    private int charToNumber(byte c) {
-	char ch=(char)c;
-	String string=""+ch;
-	return Integer.parseInt(string);
+	generationData = new byte[redundancyLevels][];
+	generationLength = new int[redundancyLevels];
+	for (int i=0; i<redundancyLevels; i++) {
+	    generationData[i] = new byte[0];
+	}
     }
 
 
     /**
-     * Converts an integer to bytes.
+     * Gets the output of the last call to filterInput() or
+     * addRedundancy(). The array is reused, only the number of bytes
+     * returned by that call are valid, and only until the next call.
      *
-     * @param n The number to convert.
-     * @return The converted bytes.
+     * @return The output buffer.
      */
-    private byte[] numberToBytes(int n) {
-	String str=String.valueOf(n);
-	return str.getBytes();
+    public byte[] getOutput() {
+	return output;
     }
 
 
     /**
-     * Converts a number of a specified length to bytes.
-     * @param n The number to convert.
-     * @param length The length of the numberto convert.
+     * Converts a digit in byte form to a number.
      *
-     * @return The converted bytes.
+     * @param c The byte to convert.
+     * @return The converted number, or -1 if it is not a digit.
      */
-    private byte[] numberToBytes(int n, int length) {
-	String str=String.valueOf(n);
-	if (str.length()<length) {
-	    for (int i=0; i<length-str.length(); i++)
-		str="0"+str;
-	}
-	return str.getBytes();
+    private static int digitToNumber(byte c) {
+	if (c < '0' || c > '9')
+	    return -1;
+	return c - '0';
     }
 
 
     /**
-     * Converts a char in byte form to a number.
-     *
-     * @param c The char to convert.
-     * @return The converted number.
-     */
-    /*
-    private int charToNumber(byte[] c) {
-	int result=0;
-	int j=c.length-1;
-	for (int i=0; i<c.length; i++) {
-	    int power=(int)Math.pow(10,j);
-	    int mult=charToNumber(c[i]);
-	    result+=power*mult;
-	    j--;
-	}
-	return result;
-    }
-*/
-
-    /**
-     * Converts two chars to a number.
+     * Converts two digits to a number.
      *
-     * @param a The first byte of the char.
-     * @param b The second number of the char.
+     * @param a The first digit.
+     * @param b The second digit.
      *
-     * @return The cinverted number.
+     * @return The converted number, or -1 if they are not digits.
      */
-    private int charToNumber(byte a, byte b) {
-	return 10*charToNumber(a)+charToNumber(b);
+    private static int digitsToNumber(byte a, byte b) {
+	int high = digitToNumber(a);
+	int low = digitToNumber(b);
+	if (high == -1 || low == -1)
+	    return -1;
+	return 10*high+low;
     }
 
 
     /**
-     * Finds a specified bytes in an array of other bytes.
+     *  Seek for SOSR-ST blocks and extracts any lost data using the
+     * 	redundancy data found in the blocks. <br>
+     *  <br>
+     *  The filtered text is written to the buffer returned by getOutput().
+     *  Text outside blocks is passed through unchanged. A block split
+     *  over several calls is recognised, since the filter keeps its state
+     *  between calls.
      *
-     * @param bytes The bytes to search in.
-     * @param startIdx Index to start searching from.
-     * @param endIdx Index to search to.
-     * @param toFind THe byte to search for.
-     * @return Returns the first index of the byte searched for,
-     *         -1 if not found or bad input.
+     * @param input The data to search.
+     * @param offset The offset of the data.
+     * @param length The number of bytes of data.
+     * @return The number of bytes written to the output buffer.
      */
-    int findByte(byte[] bytes, int startIdx, int endIdx, byte toFind) {
-	if (startIdx==-1) startIdx=0;
-	if (endIdx==-1) endIdx=bytes.length;
-	if (endIdx<startIdx) return -1;
-
-	for (int i=startIdx; i<endIdx; i++) {
-	    if (bytes[i] == toFind)
-		return i;
-	}
+    public int filterInput(byte[] input, int offset, int length) {
 
-	return -1;
-    }
+	outputLength = 0;
+	if (input == null)
+	    return 0;
 
+	int end = offset + length;
+	for (int i=offset; i<end; i++) {
+	    byte b = input[i];
 
-    /**
-     * Finds a specfied set of bytes in an array of bytes.
-     *
-     * @param bytes The bytes to search in.
-     * @param startIdx The Index to start searching from.
-     * @param endIdx The index to search to.
-     * @param toFind The bytes to search for.
-     * @param Returns The first index of the bytes searched for,
-     *                -1 if not found or bad input.
-     */
-    int findBytes(byte[] bytes, int startIdx, int endIdx, byte[] toFind) {
-	if (startIdx==-1) startIdx=0;
-	if (endIdx==-1) endIdx=bytes.length;
-	if (endIdx<startIdx) return -1;
-
-	for (int i=startIdx; i<endIdx; i++) {
-	    int matches=0;
-	    for (int j=0; j<toFind.length && i+j<endIdx; j++) {
-		if (bytes[i+j]==toFind[j]) matches++;
-	    }
-	    if (matches==toFind.length) return i;
-	}
-	return -1;
-    }
+	    switch (state) {
 
+	    case STATE_TEXT:
+		if (b == sosBytes[0])
+		    state = STATE_SOS_1;
+		else
+		    appendOutput(b);
+		break;
 
-    /**
-     * Finds a byte in an array.
-     *
-     * @param bytes The bytes to search in.
-     * @param toFind The bytes to search for.
-     * @return The index of the byte or -1.
-     */
-    int findByte(byte[] bytes, byte toFind) {
-	return findByte(bytes,-1,-1,toFind);
-    }
+	    case STATE_SOS_1:
+		if (b == sosBytes[1]) {
+		    state = STATE_SOS_2;
+		}
+		else {
+		    appendOutput(sosBytes[0]);
+		    state = STATE_TEXT;
+		    i--; //Look at this byte again as text
+		}
+		break;
 
+	    case STATE_SOS_2:
+		if (b == sosBytes[2]) {
+		    blockLength = 0;
+		    state = STATE_BLOCK;
+		}
+		else {
+		    appendOutput(sosBytes[0]);
+		    appendOutput(sosBytes[1]);
+		    state = STATE_TEXT;
+		    i--;
+		}
+		break;
+
+	    case STATE_BLOCK:
+		if (b == stBytes[0])
+		    state = STATE_ST_1;
+		else
+		    appendBlock(b);
+		break;
+
+	    case STATE_ST_1:
+		if (b == stBytes[1]) {
+		    recover();
+		    state = STATE_TEXT;
+		}
+		else {
+		    appendBlock(stBytes[0]);
+		    state = STATE_BLOCK;
+		    i--;
+		}
+		break;
+	    }
+	}
 
-    /**
-     * Finds a byte in an array.
-     *
-     * @param bytes The bytes to search in.
-     * @param startIdx The index to start searching from.
-     * @param toFind The byte to search for.
-     * @return The index of the byte or -1.
-     * /
-    int findByte(byte[] bytes, int startIdx, byte toFind) {
-	return findByte(bytes,startIdx,-1, toFind);
+	return outputLength;
     }
 
 
     /**
-     * Finds a set of bytes in an array.
+     * Adds a byte to the block being received. A block that grows beyond
+     * anything a sender can produce was not a block, and is given back
+     * as text.
      *
-     * @param bytes The bytes to search in.
-     * @param startIdx The index to search from.
-     * @param toFind The bytes to find.
-     * @returnxsx The index of the bytes or -1.
+     * @param b The byte.
      */
-    int findByte(byte[] bytes, int startIdx, byte[] toFind) {
-	return findBytes(bytes,startIdx,-1, toFind);
+    private void appendBlock(byte b) {
+	if (blockLength == block.length) {
+	    appendOutput(sosBytes, 0, sosBytes.length);
+	    appendOutput(block, 0, blockLength);
+	    appendOutput(b);
+	    blockLength = 0;
+	    state = STATE_TEXT;
+	    return;
+	}
+	block[blockLength++] = b;
     }
 
 
     /**
-     *  Seek for SOSR-ST blocks and extracts any lost data using the
-     * 	redundancy data found in the blocks
-     * 	NOTE: all packet loss characters are removed - new ones will
-     * 	be inserted as need occurs.
-     *
-     * @param inputString The data to search.
-     * @return The parsed data.
+     * Handles a complete SOS-ST block. If packets have been lost, the text
+     * they carried is recovered from the block, and a loss char is added
+     * for each packet that cannot be recovered.
      */
-    public byte[] filterInput(byte[] inputString) {
-
-	Vector<Byte> output = new Vector<Byte>();
+    private void recover() {
+	if (blockLength < 4)
+	    return;
 
-	boolean done=false;
-	int stIndex=-1;
-	boolean firstLoop=true;
+	int rfcSupport = digitToNumber(block[0]);
+	int redLevel = digitToNumber(block[1]);
+	int priSeqNr = digitsToNumber(block[2], block[3]);
 
-	while (!done) {
-	    int sosIndex=findByte(inputString,stIndex,sosBytes);
+	if (redLevel == -1 || priSeqNr == -1)
+	    return;
 
-	    stIndex=findByte(inputString,sosIndex,stBytes);
+	int nbrPacketsLost = priSeqNr - lastReceivedSeqNr - 1;
 
-	    if (firstLoop && sosIndex != -1) {
+	if ( nbrPacketsLost < 0 )
+	    nbrPacketsLost += 100;
 
-		// add everything before the redundancy block
+	//EZ: Added check to see if sending endpoint supports
+	//    RFC 4103 redundancy.
+	//    If RFC 4103 is supported T.140 redundancy
+	//    should be ignored.
+	if ( nbrPacketsLost > 0 && (rfcSupport != 1)) {
 
-		for (int i=0; i<sosIndex; i++) {
-		    output.add(new Byte(inputString[i]));
-		}
+	    int recoverStart = 0;
 
-		firstLoop=false;
+	    if (nbrPacketsLost <= redLevel) {
+		// Manageable loss, skip the undamaged generations
+		recoverStart = redLevel - nbrPacketsLost;
 	    }
-
-	    if (sosIndex != -1 && stIndex != -1 && stIndex>sosIndex) {
-				// Inside a redundancy block
-
-		int startIdx=sosIndex+sosBytes.length;
-		int rfcSupport=charToNumber(inputString[startIdx]);
-		int redLevel = charToNumber(inputString[startIdx+1]);
-
-		int priSeqNr = charToNumber(inputString[startIdx+2],
-					    inputString[startIdx+3]);
-
-		int nbrPacketsLost = priSeqNr - lastReceivedSeqNr - 1;
-
-		if ( nbrPacketsLost < 0 )
-		    nbrPacketsLost += 100;
-
-		//EZ: Added check to see if sending endpoint supports
-		//    RFC 4103 redundancy.
-		//    If RFC 4103 is supported T.140 redundancy
-		//    should be ignored.
-		if ( nbrPacketsLost > 0 && (rfcSupport != 1)) {
-
-		    // packet loss
-		    if (nbrPacketsLost <= redLevel) {
-			// Manageable loss, recover using redundancy
-			int recoverStart = redLevel - nbrPacketsLost;
-			int rIdx=startIdx+4;
-			int pos=0;
-
-			// skip undamaged data
-			for (int i=0; i<recoverStart; i++) {
-			    int length = charToNumber(inputString[rIdx+pos],
-						      inputString[rIdx+pos+1]);
-			    pos += length+2;
-			}
-
-			// recover lost data
-			for (int i=0; i<nbrPacketsLost; i++) {
-			    int length = charToNumber(inputString[rIdx+pos],
-						      inputString[rIdx+pos+1]);
-			    pos += 2;
-			    for (int j=0; j<length; j++) {
-				output.add(new Byte(inputString[rIdx+pos+j]));
-			    }
-			    pos+=length;
-			}
-
-
-		    }
-		    else {
-			//EZ: Recover what we can. Replace each non-recoverable
-			//    lost packet with a loss char.
-
-			int rIdx = startIdx+4;
-			int pos = 0;
-
-			//EZ: Add a loss char for each unrecoverable packet.
-			for (int i=0;i<(nbrPacketsLost-redLevel);i++) {
-			    output.add(new Byte((byte)0xef));
-			    output.add(new Byte((byte)0xbf));
-			    output.add(new Byte((byte)0xbd));
-			}
-
-			//EZ: Extract and add all available redundant data.
-			for (int i=0;i<redLevel;i++) {
-			    int length = charToNumber(inputString[rIdx+pos],
-						      inputString[rIdx+pos+1]);
-			    pos += 2;
-			    for (int j=0;j<length;j++) {
-				output.add(new Byte(inputString[rIdx+pos+j]));
-			    }
-			    pos+=length;
-
-			}
-
-		    }
-
-		}
-
-		lastReceivedSeqNr=priSeqNr;
-	   }
-
-	    // Check for more redundancy blocks in the input
-	    int nextSOS=findByte(inputString,sosIndex+1,sosBytes);
-
-	    if (stIndex<nextSOS) {
-
-		// between redundancy blocks, add everything apart
-		// from packet loss chars to the output
-		int st=(stIndex==-1)?0:stIndex+stBytes.length;
-		for (int i=st; i<nextSOS; i++) {
-		    if (inputString[i]==(byte)0xef &&
-			inputString[i+1]==(byte)0xbf &&
-			inputString[i+2]==(byte)0xbd) {
-			i+=2;
-			continue;
-		    }
-		    output.add(new Byte(inputString[i]));
+	    else {
+		//EZ: Recover what we can. Replace each non-recoverable
+		//    lost packet with a loss char.
+		for (int i=0;i<(nbrPacketsLost-redLevel);i++) {
+		    appendOutput((byte)0xef);
+		    appendOutput((byte)0xbf);
+		    appendOutput((byte)0xbd);
 		}
 	    }
 
-
-	    if (nextSOS==-1) {
-		int startCopyPos=0;
-		if (stIndex!= -1) {
-		    startCopyPos=stIndex+stBytes.length;
-		}
-
-		// end of redundancy block, add everything afterwards
-		// except packet loss chars
-		done=true;
-		for (int i=startCopyPos; i<inputString.length; i++) {
-		    // EZ 041114: Removed. Should not filter away
-		    //            any incoming data.
-		    /*if (inputString[i]==0xef &&
-		      inputString[i+1]==0xbf &&
-		      inputString[i+2]==0xbd)
-		    {
-		        i+=2;
-		        continue;
-			}*/
-		    output.add(new Byte(inputString[i]));
-		}
-
+	    int pos = 4;
+	    for (int i=0; i<redLevel; i++) {
+		if (pos + 2 > blockLength)
+		    break;
+		int length = digitsToNumber(block[pos], block[pos+1]);
+		pos += 2;
+		if (length == -1 || pos + length > blockLength)
+		    break;
+		if (i >= recoverStart)
+		    appendOutput(block, pos, length);
+		pos += length;
 	    }
-
-	}
-
-	// convert to byte array
-
-	Object[] objarray=output.toArray();
-	byte[] result=new byte[objarray.length];
-
-	for (int cnt=0; cnt<objarray.length; cnt++) {
-	    result[cnt] = ((Byte)objarray[cnt]).byteValue();
 	}
 
-	return result;
+	lastReceivedSeqNr=priSeqNr;
     }
 
 
     /**
-     * Adds T.140 redundancy to T.140 text.
+     * Adds T.140 redundancy to T.140 text. The SOS header, the earlier
+     * generations, ST and the text are written to the buffer returned by
+     * getOutput().
      *
-     * @param The T.140 in byte format.
-     * @return The T.140 text plus redundancy.
+     * @param input The T.140 in byte format, null if there is no new
+     *              text and only old redundant data is sent.
+     * @param length The number of bytes of input.
+     * @return The number of bytes written to the output buffer.
      */
-    public byte[] addRedundancy(byte[] input) {
+    public int addRedundancy(byte[] input, int length) {
+
+	if (input == null)
+	    length = 0;
 
-	byte[] rlevelsBytes=numberToBytes(redundancyLevels);
-	byte[] priseqBytes=numberToBytes(primarySeqNumber,2);
+	outputLength = 0;
 
 	// the header
-	byte[] header=new byte[4+rlevelsBytes.length+priseqBytes.length];
-	header[0]=sosBytes[0];
-	header[1]=sosBytes[1];
-	header[2]=sosBytes[2];
+	appendOutput(sosBytes, 0, sosBytes.length);
 
 	//EZ 041114: Added rfc4103 redundancy support indicator.
 	if (redFlagOutgoing)
-	    header[3]=(byte)('1');
+	    appendOutput((byte)'1');
 	else
-	    header[3]=(byte)('0');
-
-	for (int i=0; i<rlevelsBytes.length; i++)
-	    header[4+i]=rlevelsBytes[i];
-
-	for (int i=0; i<priseqBytes.length; i++)
-	    header[4+rlevelsBytes.length+i]=priseqBytes[i];
-
-	// the body
-	int nbytes=0;
-	if (fifoBuffer.size()<redundancyLevels)
-	    for (int i=0;i<redundancyLevels-fifoBuffer.size(); i++)
-		nbytes+=2;
-
-	for (Iterator itor=fifoBuffer.iterator(); itor.hasNext(); ) {
-	    byte[] elmt=(byte[])itor.next();
-	    //EZ: Added check if last element was null
-	    //    Empty generation used to send old ones.
-	    byte[] lengthBytes = null;
-	    if (elmt!=null) {
-		lengthBytes=this.numberToBytes(elmt.length,2);
-		nbytes+=elmt.length+lengthBytes.length;
-	    }
-	    else {
-		lengthBytes=this.numberToBytes(0,2);
-		nbytes+=lengthBytes.length;
-	    }
-	}
+	    appendOutput((byte)'0');
 
-	byte[] body=new byte[nbytes];
-	int pos=0;
+	appendNumber(redundancyLevels, 1);
+	appendNumber(primarySeqNumber, 2);
 
 	// zero out nonused redundancy levels
-	if (fifoBuffer.size()<redundancyLevels) {
-	    for (int i=0;i<redundancyLevels-fifoBuffer.size(); i++){
-		body[pos]=(byte)'0';
-		body[pos+1]=(byte)'0';
-		pos+=2;
-	    }
+	for (int i=generationCount; i<redundancyLevels; i++) {
+	    appendOutput((byte)'0');
+	    appendOutput((byte)'0');
+	}
+
+	// the body, oldest generation first
+	for (int i=0; i<generationCount; i++) {
+	    int slot = (oldestGeneration + i) % redundancyLevels;
+	    appendNumber(generationLength[slot], 2);
+	    appendOutput(generationData[slot], 0, generationLength[slot]);
 	}
 
-	for (Iterator itor=fifoBuffer.iterator(); itor.hasNext(); ) {
-	    byte[] elmt=(byte[])itor.next();
+	appendOutput(stBytes, 0, stBytes.length);
+
+	if (length > 0)
+	    appendOutput(input, 0, length);
 
-	    // length of the data
-	    byte[] lengthBytes = null;
-	    if (elmt==null) {
-		lengthBytes=this.numberToBytes(0,2);
+	// update the generation ring
+	if (redundancyLevels > 0) {
+	    int slot;
+	    if (generationCount < redundancyLevels) {
+		slot = (oldestGeneration + generationCount) %
+		    redundancyLevels;
+		generationCount++;
 	    }
 	    else {
-		lengthBytes=this.numberToBytes(elmt.length,2);
-	    }
-	    //EZ:  Added check if last element was null
-	    //     Empty generation used to send old ones
-	    for (int i=0; i<lengthBytes.length; i++)
-		body[pos+i]=lengthBytes[i];
-	    pos+=lengthBytes.length;
-
-	    // the data
-	    if (elmt!=null) {
-		for (int j=0; j<elmt.length; j++)
-		    body[pos+j]=elmt[j];
-
-		pos+=elmt.length;
+		slot = oldestGeneration;
+		oldestGeneration = (oldestGeneration + 1) % redundancyLevels;
 	    }
+	    if (generationData[slot].length < length)
+		generationData[slot] = new byte[Math.max(length,
+							 INITIAL_BUFFER_SIZE)];
+	    if (length > 0)
+		System.arraycopy(input, 0, generationData[slot], 0, length);
+	    generationLength[slot] = length;
 	}
 
-	// convert to byte array
-	//EZ: Added check if called with no data. For
-	//    transmitting old redundant data.
-	byte[] result = null;
-	if (input == null)
-	    result = new byte[header.length +
-			     body.length +
-			     stBytes.length];// + 1];
-	else
-	    result=new byte[header.length +
-			   body.length +
-			   stBytes.length +
-			   input.length];//+1];
-
-	System.arraycopy(header,0,result,0,header.length);
-	System.arraycopy(body,0,result,header.length,body.length);
-	System.arraycopy(stBytes,0,result,header.length+
-			                  body.length,
-			                  stBytes.length);
-	//EZ: If function was called with no new data.
-	//    For transmitting old redundant data.
-	if (input != null)
-	    System.arraycopy(input,0,result,header.length+
-			                    body.length+
-   			                    stBytes.length,
-			                    input.length);
-
-	// update FIFO buffer
-	if (fifoBuffer.size() >= redundancyLevels)
-	    fifoBuffer.removeFirst();
-
-	fifoBuffer.addLast(input);
-
 	primarySeqNumber++;
 	if (primarySeqNumber==100)
 	    primarySeqNumber=0;
 
-	return result;
+	return outputLength;
+    }
+
+
+    /**
+     * Writes a number as decimal digits to the output, padded with zeros
+     * to at least the given number of digits.
+     *
+     * @param n The number, not negative.
+     * @param minDigits The smallest number of digits to write.
+     */
+    private void appendNumber(int n, int minDigits) {
+	int digits = 1;
+	for (int rest = n / 10; rest > 0; rest /= 10)
+	    digits++;
+	if (digits < minDigits)
+	    digits = minDigits;
+
+	ensureOutputCapacity(digits);
+	for (int i=digits-1; i>=0; i--) {
+	    output[outputLength + i] = (byte)('0' + n % 10);
+	    n /= 10;
+	}
+	outputLength += digits;
+    }
+
+    private void appendOutput(byte b) {
+	ensureOutputCapacity(1);
+	output[outputLength++] = b;
+    }
+
+    private void appendOutput(byte[] data, int offset, int length) {
+	ensureOutputCapacity(length);
+	System.arraycopy(data, offset, output, outputLength, length);
+	outputLength += length;
+    }
+
+    private void ensureOutputCapacity(int extra) {
+	if (outputLength + extra > output.length) {
+	    byte[] newOutput = new byte[Math.max(outputLength + extra,
+						 output.length * 2)];
+	    System.arraycopy(output, 0, newOutput, 0, outputLength);
+	    output = newOutput;
+	}
     }
 
 }
@@ -0,0 +1,261 @@
+/*
+ * RTP text/t140 Library
+ *
+ * Copyright (C) 2004-2008 Board of Regents of the University of Wisconsin System
+ * (Univ. of Wisconsin-Madison, Trace R&D Center)
+ * Copyright (C) 2004-2008 Omnitor AB
+ *
+ * This software was developed with support from the National Institute on
+ * Disability and Rehabilitation Research, US Dept of Education under Grant
+ * # H133E990006 and H133E040014
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Please send a copy of any improved versions of the library to:
+ * Gunnar Hellstrom, Omnitor AB, Renathvagen 2, SE 121 37 Johanneshov, SWEDEN
+ * Gregg Vanderheiden, Trace Center, U of Wisconsin, Madison, Wi 53706
+ *
+ */
+package se.omnitor.protocol.rtp.text;
+
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A process-wide scheduler for NAT keepalives. <br>
+ * <br>
+ * Instead of every call waking up on its own to check whether it has been
+ * idle, each call registers here with the time it last sent something. One
+ * shared thread sleeps until the earliest moment any call could become
+ * idle for a full interval, and only sends keepalives to calls that really
+ * were. A call that keeps sending just moves its own deadline. <br>
+ * <br>
+ * A registration can also be lined up with RTCP. Then a keepalive that is
+ * due when an RTCP packet is sent goes out along with it, so the radio
+ * wakes up once for both, and the scheduler's own deadline is only a
+ * fallback. When RTCP is multiplexed onto the RTP port, the RTCP packets
+ * keep the NAT binding open by themselves, so no keepalive is sent at all
+ * while they keep coming. <br>
+ */
+public class KeepaliveScheduler implements Runnable {
+
+    /**
+     * Something that needs keepalives when it has been idle.
+     */
+    public interface KeepaliveTarget {
+
+	/**
+	 * Gets the time something was last sent.
+	 *
+	 * @return The time in milliseconds, as System.currentTimeMillis().
+	 */
+	long getLastSendTime();
+
+	/**
+	 * Called on the scheduler's thread to send a keepalive. Must not
+	 * block.
+	 */
+	void sendKeepalive();
+    }
+
+    private static final Logger logger =
+	Logger.getLogger("se.omnitor.protocol.rtp.text");
+
+    private static KeepaliveScheduler sharedInstance = null;
+
+    private final ArrayList<Registration> registrations =
+	new ArrayList<Registration>();
+
+    // Scratch list of registrations to fire outside the lock.
+    // Only touched by the scheduler thread.
+    private final ArrayList<Registration> due = new ArrayList<Registration>();
+
+    private Thread thread;
+
+
+    /**
+     * Gets the scheduler shared by all calls, starting it on first use.
+     *
+     * @return The shared scheduler.
+     */
+    public static synchronized KeepaliveScheduler getInstance() {
+	if (sharedInstance == null) {
+	    sharedInstance = new KeepaliveScheduler();
+	}
+	return sharedInstance;
+    }
+
+    private KeepaliveScheduler() {
+	thread = new Thread(this, "KeepaliveScheduler");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /**
+     * Starts sending keepalives to a target when it is idle.
+     *
+     * @param target The target.
+     * @param interval The longest time in milliseconds the target may be
+     * idle.
+     * @param alignWithRtcp Whether to send keepalives along with RTCP, see
+     * Registration.rtcpSent().
+     *
+     * @return The registration, used to cancel it.
+     */
+    public Registration register(KeepaliveTarget target, int interval,
+				 boolean alignWithRtcp) {
+	if (interval <= 0) {
+	    throw new IllegalArgumentException("bad keepalive interval " +
+					       interval);
+	}
+
+	Registration registration =
+	    new Registration(target, interval, alignWithRtcp);
+
+	synchronized (this) {
+	    registrations.add(registration);
+	    notify(); // The new deadline may be the earliest
+	}
+	return registration;
+    }
+
+    /**
+     * Sleeps until the earliest deadline and sends keepalives to the
+     * targets that are due.
+     */
+    public void run() {
+	while (true) {
+	    long now = System.currentTimeMillis();
+	    long next = Long.MAX_VALUE;
+
+	    synchronized (this) {
+		for (Registration registration : registrations) {
+		    long deadline = registration.getDeadline();
+		    if (deadline <= now) {
+			due.add(registration);
+			registration.lastKeepaliveTime = now;
+		    }
+		    else if (deadline < next) {
+			next = deadline;
+		    }
+		}
+
+		if (due.isEmpty()) {
+		    try {
+			if (next == Long.MAX_VALUE) {
+			    wait();
+			}
+			else {
+			    wait(next - now);
+			}
+		    }
+		    catch (InterruptedException ie) {
+			// Recheck the deadlines
+		    }
+		    continue;
+		}
+	    }
+
+	    // Call out without holding the lock, since targets take their
+	    // own locks. One failing target must not stop the others.
+	    for (int i = 0; i < due.size(); i++) {
+		try {
+		    due.get(i).target.sendKeepalive();
+		}
+		catch (RuntimeException e) {
+		    logger.log(Level.WARNING, "Keepalive target failed", e);
+		}
+	    }
+	    due.clear();
+	}
+    }
+
+
+    /**
+     * One target's keepalives.
+     */
+    public class Registration {
+	private final KeepaliveTarget target;
+	private final int interval;
+	private final boolean alignWithRtcp;
+	private volatile long lastKeepaliveTime;
+	private volatile boolean rtcpMuxed = false;
+
+	private Registration(KeepaliveTarget target, int interval,
+			     boolean alignWithRtcp) {
+	    this.target = target;
+	    this.interval = interval;
+	    this.alignWithRtcp = alignWithRtcp;
+	    this.lastKeepaliveTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Gets the time the target has been quiet since, counting
+	 * keepalives that may not have been sent yet.
+	 */
+	private long getQuietSince() {
+	    return Math.max(target.getLastSendTime(), lastKeepaliveTime);
+	}
+
+	private long getDeadline() {
+	    return getQuietSince() + interval;
+	}
+
+	/**
+	 * Sets whether RTCP is sent on the same port as the target's
+	 * packets, so that each RTCP packet keeps the NAT binding open
+	 * as a keepalive would.
+	 *
+	 * @param rtcpMuxed Whether RTCP is multiplexed with the target.
+	 */
+	public void setRtcpMuxed(boolean rtcpMuxed) {
+	    this.rtcpMuxed = rtcpMuxed;
+	}
+
+	/**
+	 * Tells the scheduler that an RTCP packet was just sent for this
+	 * target. If RTCP is multiplexed with the target, the packet counts
+	 * as a keepalive. Otherwise, if keepalives are lined up with RTCP and
+	 * the target has been idle for the whole interval, the keepalive is
+	 * sent now, on the calling thread.
+	 */
+	public void rtcpSent() {
+	    long now = System.currentTimeMillis();
+	    if (rtcpMuxed) {
+		lastKeepaliveTime = now;
+		return;
+	    }
+	    if (!alignWithRtcp) {
+		return;
+	    }
+
+	    if (now - getQuietSince() >= interval) {
+		lastKeepaliveTime = now;
+		target.sendKeepalive();
+	    }
+	}
+
+	/**
+	 * Stops sending keepalives to the target.
+	 */
+	public void cancel() {
+	    synchronized (KeepaliveScheduler.this) {
+		registrations.remove(this);
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * RTP text/t140 Library
+ *
+ * Copyright (C) 2004-2008 Board of Regents of the University of Wisconsin System
+ * (Univ. of Wisconsin-Madison, Trace R&D Center)
+ * Copyright (C) 2004-2008 Omnitor AB
+ *
+ * This software was developed with support from the National Institute on
+ * Disability and Rehabilitation Research, US Dept of Education under Grant
+ * # H133E990006 and H133E040014
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Please send a copy of any improved versions of the library to:
+ * Gunnar Hellstrom, Omnitor AB, Renathvagen 2, SE 121 37 Johanneshov, SWEDEN
+ * Gregg Vanderheiden, Trace Center, U of Wisconsin, Madison, Wi 53706
+ *
+ */
+package se.omnitor.protocol.rtp.text;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A process-wide hashed timing wheel for packet loss deadlines. <br>
+ * <br>
+ * Every depacketizer registers its missing sequence numbers here instead of
+ * running its own java.util.Timer thread, so all calls share one timer
+ * thread. Deadlines are stored as primitive sequence numbers in per-slot
+ * arrays, so scheduling a deadline does not create a task object. <br>
+ * <br>
+ * Cancellation is implicit: when redundancy recovers a packet, the
+ * depacketizer simply stops treating it as missing, and the expired deadline
+ * is ignored by LossListener.lostPacket(). This makes cancelling free, at
+ * the cost of an entry lingering in the wheel until its deadline. <br>
+ */
+public class LossTimerWheel implements Runnable {
+
+    private static final Logger logger =
+	Logger.getLogger("se.omnitor.protocol.rtp.text");
+
+    /**
+     * Receives expired loss deadlines.
+     */
+    public interface LossListener {
+
+	/**
+	 * Called on the wheel's thread when the deadline for a missing packet
+	 * has passed. Must ignore sequence numbers that are no longer missing.
+	 *
+	 * @param sequenceNumber The sequence number of the missing packet.
+	 */
+	void lostPacket(long sequenceNumber);
+    }
+
+    /**
+     * The wheel resolution in milliseconds.
+     */
+    public static final int TICK_MS = 20;
+
+    /**
+     * Number of slots. 256 slots of 20 ms cover 5.12 seconds, more than
+     * the longest loss wait, so entries normally expire on their first lap.
+     */
+    private static final int WHEEL_SIZE = 256;
+
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private static LossTimerWheel sharedInstance = null;
+
+    private final Slot[] slots = new Slot[WHEEL_SIZE];
+
+    // Scratch space for firing expired entries outside the slot lock.
+    // Only touched by the wheel thread.
+    private long[] firedSequenceNumbers = new long[16];
+    private LossListener[] firedListeners = new LossListener[16];
+
+    private long startTime;
+    private long currentTick = 0;
+
+    private Thread thread;
+
+
+    /**
+     * Gets the wheel shared by all depacketizers, starting it on first use.
+     *
+     * @return The shared wheel.
+     */
+    public static synchronized LossTimerWheel getInstance() {
+	if (sharedInstance == null) {
+	    sharedInstance = new LossTimerWheel();
+	}
+	return sharedInstance;
+    }
+
+    private LossTimerWheel() {
+	for (int i = 0; i < WHEEL_SIZE; i++) {
+	    slots[i] = new Slot();
+	}
+
+	startTime = System.currentTimeMillis();
+
+	thread = new Thread(this, "LossTimerWheel");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /**
+     * Schedules a loss deadline.
+     *
+     * @param listener Who to tell when the deadline passes.
+     * @param sequenceNumber The sequence number of the missing packet.
+     * @param delay The time to wait in milliseconds.
+     */
+    public void schedule(LossListener listener, long sequenceNumber,
+			 int delay) {
+
+	long deadlineTick =
+	    (System.currentTimeMillis() - startTime + delay + TICK_MS - 1)
+	    / TICK_MS;
+
+	Slot slot = slots[(int)(deadlineTick & WHEEL_MASK)];
+	synchronized (slot) {
+	    slot.add(listener, sequenceNumber, deadlineTick);
+	}
+    }
+
+    /**
+     * Advances the wheel one tick at a time and fires expired deadlines.
+     */
+    public void run() {
+	while (true) {
+	    long now = (System.currentTimeMillis() - startTime) / TICK_MS;
+
+	    while (currentTick <= now) {
+		expire(currentTick);
+		currentTick++;
+	    }
+
+	    try {
+		Thread.sleep(TICK_MS);
+	    }
+	    catch (InterruptedException ie) {
+		// Keep ticking
+	    }
+	}
+    }
+
+    private void expire(long tick) {
+	Slot slot = slots[(int)(tick & WHEEL_MASK)];
+	int fired = 0;
+
+	synchronized (slot) {
+	    int i = 0;
+	    while (i < slot.size) {
+		if (slot.deadlineTicks[i] <= tick) {
+		    if (fired == firedSequenceNumbers.length) {
+			growFired();
+		    }
+		    firedSequenceNumbers[fired] = slot.sequenceNumbers[i];
+		    firedListeners[fired] = slot.listeners[i];
+		    fired++;
+		    slot.remove(i);
+		}
+		else {
+		    i++;
+		}
+	    }
+	}
+
+	// Call out without holding the slot, since listeners take their
+	// own locks and may schedule new deadlines. One failing listener
+	// must not stop loss detection for every other call.
+	for (int i = 0; i < fired; i++) {
+	    try {
+		firedListeners[i].lostPacket(firedSequenceNumbers[i]);
+	    }
+	    catch (RuntimeException e) {
+		logger.log(Level.WARNING, "Loss listener failed", e);
+	    }
+	    firedListeners[i] = null;
+	}
+    }
+
+    private void growFired() {
+	int size = firedSequenceNumbers.length * 2;
+	long[] sequenceNumbers = new long[size];
+	LossListener[] listeners = new LossListener[size];
+	System.arraycopy(firedSequenceNumbers, 0, sequenceNumbers, 0,
+			 firedSequenceNumbers.length);
+	System.arraycopy(firedListeners, 0, listeners, 0,
+			 firedListeners.length);
+	firedSequenceNumbers = sequenceNumbers;
+	firedListeners = listeners;
+    }
+
+
+    /**
+     * The deadlines hashed to one wheel position, as parallel arrays.
+     */
+    private static class Slot {
+	long[] sequenceNumbers = new long[4];
+	long[] deadlineTicks = new long[4];
+	LossListener[] listeners = new LossListener[4];
+	int size = 0;
+
+	void add(LossListener listener, long sequenceNumber,
+		 long deadlineTick) {
+	    if (size == sequenceNumbers.length) {
+		int newSize = size * 2;
+		long[] s = new long[newSize];
+		long[] d = new long[newSize];
+		LossListener[] l = new LossListener[newSize];
+		System.arraycopy(sequenceNumbers, 0, s, 0, size);
+		System.arraycopy(deadlineTicks, 0, d, 0, size);
+		System.arraycopy(listeners, 0, l, 0, size);
+		sequenceNumbers = s;
+		deadlineTicks = d;
+		listeners = l;
+	    }
+	    sequenceNumbers[size] = sequenceNumber;
+	    deadlineTicks[size] = deadlineTick;
+	    listeners[size] = listener;
+	    size++;
+	}
+
+	// Order within a slot does not matter, so move the last entry in.
+	void remove(int i) {
+	    size--;
+	    sequenceNumbers[i] = sequenceNumbers[size];
+	    deadlineTicks[i] = deadlineTicks[size];
+	    listeners[i] = listeners[size];
+	    listeners[size] = null;
+	}
+    }
+
+}
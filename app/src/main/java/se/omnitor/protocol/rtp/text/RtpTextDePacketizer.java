@@ -30,20 +30,21 @@
  */
 package se.omnitor.protocol.rtp.text;
 
-import java.util.Hashtable;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.ByteArrayOutputStream;
 import java.util.logging.Logger;
 
+import gov.nist.util.Trace;
+
 /**
  * Extracts data from incoming RTP-Text packets. <br>
- * Also handles missing packets. <br>
+ * Also handles missing packets. Loss deadlines are kept in the shared
+ * LossTimerWheel rather than a timer thread per depacketizer. <br>
  * <br>
  *
  * @author Erik Zetterstrom, Omnitor AB
  * @author Andreas Piirimets, Omnitor AB
  */
-public class RtpTextDePacketizer {
+public class RtpTextDePacketizer implements LossTimerWheel.LossListener {
 
     //Masks for depacketizer
 
@@ -68,17 +69,43 @@ public class RtpTextDePacketizer {
     //The sequence number of the last output packet
     private long lastOutput            = 0;
 
-    private Hashtable<Long, Long> missingPackets  = null;
-    private Hashtable<Long, byte[]> receivedPackets = null;
+    /**
+     * The number of sequence numbers the packet window spans. Must be a
+     * power of 2.
+     */
+    private static final int WINDOW_SIZE = 64;
+
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+    //State of the packets lastOutput+1 .. lastOutput+WINDOW_SIZE, indexed by
+    //sequence number & WINDOW_MASK. A slot is cleared when its text is
+    //output, so the window slides along and never grows.
+    private long[] slotSequenceNumber = new long[WINDOW_SIZE];
+    private byte[][] slotData         = new byte[WINDOW_SIZE][];
+    private int[] slotOffset          = new int[WINDOW_SIZE];
+    private int[] slotLength          = new int[WINDOW_SIZE];
+    private boolean[] slotMissing     = new boolean[WINDOW_SIZE];
+    private boolean[] slotLost        = new boolean[WINDOW_SIZE];
+
+    //Whether the last data output was a LOSS CHAR, to avoid repeating it.
+    private boolean lastOutputLost = false;
+
+    //Collects the text output by one call to decode. Reused between calls,
+    //so a recovered burst is copied once instead of once per packet.
+    private ByteArrayOutputStream outputSink = new ByteArrayOutputStream(256);
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    //Describes the blocks of the packet being decoded.
+    private RtpTextRedParser redParser = new RtpTextRedParser();
 
     private int redundantGenerations = 0;
     private boolean redFlagIncoming = false;
 
     private int t140PayloadType;
-    private byte signedT140PayloadType;
     private int redPayloadType;
 
-    private Timer timer = null;
+    private LossTimerWheel lossTimer = null;
 
     private boolean firstPacket = true;
 
@@ -102,86 +129,18 @@ public class RtpTextDePacketizer {
         this.redFlagIncoming = redFlagIncoming;
         this.redPayloadType = redPt;
 
-        timer = new Timer();
-
-        signedT140PayloadType = (byte)((byte)t140PayloadType | (byte)0x80);
-
-        missingPackets  = new Hashtable<Long, Long>(10);
-        receivedPackets = new Hashtable<Long, byte[]>(30);
-
-    }
-
-    /**
-     * Destructor. Preforms cleanup.
-     *
-     */
-    protected void finalize() {
-        timer.cancel();
-    }
-
-
-    /**
-     * Removes excess zeros that are received in the input buffer.
-     *
-     * @param in The received data
-     *
-     * @return Received data without excess zeros.
-     */
-    private byte[] filterZeros(byte[] in) {
-        byte[] filtered = null;
-        int start=0;
-        int end=in.length;
-        boolean lastData=true;
-
-        //Find start of data
-        int i=0;
-	boolean foundData = false;
-	for (i=0;i<in.length;i++) {
-            if (in[i]!=0) {
-                start=i;
-		foundData = true;
-                break;
-            }
-        }
-
-        //No data found
-	// Changed by Andreas Piirimets 2004-02-12
-        // if (i==(in.length-1)) {
-	if (!foundData) {
-            return new byte[0];
-        }
+        lossTimer = LossTimerWheel.getInstance();
 
-        //Find end of data
-        for (int j=start;j<in.length;j++) {
-            if (in[j]==0) {
-                for (int k=(j+1);k<in.length;k++) {
-                    if (in[k]!=0) {
-                        lastData=false;
-                        break;
-                    }
-                }
-                if (lastData) {
-		    // Changed by Andreas Piirimets 2004-02-22
-		    // end=j-1;
-                    end=j;
-                    break;
-                }
-                lastData=true;
-            }
+        for (int i=0;i<WINDOW_SIZE;i++) {
+            slotSequenceNumber[i] = -1;
         }
 
-	// Changed by Andreas Piirimets 2004-02-11
-        // int length = end-start+1;
-        int length = end-start;
-        filtered = new byte[length];
-
-	java.lang.System.arraycopy(in,start,filtered,0,length);
-
-        return filtered;
     }
 
     /**
-     * Extracts data from received packets. Handles missing packets.
+     * Extracts data from received packets. Handles missing packets. <br>
+     * The input data is not copied. It is referred to until its text has
+     * been output, so the caller must not reuse the array.
      *
      * @param inputBuffer  The received packet
      * @param outputBuffer The extracted data
@@ -193,32 +152,30 @@ public class RtpTextDePacketizer {
     public synchronized int decode(RtpTextBuffer inputBuffer,
 				   RtpTextBuffer outputBuffer) {
 
-        long currentSequenceNumber = inputBuffer.getSequenceNumber();
-        long currentTimeStamp      = inputBuffer.getTimeStamp();
-
-        byte[] outData    = new byte[0];
-        byte[] newData    = null;
-        byte[] oldOutData = null;
-        byte[] bufferData = new byte[inputBuffer.getLength()];
-	byte[] rawData    =(byte[])inputBuffer.getData();
+        long currentSequenceNumber =
+	    extendSequenceNumber(inputBuffer.getSequenceNumber());
 
+	//Find the data in the buffer, without the zeros around it
+	byte[] data = (byte[])inputBuffer.getData();
+	int start = inputBuffer.getOffset();
+	int end = start + inputBuffer.getLength();
+	while (start < end && data[start] == 0) {
+	    start++;
+	}
+	while (end > start && data[end-1] == 0) {
+	    end--;
+	}
 
-	//Get the data from the buffer
-	System.arraycopy((byte[])inputBuffer.getData(),
-			 inputBuffer.getOffset(),
-			 bufferData,
-			 0,
-			 inputBuffer.getLength());
-
-
-	//Get rid of any zeros
-	byte[] data = filterZeros(bufferData);
-
+	//Walk the redundancy headers once, the blocks stay in place
 	if (redFlagIncoming) {
-	    redundantGenerations=getRedundantGenerations(data);
+	    if (!redParser.parse(data, start, end-start, t140PayloadType)) {
+		logger.warning("Malformed redundancy in RTP text packet, " +
+			       "could not find primary data!");
+	    }
 	} else {
-	    redundantGenerations=0;
+	    redParser.setPrimaryOnly(data, start, end-start);
 	}
+	redundantGenerations = redParser.getGenerations();
 
 
         //First packet received
@@ -229,63 +186,44 @@ public class RtpTextDePacketizer {
 	    ssrc = inputBuffer.getSsrc();
         }
 
-        //Check for sequencenumber wraparound
-        else if (lastSequenceNumber >
-                 TextConstants.MAX_SEQUENCE_NUMBER-
-                 TextConstants.WRAP_AROUND_MARGIN &&
-                 currentSequenceNumber <
-                 TextConstants.WRAP_AROUND_MARGIN) {
-
-            //No packets lost
-            if (lastSequenceNumber == TextConstants.MAX_SEQUENCE_NUMBER &&
-                currentSequenceNumber==0) {
-                lastSequenceNumber=currentSequenceNumber-1;
-            }
-
-            //Lost packets
-            else {
-                lastSequenceNumber=lastSequenceNumber-
-                    TextConstants.MAX_SEQUENCE_NUMBER;
-            }
-        }
-
 	// If wrong SSRC, ignore
 	if (inputBuffer.getSsrc() != ssrc) {
 	    outputBuffer.setData(new byte[0]);
 	    return 1;
 	}
 
+        outputSink.reset();
+
+        //Make room in the window. Packets that still have not arrived are
+        //given up on, as their loss timers would be anyway.
+        if (currentSequenceNumber - lastOutput > WINDOW_SIZE) {
+            output(currentSequenceNumber - WINDOW_SIZE);
+        }
+
         //Packet received in order.
         if (currentSequenceNumber == (lastSequenceNumber+1)) {
 
-            byte[] d = getData(0, data);
-            receivedPackets.put(Long.valueOf(currentSequenceNumber),(byte [])d);
-            d=(byte[])receivedPackets.get(Long.valueOf(currentSequenceNumber));
+            setReceived(currentSequenceNumber, 0);
             lastSequenceNumber = currentSequenceNumber;
 
         }
 
         //New packet(s) missing.
         else if ((currentSequenceNumber-lastSequenceNumber)>0) {
-            receivedPackets.put(Long.valueOf(currentSequenceNumber),
-                                getData(0,data));
-            for (int i=(int)(currentSequenceNumber - lastSequenceNumber)-1;
-                 i>0;
-                 i--) {
-                if (!(missingPackets.containsKey(
-                      Long.valueOf(currentSequenceNumber-i)))) {
-
-                    LossTimerTask ltt =
-			new LossTimerTask(currentSequenceNumber-i, this);
+            setReceived(currentSequenceNumber, 0);
+            for (long seq=Math.max(lastSequenceNumber, lastOutput)+1;
+                 seq<currentSequenceNumber;
+                 seq++) {
+                if (!isMissing(seq) && !isReceived(seq)) {
+
                     if (redFlagIncoming) {
-                        timer.schedule((TimerTask)ltt,
+                        lossTimer.schedule(this, seq,
                               TextConstants.WAIT_FOR_MISSING_PACKET_RED);
                     } else {
-                        timer.schedule((TimerTask)ltt,
+                        lossTimer.schedule(this, seq,
                                        TextConstants.WAIT_FOR_MISSING_PACKET);
                     }
-                    missingPackets.put(Long.valueOf(currentSequenceNumber-i),
-                                       Long.valueOf(currentTimeStamp));
+                    setMissing(seq);
                 }
             }
             lastSequenceNumber = currentSequenceNumber;
@@ -300,43 +238,12 @@ public class RtpTextDePacketizer {
         //Check if the redundant data in the received packet can be used to
         //restore missing packets.
         for (int i=0;i<=redundantGenerations;i++) {
-            receivedMissingPacket(currentSequenceNumber-i,i,data);
+            receivedMissingPacket(currentSequenceNumber-i,i);
         }
 
         //Output data if possible.
         //Get packets in order from last output.
-        boolean rKey=receivedPackets.containsKey(Long.valueOf(lastOutput+1));
-	byte[] lastData = null;
-        while (rKey) {// || !mKey) {
-
-            //Get packets that are ready
-            if (rKey) {
-                oldOutData=outData;
-                newData   =(byte[])receivedPackets.get(Long.valueOf(lastOutput+1));
-
-		if (!(lastData == TextConstants.LOSS_CHAR &&
-		      newData == TextConstants.LOSS_CHAR)) {
-
-		    outData   =new byte[oldOutData.length + newData.length];
-		    System.arraycopy(oldOutData,
-				     0,
-				     outData,
-				     0,
-				     oldOutData.length);
-		    System.arraycopy(newData,
-				     0,
-				     outData,
-				     oldOutData.length,
-				     newData.length);
-
-		    lastData = newData;
-		}
-
-		lastOutput++;
-		rKey=receivedPackets.containsKey(Long.valueOf(lastOutput+1));
-
-            }
-        }
+        output(lastOutput);
 
 
 
@@ -366,149 +273,12 @@ public class RtpTextDePacketizer {
             TextConstants.printDebug(""+outData[k],4);
             }*/
 
-        outputBuffer.setData(outData);
+        outputBuffer.setData(outputSink.toByteArray());
         data=null;
 
-	//Make sure the buffer is cleared!
-	for (int k=0;k<rawData.length;k++) {
-	    rawData[k]=0;
-	}
-        inputBuffer.setData(rawData);
-
         return 1;
     }
 
-    /**
-     * Find out how many redundantGenerations there are in the received packet.
-     *
-     * @param data The packet.
-     *
-     * @return The number of redundant generations in this packet.
-     */
-    public int getRedundantGenerations(byte[] data) {
-
-	int walker = 0;
-	int redGens = 0;
-
-	while (data[walker] == signedT140PayloadType) {
-	    redGens++;
-	    walker += TextConstants.REDUNDANT_HEADER_SIZE;
-	}
-
-	if (data[walker] != t140PayloadType) {
-	    logger.warning("Malformed redundancy in RTP text packet, could " +
-			   "not fint primary data!");
-
-	    redGens = 0;
-	}
-
-	return redGens;
-
-    }
-
-    /**
-     * Utility function that extracts the data associated with a certain
-     * redundant generation. Generation 0 extracts the primary data.
-     *
-     * @param generation The generation of data to be extracted.
-     * @param data       The packet.
-     *
-     * @return The extracted data. null if invalid generation.
-     */
-    private byte[] getData(int generation,byte[] data) {
-        byte blockLengthByteHigh = 0x00;
-        byte blockLengthByteLow  = 0x00;
-        long startLength         = 0;
-        long blockLength         = 0;
-
-        byte[] extractedData     = null;
-
-        long[] blockLengths      = new long[redundantGenerations];
-
-
-        //No redundancy
-
-        //Parse the length of the individual blocks.
-        for (int i=0;i<redundantGenerations;i++) {
-	    blockLengthByteHigh =
-		data[TextConstants.REDUNDANT_HEADER_SIZE*i+2];
-            blockLengthByteLow =
-		data[TextConstants.REDUNDANT_HEADER_SIZE*i+3];
-            blockLength = (long)(((blockLengthByteHigh &
-				   RTP_DEPACK_BLOCKLEN_UPPER_MASK) << 8)
-				 | (blockLengthByteLow &
-				    RTP_DEPACK_BLOCKLEN_LOWER_MASK));
-            blockLengths[i] = blockLength;
-
-        }
-
-        //Each generation takes 4 bytes header space + end header 1 byte.
-        if (redundantGenerations>0) {
-            startLength = redundantGenerations*
-                TextConstants.REDUNDANT_HEADER_SIZE+
-                TextConstants.PRIMARY_HEADER_SIZE;
-        }
-
-	//EZ 041114: Removed below, easier to use the stored
-	// blocklengths above.
-        //Get the correct startpoint for data.
-        //tempGeneration=redundantGenerations-generation;
-
-        //Find start index for primary data.
-        /*for (int i=0;i<tempGeneration;i++) {
-            blockLengthByteHigh=data[TextConstants.REDUNDANT_HEADER_SIZE*(i)+2];
-            blockLengthByteLow =data[TextConstants.REDUNDANT_HEADER_SIZE*(i)+3];
-            startLength += (long)(((blockLengthByteHigh &
-                                    RTP_DEPACK_BLOCKLEN_UPPER_MASK)<<8 ) |
-                                  (blockLengthByteLow &
-                                   RTP_DEPACK_BLOCKLEN_LOWER_MASK)) ;
-				   }*/
-
-	//Extract primary data.
-        if (generation==0) {
-	    long primaryStart = startLength;
-
-	    for (int i=0;i<blockLengths.length;i++) {
-		primaryStart+=blockLengths[i];
-	    }
-
-            extractedData = new byte[(int)(data.length-primaryStart)];
-            System.arraycopy(data,
-                             (int)primaryStart,
-                             extractedData,
-                             0,
-                             (data.length-(int)primaryStart));
-
-            return extractedData;
-        }
-
-	//EZ: Removed below. Use the stored blocklengths.
-        //Get length of wanted block.
-        /*blockLengthByteHigh = data[TextConstants.REDUNDANT_HEADER_SIZE*
-                                   (redundantGenerations-generation)+2];
-        blockLengthByteLow  = data[TextConstants.REDUNDANT_HEADER_SIZE*
-                                   (redundantGenerations-generation)+3];
-        blockLength         = (long)(((blockLengthByteHigh &
-                                       RTP_DEPACK_BLOCKLEN_UPPER_MASK) << 8) |
-                                     (blockLengthByteLow &
-				     RTP_DEPACK_BLOCKLEN_LOWER_MASK));*/
-
-	//EZ 041114: Get the blocklength of the redundant generation
-	blockLength = blockLengths[redundantGenerations-generation];
-	for (int i=0;i<(redundantGenerations-generation);i++)
-	    startLength +=blockLengths[i];
-
-        //Extract wanted block.
-        extractedData = new byte[(int)blockLength]; //POSSIBLE LOSS
-        System.arraycopy(data,
-                         (int)startLength,
-                         extractedData,
-                         0,
-                         (int)blockLength);
-
-        return extractedData;
-    }
-
 
     /**
      * Converts received UTF-8 text to the desired format.
@@ -539,113 +309,199 @@ public class RtpTextDePacketizer {
      * Function to handle the reception of missingpackets.
      *
      * @param sequenceNumber The sequenceNumber of the recieved packet.
-     * @param i Redundant generation of the received packet that contains the
-     * desired data.
-     * @param data The data of the received packet.
+     * @param i Redundant generation of the packet being decoded that
+     * contains the desired data.
      */
-    public void receivedMissingPacket(long sequenceNumber, int i,byte[] data) {
-	if (missingPackets.containsKey(Long.valueOf(sequenceNumber))) {
-
-	    missingPackets.remove(Long.valueOf(sequenceNumber));
-            if (!receivedPackets.containsKey(Long.valueOf(sequenceNumber))) {
-                receivedPackets.put(new Long(sequenceNumber),
-                                    (byte[])getData((i),
-                                                    data));
-            }
+    private void receivedMissingPacket(long sequenceNumber, int i) {
+	if (isMissing(sequenceNumber)) {
+	    setReceived(sequenceNumber, i);
         }
     }
 
+    /**
+     * Outputs everything received so far, giving up on packets that are
+     * still missing, as if their loss timers had run out. This is used when
+     * the stream has ended or restarted, so that no more packets will come
+     * to push the held text out.
+     *
+     * @param outputBuffer The extracted data
+     */
+    public synchronized void flush(RtpTextBuffer outputBuffer) {
+	outputSink.reset();
+	if (!firstPacket) {
+	    output(lastSequenceNumber);
+	}
+	outputBuffer.setData(outputSink.toByteArray());
+    }
+
     //EZ: 041114
     /**
      * Function to handle lost packets. Adds the LOSS CHAR to output.
+     * Called by the LossTimerWheel when the wait for a missing packet is
+     * over. If the packet was recovered in the meantime it is no longer
+     * missing, and the deadline is ignored.
      *
      * @param sequenceNumber The sequence number of the lost packet.
      */
-    public void lostPacket(long sequenceNumber) {
-	missingPackets.remove(Long.valueOf(sequenceNumber));
-	if (!receivedPackets.containsKey(Long.valueOf(sequenceNumber))) {
-	    byte[] dataToAdd = TextConstants.LOSS_CHAR;
+    public synchronized void lostPacket(long sequenceNumber) {
+	if (!isMissing(sequenceNumber)) {
+	    return;
+	}
 
-	    if (receivedPackets.containsKey(Long.valueOf(sequenceNumber+1)) &&
-		(receivedPackets.get(Long.valueOf(sequenceNumber+1)) ==
-		 TextConstants.LOSS_CHAR)) {
+	Trace.event(Trace.DEBUG, Trace.PACKET_LOST, sequenceNumber, 0);
 
-		dataToAdd = new byte[0];
+	if (isLost(sequenceNumber+1) || isLost(sequenceNumber-1)) {
+	    setReceived(sequenceNumber, NO_DATA, 0, 0, false);
+	}
+	else {
+	    setReceived(sequenceNumber, TextConstants.LOSS_CHAR, 0,
+			TextConstants.LOSS_CHAR.length, true);
+	}
+    }
 
-	    }
-	    else if (receivedPackets.containsKey(Long.valueOf(sequenceNumber-1)) &&
-		     (receivedPackets.get(Long.valueOf(sequenceNumber-1)) ==
-		      TextConstants.LOSS_CHAR)) {
+    /**
+     * Extends a 16 bit sequence number to 64 bits, relative to the last
+     * received one, so that wraparound is transparent.
+     *
+     * @param sequenceNumber The sequence number from the RTP header.
+     *
+     * @return The extended sequence number.
+     */
+    private long extendSequenceNumber(long sequenceNumber) {
+	if (firstPacket) {
+	    return sequenceNumber;
+	}
 
-		dataToAdd = new byte[0];
+	int delta = (short)(sequenceNumber -
+			    (lastSequenceNumber &
+			     TextConstants.MAX_SEQUENCE_NUMBER));
+	return lastSequenceNumber + delta;
+    }
 
+    /**
+     * Outputs packets in order from lastOutput, clearing their slots.
+     * Packets up to and including giveUpTo are output whether they have
+     * arrived or not, missing ones as a LOSS CHAR; after that, output stops
+     * at the first packet that has not arrived. The data is written to
+     * outputSink.
+     *
+     * @param giveUpTo The last sequence number to output in any case.
+     */
+    private void output(long giveUpTo) {
+	long windowEnd = lastOutput + WINDOW_SIZE;
+
+	while (isReceived(lastOutput+1) || lastOutput < giveUpTo) {
+	    long sequenceNumber = lastOutput+1;
+
+	    //Nothing is kept beyond the window, just skip ahead
+	    if (sequenceNumber > windowEnd) {
+		appendOutput(TextConstants.LOSS_CHAR, 0,
+			     TextConstants.LOSS_CHAR.length, true);
+		lastOutput = giveUpTo;
+		break;
 	    }
 
-	    receivedPackets.put(Long.valueOf(sequenceNumber), dataToAdd);
+	    int slot = (int)(sequenceNumber & WINDOW_MASK);
+	    if (isReceived(sequenceNumber)) {
+		appendOutput(slotData[slot], slotOffset[slot],
+			     slotLength[slot], slotLost[slot]);
+	    }
+	    else {
+		appendOutput(TextConstants.LOSS_CHAR, 0,
+			     TextConstants.LOSS_CHAR.length, true);
+	    }
 
+	    slotSequenceNumber[slot] = -1;
+	    slotData[slot] = null;
+	    slotMissing[slot] = false;
+	    slotLost[slot] = false;
+	    lastOutput = sequenceNumber;
 	}
     }
 
+    /**
+     * Appends data to the output, skipping a LOSS CHAR that would follow
+     * another one.
+     */
+    private void appendOutput(byte[] newData, int offset, int length,
+			      boolean lost) {
+	if (lost && lastOutputLost) {
+	    return;
+	}
+
+	if (length > 0) {
+	    lastOutputLost = lost;
+	}
+
+	outputSink.write(newData, offset, length);
+    }
 
     /**
-     * Inner class that defines what to do when a packet is lost.
-     *
-     * @author Andreas Piirimets, Omnitor AB
+     * Checks whether a sequence number is in the window, which holds
+     * lastOutput+1 .. lastOutput+WINDOW_SIZE.
      */
-    private class LossTimerTask extends TimerTask {
-
-        private long sequenceNumber = 0;
-        private RtpTextDePacketizer parent = null;
-
-        /**
-         * Create a new LossTimerTask.
-         *
-         * @param seq The sequence number of the missingpacket.
-         * @param parent The creator of this object.
-         */
-        public LossTimerTask(long seq, RtpTextDePacketizer parent) {
-            sequenceNumber=seq;
-            this.parent=parent;
-        }
+    private boolean inWindow(long sequenceNumber) {
+	return sequenceNumber > lastOutput &&
+	    sequenceNumber <= lastOutput + WINDOW_SIZE;
+    }
 
+    private boolean isReceived(long sequenceNumber) {
+	int slot = (int)(sequenceNumber & WINDOW_MASK);
+	return inWindow(sequenceNumber) &&
+	    slotSequenceNumber[slot] == sequenceNumber &&
+	    slotData[slot] != null;
+    }
 
-        /**
-         * Preform the work.
-	 *
-         */
-        public void run() {
-
-	    //EZ: Removed below. Unessecary to make parseable data.
-	    //    Just add LOSS CHAR to output.
-
-	    // Changed by Andreas Piirimets 2004-03-11
-	    // The LOSS_CHAR has to be sent in UTF-8 format
-            //parent.receivedMissingPacket(sequenceNumber,
-            //                             0,
-            //                             TextConstants.LOSS_CHAR);
-	    //try {
-
-	    //parent.receivedMissingPacket
-	    //    (sequenceNumber,
-	    ///     0,
-	    //     TextConstants.LOSS_CHAR);
-		     //(new String(""+TextConstants.LOSS_CHAR_CHAR)).
-		     //getBytes("UTF-8"));
-		//}
-		//catch (java.io.UnsupportedEncodingException uee) {
-		//parent.receivedMissingPacket
-		//    (sequenceNumber,
-		//     0,
-		//     new byte[0]);
-		//}
-	    // End of change
-
-	    //EZ 041114: Add LOSS CHAR to output.
-	    parent.lostPacket(sequenceNumber);
-
-            this.cancel();
-        }
+    private boolean isMissing(long sequenceNumber) {
+	int slot = (int)(sequenceNumber & WINDOW_MASK);
+	return inWindow(sequenceNumber) &&
+	    slotSequenceNumber[slot] == sequenceNumber &&
+	    slotMissing[slot];
+    }
 
+    private boolean isLost(long sequenceNumber) {
+	int slot = (int)(sequenceNumber & WINDOW_MASK);
+	return inWindow(sequenceNumber) &&
+	    slotSequenceNumber[slot] == sequenceNumber &&
+	    slotLost[slot];
     }
 
-}
\ No newline at end of file
+    /**
+     * Stores a block of the packet being decoded as the data of a sequence
+     * number.
+     */
+    private void setReceived(long sequenceNumber, int generation) {
+	setReceived(sequenceNumber, redParser.getData(),
+		    redParser.getOffset(generation),
+		    redParser.getLength(generation), false);
+    }
+
+    private void setReceived(long sequenceNumber, byte[] data, int offset,
+			     int length, boolean lost) {
+	if (!inWindow(sequenceNumber)) {
+	    return;
+	}
+
+	int slot = (int)(sequenceNumber & WINDOW_MASK);
+	slotSequenceNumber[slot] = sequenceNumber;
+	slotData[slot] = data;
+	slotOffset[slot] = offset;
+	slotLength[slot] = length;
+	slotMissing[slot] = false;
+	slotLost[slot] = lost;
+    }
+
+    private void setMissing(long sequenceNumber) {
+	if (!inWindow(sequenceNumber)) {
+	    return;
+	}
+
+	int slot = (int)(sequenceNumber & WINDOW_MASK);
+	slotSequenceNumber[slot] = sequenceNumber;
+	slotData[slot] = null;
+	slotMissing[slot] = true;
+	slotLost[slot] = false;
+    }
+
+
+}
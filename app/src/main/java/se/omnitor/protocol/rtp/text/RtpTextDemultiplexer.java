@@ -0,0 +1,262 @@
+/*
+ * RTP text/t140 Library
+ *
+ * Copyright (C) 2004-2008 Board of Regents of the University of Wisconsin System
+ * (Univ. of Wisconsin-Madison, Trace R&D Center)
+ * Copyright (C) 2004-2008 Omnitor AB
+ *
+ * This software was developed with support from the National Institute on
+ * Disability and Rehabilitation Research, US Dept of Education under Grant
+ * # H133E990006 and H133E040014
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Please send a copy of any improved versions of the library to:
+ * Gunnar Hellstrom, Omnitor AB, Renathvagen 2, SE 121 37 Johanneshov, SWEDEN
+ * Gregg Vanderheiden, Trace Center, U of Wisconsin, Madison, Wi 53706
+ *
+ */
+package se.omnitor.protocol.rtp.text;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import gov.nist.jrtp.RtpSequence;
+
+/**
+ * Sorts incoming RTP-Text packets by SSRC, with a depacketizer for each
+ * stream. <br>
+ * A stream that restarts, or is replaced by one with a new SSRC, as when
+ * a border controller fails over, is picked up at once instead of being
+ * ignored. Packets come through the session's reorder buffer, which only
+ * lets a jump in the sequence numbers through once the next packet confirms
+ * it, so a jump seen here is taken as a restart at once. Text still held
+ * by a stream that has restarted, left with an RTCP BYE or gone quiet is
+ * flushed out, and streams that stay quiet are dropped. <br>
+ * <br>
+ * The text of all streams goes to the same output. <br>
+ *
+ * @author Unknown
+ */
+public class RtpTextDemultiplexer {
+
+    /**
+     *   How long a stream may be quiet before its held text is flushed.
+     *   Loss timers have given up on its missing packets by then.
+     */
+    private static final long FLUSH_TIMEOUT =
+	TextConstants.WAIT_FOR_MISSING_PACKET_RED;
+
+    /**
+     *   How long a stream may be quiet before it is dropped. Keepalives
+     *   come more often than this.
+     */
+    private static final long IDLE_TIMEOUT = 2L * SyncBuffer.KEEPALIVE_INTERVAL;
+
+    /**
+     *   The most streams kept; the quietest one is dropped to make room.
+     */
+    private static final int MAX_STREAMS = 8;
+
+    private Map<Long, Stream> streams = new HashMap<Long, Stream>();
+
+    private ByteArrayOutputStream outputSink = new ByteArrayOutputStream(256);
+
+    private RtpTextBuffer flushBuffer = new RtpTextBuffer();
+
+    private int t140PayloadType;
+    private int redPayloadType;
+    private boolean redFlagIncoming;
+
+    private Logger logger;
+
+    /**
+     * The state of one incoming stream.
+     */
+    private class Stream {
+	RtpTextDePacketizer dePacketizer = newDePacketizer();
+	int lastSeq;
+	long lastReceiveTime;
+	boolean flushed = true;
+    }
+
+    /**
+     * Initializes the demultiplexer. The depacketizers are created with the
+     * same formats.
+     *
+     * @param t140PayloadType Payload type to use.
+     * @param redPt Payload type of redundant data.
+     * @param redFlagIncoming Indicates if redundancy is on or off.
+     */
+    public RtpTextDemultiplexer(int t140PayloadType, int redPt,
+				boolean redFlagIncoming) {
+
+	logger = Logger.getLogger("se.omnitor.protocol.rtp.text");
+
+	this.t140PayloadType = t140PayloadType;
+	this.redPayloadType = redPt;
+	this.redFlagIncoming = redFlagIncoming;
+    }
+
+    /**
+     * Extracts data from a received packet with the depacketizer of its
+     * stream. Held text of other streams that have gone quiet is output as
+     * well. <br>
+     * The input data is not copied, so the caller must not reuse the
+     * array.
+     *
+     * @param inputBuffer  The received packet
+     * @param outputBuffer The extracted data
+     *
+     * @return 1 if success
+     * @return 0 if parse failure
+     */
+    public synchronized int decode(RtpTextBuffer inputBuffer,
+				   RtpTextBuffer outputBuffer) {
+
+	long now = System.currentTimeMillis();
+	long ssrc = inputBuffer.getSsrc();
+	int seq = (int)(inputBuffer.getSequenceNumber() &
+			(RtpSequence.RTP_SEQ_MOD - 1));
+
+	outputSink.reset();
+	expire(now, ssrc);
+
+	Stream stream = streams.get(ssrc);
+	if (stream == null) {
+	    if (streams.size() >= MAX_STREAMS) {
+		removeQuietest();
+	    }
+	    stream = new Stream();
+	    streams.put(ssrc, stream);
+	    logger.fine("New RTP text stream, SSRC " + ssrc);
+	}
+	else if (RtpSequence.isJump(seq, stream.lastSeq)) {
+	    logger.fine("RTP text stream restarted, SSRC " + ssrc);
+	    flush(stream);
+	    stream.dePacketizer = newDePacketizer();
+	}
+
+	stream.lastSeq = seq;
+	stream.lastReceiveTime = now;
+	int result = decode(stream, inputBuffer);
+	outputBuffer.setData(outputSink.toByteArray());
+	return result;
+    }
+
+    /**
+     * Ends a stream, for example when an RTCP BYE is received for it. Its
+     * held text is output.
+     *
+     * @param ssrc The SSRC of the stream
+     * @param outputBuffer The extracted data
+     */
+    public synchronized void sourceLeft(long ssrc,
+					RtpTextBuffer outputBuffer) {
+	outputSink.reset();
+	Stream stream = streams.remove(ssrc);
+	if (stream != null) {
+	    logger.fine("RTP text stream left, SSRC " + ssrc);
+	    flush(stream);
+	}
+	outputBuffer.setData(outputSink.toByteArray());
+    }
+
+    /**
+     * Gets the number of streams that are being received.
+     *
+     * @return The number of streams
+     */
+    public synchronized int getStreamCount() {
+	return streams.size();
+    }
+
+    /**
+     * Decodes a packet with the depacketizer of a stream and appends the
+     * text to outputSink.
+     */
+    private int decode(Stream stream, RtpTextBuffer inputBuffer) {
+	int result = stream.dePacketizer.decode(inputBuffer, flushBuffer);
+	append(flushBuffer);
+	stream.flushed = false;
+	return result;
+    }
+
+    /**
+     * Flushes the held text of streams other than the given one that have
+     * been quiet for a while, and drops the ones that have been quiet for
+     * long.
+     */
+    private void expire(long now, long activeSsrc) {
+	Iterator<Map.Entry<Long, Stream>> it = streams.entrySet().iterator();
+	while (it.hasNext()) {
+	    Map.Entry<Long, Stream> entry = it.next();
+	    if (entry.getKey() == activeSsrc) {
+		continue;
+	    }
+	    Stream stream = entry.getValue();
+	    long quiet = now - stream.lastReceiveTime;
+	    if (quiet > FLUSH_TIMEOUT && !stream.flushed) {
+		flush(stream);
+	    }
+	    if (quiet > IDLE_TIMEOUT) {
+		logger.fine("RTP text stream timed out, SSRC " +
+			    entry.getKey());
+		it.remove();
+	    }
+	}
+    }
+
+    /**
+     * Drops the stream that has been quiet the longest, after flushing it.
+     */
+    private void removeQuietest() {
+	Long quietest = null;
+	long oldest = Long.MAX_VALUE;
+	for (Map.Entry<Long, Stream> entry : streams.entrySet()) {
+	    if (entry.getValue().lastReceiveTime < oldest) {
+		oldest = entry.getValue().lastReceiveTime;
+		quietest = entry.getKey();
+	    }
+	}
+	if (quietest != null) {
+	    flush(streams.remove(quietest));
+	}
+    }
+
+    /**
+     * Appends the held text of a stream to outputSink.
+     */
+    private void flush(Stream stream) {
+	stream.dePacketizer.flush(flushBuffer);
+	append(flushBuffer);
+	stream.flushed = true;
+    }
+
+    private void append(RtpTextBuffer buffer) {
+	byte[] data = buffer.getData();
+	if (data != null) {
+	    outputSink.write(data, 0, data.length);
+	}
+    }
+
+    private RtpTextDePacketizer newDePacketizer() {
+	return new RtpTextDePacketizer(t140PayloadType, redPayloadType,
+				       redFlagIncoming);
+    }
+}
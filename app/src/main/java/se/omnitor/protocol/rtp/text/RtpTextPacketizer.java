@@ -30,8 +30,6 @@
  */
 package se.omnitor.protocol.rtp.text;
 
-import java.util.Vector;
-
 /**
  * Constructs an RTP-Text packet. <br>
  * <br>
@@ -82,11 +80,28 @@ public class RtpTextPacketizer {
      */
     public static final int RTP_PACK_BLOCKLEN_LOWER_MASK   = 0xff << 0;
 
+    //Starting size of each generation slot, enough for typical typing.
+    private static final int INITIAL_GENERATION_SIZE = 64;
+
     private int t140Pt;
     private int redGen;
 
-    //Previous generations that are to be transmitted redundantely.
-    private Vector<RTPTextRedData> redundantBuffer   = null;
+    //Number of redundant generations put in each packet, at most redGen.
+    //All redGen generations are stored regardless, so that raising this
+    //takes effect from the next packet.
+    private int activeGen;
+
+    //Previous generations that are to be transmitted redundantely, kept
+    //in a ring of redGen slots. The slot arrays are reused and only grow
+    //when a generation is longer than any before it.
+    private byte[][] generationData = null;
+    private int[]    generationLength = null;
+    private long[]   generationTimeStamp = null;
+    private int      generationCount = 0;   //Number of stored generations
+    private int      oldestGeneration = 0;  //Slot of the oldest generation
+
+    //The outgoing packet, reused for every packet.
+    private byte[] packetBuffer = null;
 
     private long theTimeStamp        = 0;
     private long sequenceNumber      = 1;   //BEGIN AT WHICH NUMBER?
@@ -126,18 +141,56 @@ public class RtpTextPacketizer {
 
 	this.t140Pt = t140Pt;
 	this.redGen = redGen;
-	redundantBuffer = new Vector<RTPTextRedData>(0, 1);
+	this.activeGen = redGen;
+
+	generationData = new byte[redGen][];
+	generationLength = new int[redGen];
+	generationTimeStamp = new long[redGen];
+	for (int gen=0; gen<redGen; gen++) {
+	    generationData[gen] = new byte[INITIAL_GENERATION_SIZE];
+	}
+
+	packetBuffer = new byte[redGen * TextConstants.REDUNDANT_HEADER_SIZE +
+				TextConstants.PRIMARY_HEADER_SIZE +
+				(redGen + 1) * INITIAL_GENERATION_SIZE];
 
     }
 
 
     /**
-     * Encodes an RTP packet according to RFC 4103.
+     * Sets the number of redundant generations to put in each packet. This
+     * can be changed while packets are sent, since the RED headers tell the
+     * receiver how many generations each packet has. With zero, packets
+     * are still RED packets, but with the primary data only.
+     *
+     * @param generations The number of generations, from zero to the
+     * number given to the constructor.
+     */
+    public synchronized void setActiveGenerations(int generations) {
+	activeGen = Math.max(0, Math.min(generations, redGen));
+    }
+
+    /**
+     * Gets the number of redundant generations put in each packet.
+     *
+     * @return The number of generations.
+     */
+    public synchronized int getActiveGenerations() {
+	return activeGen;
+    }
+
+
+    /**
+     * Encodes an RTP packet according to RFC 4103. <br>
+     * <br>
+     * The RED headers, the redundant generations and the primary data are
+     * written straight into a packet buffer that is reused for every packet.
+     * The data set in outBuffer is therefore only valid until the next call
+     * to encode(), and outBuffer.getLength() must be used instead of the
+     * length of the array.
      *
      * @param inBuffer The data to be packetized.
      * @param outBuffer The packet
-     *
-     * @return a statuscode
      */
     public synchronized void encode(RtpTextBuffer inBuffer,
 				    RtpTextBuffer outBuffer) {
@@ -146,148 +199,73 @@ public class RtpTextPacketizer {
 
 	theTimeStamp = java.lang.System.currentTimeMillis();//today.getTime();
         byte[] inData = inBuffer.getData();
-	int inDataLength = inBuffer.getLength();
-        byte[] outData = null;
-	byte[] tempOutData = null;
-	int outDataSize = 0;
+	int inDataLength = (inData == null) ? 0 : inBuffer.getLength();
 
-	//Allocate memory for redundant headers
-	outData = new byte[redGen * TextConstants.REDUNDANT_HEADER_SIZE];
-
-	if (redundantBuffer == null) {
-	    redundantBuffer = new Vector<RTPTextRedData>(redGen, 0);
-	}
+	ensurePacketCapacity(inDataLength);
 
 	//Redundant data will be sent.
 	if (redGen > 0) {
 	    int gen = 0;
-
-	    int timestampOffset = 0;
-	    int dataLength = 0;
+	    int sent = Math.min(generationCount, activeGen);
+	    int first = generationCount - sent; //Oldest generation sent
 
 	    //Compensate for insufficient redundant data.
-
-	    int border = redGen - redundantBuffer.size();
-	    for (int g=0;g<border;g++) {
-		//Timestamp 14 bits long
-		timestampOffset=0;
-		dataLength=0;
-
-		//Add redundant header to packet
-		outData[i++] = (byte)( RTP_RED_SET_BIT |
-				       t140Pt);
-		outData[i++] = (byte)(( RTP_PACK_TIMEOFFSET_UPPER_MASK &
-					timestampOffset) >>> 6);
-		outData[i++] = (byte)((( RTP_PACK_TIMEOFFSET_LOWER_MASK &
-					 timestampOffset) << 2) |
-				      (( RTP_PACK_BLOCKLEN_UPPER_MASK &
-					 dataLength) >>> 8));
-		outData[i++] = (byte)(( RTP_PACK_BLOCKLEN_LOWER_MASK &
-					dataLength));
+	    for (gen=sent; gen<activeGen; gen++) {
+		i = writeRedundantHeader(i, 0, 0);
 	    }
 
 	    //Add headers for all redundant data, latest data LAST.
-	    for (gen=0;gen<redGen;gen++) {
-
-		//Check that enough redundant generations have been stored.
-		if (gen<redundantBuffer.size()) {
-		    RTPTextRedData dataObj =(RTPTextRedData)
-			(redundantBuffer.elementAt(gen));
-
-		    //Build the extra header info
-		    //Timestamp 14 bits long
-		    timestampOffset = (int)((theTimeStamp -
-					     dataObj.getTimeStamp())
-					    & 0x3FFF);
-		    if (dataObj.getData() == null) {
-			dataLength = 0;
-		    }
-		    else {
-			dataLength = dataObj.getData().length;
-		    }
-
-
-		    //Add redundant header to packet
-		    outData[i++] = (byte)( RTP_RED_SET_BIT |
-					   t140Pt);
-		    outData[i++] = (byte)((RTP_PACK_TIMEOFFSET_UPPER_MASK &
-					   timestampOffset) >>> 6);
-		    outData[i++] = (byte)(((RTP_PACK_TIMEOFFSET_LOWER_MASK &
-					    timestampOffset) << 2) |
-					  ((RTP_PACK_BLOCKLEN_UPPER_MASK &
-					    dataLength) >>> 8));
-		    outData[i++] = (byte)((RTP_PACK_BLOCKLEN_LOWER_MASK &
-					   dataLength));
-		}
+	    for (gen=first; gen<generationCount; gen++) {
+		int slot = (oldestGeneration + gen) % redGen;
 
+		//Timestamp 14 bits long
+		int timestampOffset =
+		    (int)((theTimeStamp - generationTimeStamp[slot]) & 0x3FFF);
+		i = writeRedundantHeader(i, timestampOffset,
+					 generationLength[slot]);
 	    }
 
-	    //Allocate memory for primary header
-	    tempOutData = outData;
-	    outDataSize = outData.length;
-	    outData = new byte[outDataSize+TextConstants.PRIMARY_HEADER_SIZE];
-	    System.arraycopy(tempOutData, 0, outData, 0, outDataSize);
-
 	    //Add final header
-	    outData[i++] = (byte)( RTP_RED_CLEAR_BIT | t140Pt);
+	    packetBuffer[i++] = (byte)( RTP_RED_CLEAR_BIT | t140Pt);
 
 	    //Add redundant data, latest data LAST.
-	    for (gen=0;gen < redGen;gen++) {
-
-		if (gen < redundantBuffer.size()) {
-		    RTPTextRedData dataObjData=(RTPTextRedData)
-			(redundantBuffer.elementAt(gen));
-
-		    //Add redundant data to packet
-		    byte[] dataArr = dataObjData.getData();
-
-		    if (dataArr != null) {
-
-			//Allocate memory for redundant data
-			tempOutData=outData;
-			outDataSize=outData.length;
-			outData = new byte[outDataSize+dataArr.length];
-			System.arraycopy(tempOutData,0,outData,0,outDataSize);
-
-			System.arraycopy(dataArr, 0, outData, i,
-					 dataArr.length);
-			i += dataArr.length;
-
-			dataArr = null;
-		    }
-
-		    dataObjData = null;
-		}
-
+	    for (gen=first; gen<generationCount; gen++) {
+		int slot = (oldestGeneration + gen) % redGen;
+		System.arraycopy(generationData[slot], 0, packetBuffer, i,
+				 generationLength[slot]);
+		i += generationLength[slot];
 	    }
 
-	    //Remove first redundant element in vector.
-	    if (redundantBuffer.size() >= redGen) {
-		redundantBuffer.removeElementAt(0);
+	    //Store the primary data as the newest generation, replacing
+	    //the oldest one when the ring is full.
+	    int slot;
+	    if (generationCount < redGen) {
+		slot = (oldestGeneration + generationCount) % redGen;
+		generationCount++;
 	    }
-
-	    //Add a new redundant element to vector.
-	    redundantBuffer.addElement(new RTPTextRedData(theTimeStamp,
-							  inData,
-							  0,
-							  inDataLength));
+	    else {
+		slot = oldestGeneration;
+		oldestGeneration = (oldestGeneration + 1) % redGen;
+	    }
+	    if (generationData[slot].length < inDataLength) {
+		generationData[slot] = new byte[inDataLength];
+	    }
+	    if (inDataLength > 0) {
+		System.arraycopy(inData, 0, generationData[slot], 0,
+				 inDataLength);
+	    }
+	    generationLength[slot] = inDataLength;
+	    generationTimeStamp[slot] = theTimeStamp;
 	}
 
 	if (inDataLength > 0) {
-
-	    //Allocate memory for primary data
-	    tempOutData=outData;
-	    outDataSize=outData.length;
-	    outData = new byte[outDataSize+inDataLength];
-	    System.arraycopy(tempOutData,0,outData,0,outDataSize);
-
 	    //Add primary data to packet.
-	    System.arraycopy(inData, 0, outData, i, inData.length);
-	    i += inData.length;
+	    System.arraycopy(inData, 0, packetBuffer, i, inDataLength);
+	    i += inDataLength;
 	}
 
-	outBuffer.setData(outData);
-	outBuffer.setLength(outData.length);
+	outBuffer.setData(packetBuffer);
+	outBuffer.setLength(i);
 	outBuffer.setOffset(0);
 	outBuffer.setTimeStamp(theTimeStamp);
 	outBuffer.setSequenceNumber(sequenceNumber);
@@ -296,89 +274,51 @@ public class RtpTextPacketizer {
 	return;
     }
 
-
     /**
-     * Carries redundant data.
+     * Makes sure the packet buffer can hold the headers, the stored
+     * generations and the given amount of new data.
      *
-     * @author Erik Zetterstrom, Omnitor AB
+     * @param inDataLength The length of the primary data.
      */
-    public class RTPTextRedData {
-	private long   myTimestamp = 0;
-	private int    mySeqNum    = 0;
-	private byte[] myDataArr   = null;
-
-	/**
-	 * Constructor
-	 *
-	 * @param timestamp The timestamp of the data.
-	 * @param dataArr The data byte array.
-	 * @param dataOffset The offset in bytes for the data.
-	 * @param dataLength The number of data bytes in the array.
-	 */
-	public RTPTextRedData(long timestamp,
-			      byte[] dataArr,
-			      int dataOffset,
-			      int dataLength) {
-
-	    myTimestamp = timestamp;
-
-	    if (dataArr == null) {
-		myDataArr = null;
-	    }
-	    else {
-		myDataArr = new byte[dataLength];
-		System.arraycopy(dataArr, dataOffset, myDataArr, 0, dataLength);
-	    }
-	}
-
+    private void ensurePacketCapacity(int inDataLength) {
+	int size = 0;
 
-	/**
-	 * Constructor
-	 *
-	 * @param timestamp  The timestamp of the data.
-	 * @param dataArr    The data byte array.
-	 * @param dataOffset The offset in bytes for the data.
-	 * @param dataLength The number of data bytes in the array.
-	 * @param theSeqNum  The sequnece number.
-	 */
-	public RTPTextRedData(long timestamp,
-			      byte[] dataArr,
-			      int dataOffset,
-			      int dataLength,
-			      int theSeqNum) {
-	    myDataArr = new byte[dataLength];
-	    myTimestamp = timestamp;
-	    mySeqNum = theSeqNum;
-
-	    System.arraycopy(dataArr, dataOffset, myDataArr, 0, dataLength);
-	}
-
-	/**
-	 *  Gets the timestamp
-	 *
-	 * @return the timestamp.
-	 */
-	public long getTimeStamp() {
-	    return myTimestamp;
+	if (redGen > 0) {
+	    size = redGen * TextConstants.REDUNDANT_HEADER_SIZE +
+		TextConstants.PRIMARY_HEADER_SIZE;
+	    for (int gen=0; gen<generationCount; gen++) {
+		size += generationLength[(oldestGeneration + gen) % redGen];
+	    }
 	}
+	size += inDataLength;
 
-	/**
-	 *  Gets the sequence number
-	 *
-	 * @return the sequence number.
-	 */
-	public int getSeqNum() {
-	    return mySeqNum;
+	if (packetBuffer.length < size) {
+	    packetBuffer = new byte[Math.max(size, packetBuffer.length * 2)];
 	}
+    }
 
-	/**
-	 *  Gets the data.
-	 *
-	 * @return the data byte array.
-	 */
-	public byte[] getData()    {
-	    return myDataArr;
-	}
+    /**
+     * Writes one redundant header to the packet buffer.
+     *
+     * @param i The index to write at.
+     * @param timestampOffset The timestamp offset of the generation.
+     * @param dataLength The length of the generation.
+     *
+     * @return The index after the header.
+     */
+    private int writeRedundantHeader(int i, int timestampOffset,
+				     int dataLength) {
+	packetBuffer[i++] = (byte)( RTP_RED_SET_BIT |
+				    t140Pt);
+	packetBuffer[i++] = (byte)(( RTP_PACK_TIMEOFFSET_UPPER_MASK &
+				     timestampOffset) >>> 6);
+	packetBuffer[i++] = (byte)((( RTP_PACK_TIMEOFFSET_LOWER_MASK &
+				      timestampOffset) << 2) |
+				   (( RTP_PACK_BLOCKLEN_UPPER_MASK &
+				      dataLength) >>> 8));
+	packetBuffer[i++] = (byte)(( RTP_PACK_BLOCKLEN_LOWER_MASK &
+				     dataLength));
+	return i;
     }
     
     public int dropOneRtpTextSeqNo() {
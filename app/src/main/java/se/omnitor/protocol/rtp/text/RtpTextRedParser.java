@@ -0,0 +1,210 @@
+/*
+ * RTP text/t140 Library
+ *
+ * Copyright (C) 2004-2008 Board of Regents of the University of Wisconsin System
+ * (Univ. of Wisconsin-Madison, Trace R&D Center)
+ * Copyright (C) 2004-2008 Omnitor AB
+ *
+ * This software was developed with support from the National Institute on
+ * Disability and Rehabilitation Research, US Dept of Education under Grant
+ * # H133E990006 and H133E040014
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Please send a copy of any improved versions of the library to:
+ * Gunnar Hellstrom, Omnitor AB, Renathvagen 2, SE 121 37 Johanneshov, SWEDEN
+ * Gregg Vanderheiden, Trace Center, U of Wisconsin, Madison, Wi 53706
+ *
+ */
+package se.omnitor.protocol.rtp.text;
+
+/**
+ * Parses the RFC 2198 redundancy headers of an RTP-Text packet in place.
+ * <br>
+ * <br>
+ * The headers are walked once over the received buffer, and each block is
+ * described by an offset, a length and a timestamp offset into that buffer.
+ * Nothing is copied, and the descriptor arrays are reused from packet to
+ * packet. <br>
+ * <br>
+ * Generation 0 is the primary data, generation 1 the latest redundant data,
+ * and so on. <br>
+ */
+public class RtpTextRedParser {
+
+    private byte[] data = null;
+
+    private int generations = 0;
+
+    //Block descriptors, indexed by generation.
+    private int[] blockOffset          = new int[4];
+    private int[] blockLength          = new int[4];
+    private int[] blockTimestampOffset = new int[4];
+
+
+    /**
+     * Describes a packet without redundancy. The whole range is primary
+     * data.
+     *
+     * @param data The packet payload.
+     * @param offset The start of the payload in data.
+     * @param length The payload length.
+     */
+    public void setPrimaryOnly(byte[] data, int offset, int length) {
+	this.data = data;
+	generations = 0;
+	blockOffset[0] = offset;
+	blockLength[0] = length;
+	blockTimestampOffset[0] = 0;
+    }
+
+    /**
+     * Parses the redundancy headers of a packet.
+     *
+     * @param data The packet payload.
+     * @param offset The start of the payload in data.
+     * @param length The payload length.
+     * @param t140PayloadType The payload type of the T.140 blocks.
+     *
+     * @return false if the headers are malformed, in which case the whole
+     * range is treated as primary data.
+     */
+    public boolean parse(byte[] data, int offset, int length,
+			 int t140PayloadType) {
+
+	int end = offset + length;
+	int walker = offset;
+	int redundantBlocks = 0;
+	int blockStart;
+
+	if (length == 0) {
+	    setPrimaryOnly(data, offset, 0);
+	    return true;
+	}
+
+	//Count the redundant headers, the F bit is set on all but the last.
+	while (walker < end && (data[walker] & 0x80) != 0) {
+	    redundantBlocks++;
+	    walker += TextConstants.REDUNDANT_HEADER_SIZE;
+	}
+
+	if (walker >= end || data[walker] != t140PayloadType) {
+	    setPrimaryOnly(data, offset, length);
+	    return false;
+	}
+
+	for (int i=0;i<redundantBlocks;i++) {
+	    if ((data[offset+TextConstants.REDUNDANT_HEADER_SIZE*i] & 0x7F) !=
+		t140PayloadType) {
+
+		setPrimaryOnly(data, offset, length);
+		return false;
+	    }
+	}
+
+	ensureCapacity(redundantBlocks + 1);
+
+	this.data = data;
+	generations = redundantBlocks;
+
+	//Blocks come in header order, oldest first, the primary one last.
+	blockStart = walker + TextConstants.PRIMARY_HEADER_SIZE;
+	for (int i=0;i<redundantBlocks;i++) {
+	    int header = offset + TextConstants.REDUNDANT_HEADER_SIZE*i;
+	    int generation = redundantBlocks - i;
+
+	    blockTimestampOffset[generation] =
+		((data[header+1] & 0xFF) << 6) | ((data[header+2] & 0xFC) >> 2);
+	    blockLength[generation] =
+		((data[header+2] & 0x03) << 8) | (data[header+3] & 0xFF);
+	    blockOffset[generation] = blockStart;
+
+	    blockStart += blockLength[generation];
+	}
+
+	if (blockStart > end) {
+	    setPrimaryOnly(data, offset, length);
+	    return false;
+	}
+
+	blockOffset[0] = blockStart;
+	blockLength[0] = end - blockStart;
+	blockTimestampOffset[0] = 0;
+
+	return true;
+    }
+
+    /**
+     * Gets the buffer the descriptors point into.
+     *
+     * @return The packet payload.
+     */
+    public byte[] getData() {
+	return data;
+    }
+
+    /**
+     * Gets the number of redundant generations in the packet.
+     *
+     * @return The number of redundant generations.
+     */
+    public int getGenerations() {
+	return generations;
+    }
+
+    /**
+     * Gets the offset of a block in the buffer.
+     *
+     * @param generation The generation, 0 for primary data.
+     *
+     * @return The offset.
+     */
+    public int getOffset(int generation) {
+	return blockOffset[generation];
+    }
+
+    /**
+     * Gets the length of a block.
+     *
+     * @param generation The generation, 0 for primary data.
+     *
+     * @return The length in bytes.
+     */
+    public int getLength(int generation) {
+	return blockLength[generation];
+    }
+
+    /**
+     * Gets how much older a block is than the packet's timestamp.
+     *
+     * @param generation The generation, 0 for primary data.
+     *
+     * @return The timestamp offset, 0 for primary data.
+     */
+    public int getTimestampOffset(int generation) {
+	return blockTimestampOffset[generation];
+    }
+
+    private void ensureCapacity(int size) {
+	if (size <= blockOffset.length) {
+	    return;
+	}
+
+	blockOffset = new int[size];
+	blockLength = new int[size];
+	blockTimestampOffset = new int[size];
+    }
+
+}
@@ -31,6 +31,11 @@
 package se.omnitor.protocol.rtp.text;
 
 import se.omnitor.util.FifoBuffer;
+import se.omnitor.util.MpscByteRing;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 //import LogClasses and Classes
 import java.util.logging.Level;
@@ -47,21 +52,93 @@ import java.util.logging.Logger;
  * the RTP sender. <br>
  * <br>
  * All data added to this class must be in T.140 format. <br>
+ * <br>
+ * Text from the GUI goes into a lock-free ring, which the buffer thread
+ * drains once per buffer time. Writers never wait for the buffer thread or
+ * the RTP sender. Text that does not fit in the ring, such as a large
+ * paste, is staged in an overflow buffer that is taken after the ring. <br>
+ * <br>
+ * The buffer time can adapt between two bounds, see setBufferTimeBounds().
+ * When only one write arrives per buffer period, someone is typing slowly
+ * and the buffer time shrinks toward the lower bound, so each character
+ * goes out sooner. When several writes are coalesced into one period, or
+ * the remote reports high loss, the buffer time grows toward the upper
+ * bound, so fewer packets (each with its redundant copies) are sent. <br>
+ * <br>
+ * If the remote end gives a CPS limit, the text taken each period is paced
+ * by a token bucket that holds one second of characters. Normal typing
+ * never empties the bucket, while a paste goes out at the remote end's
+ * rate. Text over the limit waits here, and writers are never blocked by
+ * it. <br>
+ * <br>
+ * NAT keepalives are sent by the shared KeepaliveScheduler, which only
+ * wakes up when this buffer has really been idle for the keepalive
+ * interval. An idle buffer therefore needs no thread of its own to time
+ * them. <br>
  *
  * @author Andreas Piirimets, Omnitor AB
  */
-public class SyncBuffer extends FifoBuffer implements Runnable {
+public class SyncBuffer extends FifoBuffer
+	implements Runnable, KeepaliveScheduler.KeepaliveTarget {
+
+	private static final int RING_CAPACITY = 4096;
+
+	/**
+	 * If nothing is sent for this many milliseconds, a zero width no break
+	 * space is sent to keep NATs from closing the UDP hole. This is the
+	 * default, see setKeepaliveInterval().
+	 */
+	public static final int KEEPALIVE_INTERVAL = 55000;
+
+	/**
+	 * Writes coalesced into one buffer period that count as a burst.
+	 */
+	private static final int BURST_WRITES = 3;
+
+	/**
+	 * Fraction of packets lost above which the buffer time is lengthened
+	 * regardless of typing rate.
+	 */
+	private static final float HIGH_LOSS_FRACTION = 0.05f;
+
+	private MpscByteRing dataWaiting;
+
+	/**
+	 * Text that did not fit in the ring. Once anything is staged here, all
+	 * later writes are too until the reader takes it, so text stays in
+	 * order.
+	 */
+	private final ByteArrayOutputStream overflow =
+		new ByteArrayOutputStream();
+	private volatile boolean overflowing = false;
 
-	private byte[] dataWaiting;
 	private byte[] dataToSend;
+	private int dataToSendLength;
 	private int redGensToSend;
 	private int redGen;
-	private int bufferTime;
-	private boolean running;
-	private Thread thread;
-	private Integer dataSetSemaphore;
+	private volatile int bufferTime;
+	private int minBufferTime;
+	private int maxBufferTime;
+	private volatile float lossFraction = 0;
+	private AtomicInteger writesSinceSend = new AtomicInteger();
+	private long packetsSent = 0;
+	private long packetsSaved = 0;
+	private int cps = 0;
+	private double tokens = 0;
+	private long lastRefillTime;
+	private int queuedLength = 0;
+	private volatile boolean running;
+	private volatile Thread thread;
+	private volatile long lastSendTime;
+	private int keepaliveInterval = KEEPALIVE_INTERVAL;
+	private boolean alignKeepaliveWithRtcp = false;
+	private boolean rtcpMuxed = false;
+	private KeepaliveScheduler.Registration keepalive = null;
+	private volatile Runnable wakeup = null;
 
 	private boolean sendOnCR = false;
+	private int scannedLength = 0; // Bytes of dataToSend searched for CR
+	private int lineEnd = 0;       // Offset just after the last CR found
 
 	// declare package and classname
 	public final static String CLASS_NAME = SyncBuffer.class.getName();
@@ -86,13 +163,16 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 
 		this.redGen = redGen;
 		this.bufferTime = bufferTime;
+		this.minBufferTime = bufferTime;
+		this.maxBufferTime = bufferTime;
 
-		dataSetSemaphore = Integer.valueOf(0);
-
-		dataWaiting = new byte[0];
-		dataToSend = new byte[0];
+		dataWaiting = new MpscByteRing(RING_CAPACITY);
+		dataToSend = new byte[RING_CAPACITY];
+		dataToSendLength = 0;
 
 		redGensToSend = 0;
+		lastSendTime = System.currentTimeMillis();
+		lastRefillTime = lastSendTime;
 
 		running = false;
 		thread = null;
@@ -114,18 +194,125 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 			thread = new Thread(this, "SyncBuffer");
 			thread.start();
 		}
+		startKeepalive();
 
 		logger.exiting(CLASS_NAME, METHOD);
 	}
 
 	public void stop() {
 		running = false;
-		thread.interrupt();
+		if (thread != null) {
+			thread.interrupt();
+		}
+		synchronized (this) {
+			// Release a caller blocked in getData()
+			notifyAll();
+			if (keepalive != null) {
+				keepalive.cancel();
+				keepalive = null;
+			}
+		}
+	}
+
+	/**
+	 * Starts NAT keepalives from the shared scheduler. start() does this,
+	 * callers that poll() this buffer instead must call it themselves.
+	 */
+	public synchronized void startKeepalive() {
+		if (keepalive == null) {
+			keepalive = KeepaliveScheduler.getInstance().register(this,
+					keepaliveInterval, alignKeepaliveWithRtcp);
+			keepalive.setRtcpMuxed(rtcpMuxed);
+		}
+	}
+
+	/**
+	 * Sets how keepalives are sent. Must be called before they are
+	 * started.
+	 *
+	 * @param interval The longest time in milliseconds to stay quiet.
+	 * @param alignWithRtcp Whether to send keepalives along with RTCP
+	 * packets, see rtcpSent().
+	 */
+	public synchronized void setKeepaliveInterval(int interval,
+			boolean alignWithRtcp) {
+		this.keepaliveInterval = interval;
+		this.alignKeepaliveWithRtcp = alignWithRtcp;
+	}
+
+	/**
+	 * Sets whether RTCP is multiplexed onto the port this buffer's text
+	 * is sent from. If it is, RTCP keeps the NAT binding open and no
+	 * keepalives are sent while RTCP packets are.
+	 *
+	 * @param rtcpMuxed Whether RTCP is multiplexed with the text.
+	 */
+	public synchronized void setRtcpMuxed(boolean rtcpMuxed) {
+		this.rtcpMuxed = rtcpMuxed;
+		if (keepalive != null) {
+			keepalive.setRtcpMuxed(rtcpMuxed);
+		}
+	}
+
+	/**
+	 * Tells the buffer that an RTCP packet was just sent in its session,
+	 * so a keepalive that is due can go out with it, or is not needed if
+	 * RTCP is multiplexed with the text.
+	 */
+	public void rtcpSent() {
+		KeepaliveScheduler.Registration registration;
+		synchronized (this) {
+			registration = keepalive;
+		}
+		if (registration != null) {
+			registration.rtcpSent();
+		}
+	}
+
+	/**
+	 * Gets the time data was last taken to be sent.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public long getLastSendTime() {
+		return lastSendTime;
+	}
+
+	/**
+	 * Sends a zero width no break space, which the remote end ignores. This
+	 * prevents NATs closing the UDP hole. Nothing is sent if text is already
+	 * waiting, since that keeps the hole open anyway. Does not block.
+	 */
+	public void sendKeepalive() {
+		if (!hasDataWaiting()) {
+			setData(TextConstants.ZERO_WIDTH_NO_BREAK_SPACE);
+		}
+	}
+
+	/**
+	 * Sets something to run whenever data is set, so that a caller that
+	 * polls this buffer can sleep while it is idle.
+	 *
+	 * @param wakeup Run on the writer's thread after the data is set. Must
+	 * be quick and must not block.
+	 */
+	public void setWakeup(Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+
+	/**
+	 * Checks if there is data that has been set but not yet taken.
+	 *
+	 * @return True if there is data waiting.
+	 */
+	public boolean hasDataWaiting() {
+		return overflowing || !dataWaiting.isEmpty();
 	}
 
 	/**
 	 * Sets new data, this should be called from GUI. If data exists it is
-	 * appended to the existing data.
+	 * appended to the existing data. Never waits for the reader; text that
+	 * does not fit in the ring is staged until the reader takes it.
 	 *
 	 * @param newData The data to set/append.
 	 *
@@ -133,22 +320,18 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 	 * buffer, remove characters from buffer instead of sending backspace.
 	 */
 	// TODO yes Joel do this!
-	public synchronized void setData(byte[] newData) {
-		synchronized (dataSetSemaphore) {
-			byte[] temp = null;
-
-			if (dataWaiting.length == 0) {
-				dataWaiting = newData;
-			}
-			else {
-				temp = dataWaiting;
-				dataWaiting = new byte[temp.length + newData.length];
-				System.arraycopy(temp, 0, dataWaiting, 0, temp.length);
-				System.arraycopy(newData, 0, dataWaiting, temp.length,
-						newData.length);
+	public void setData(byte[] newData) {
+		if (!stage(newData) &&
+				!dataWaiting.offer(newData, 0, newData.length)) {
+			synchronized (overflow) {
+				overflow.write(newData, 0, newData.length);
+				overflowing = true;
 			}
+		}
+		writesSinceSend.incrementAndGet();
+
 
-			/*
+		/*
 	      int arrayCnt = temp.length;
 	      int cnt;
 	      for (cnt=0; cnt<data.length; cnt++) {
@@ -170,9 +353,15 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 	      this.data = new byte[arrayCnt];
 	      System.arraycopy(temp, 0, this.data, 0, arrayCnt);
 	      }
-			 */
+		 */
 
-			dataSetSemaphore.notify();
+		Thread bufferThread = thread;
+		if (bufferThread != null) {
+			LockSupport.unpark(bufferThread);
+		}
+		Runnable poller = wakeup;
+		if (poller != null) {
+			poller.run();
 		}
 	}
 
@@ -180,65 +369,99 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 	/**
 	 * Gets the data of this object.
 	 * Data is consumed it is retrieved.
-	 * This method blocks until data is available.
+	 * This method blocks until data is available, or returns what there is
+	 * at once if the buffer is stopped.
 	 *
 	 * @throws InterruptedException If the wait was interrupted.
 	 * @return The data.
 	 */
 	public synchronized byte[] getData() throws InterruptedException {
 
+		// stop() clears running before it notifies under this lock, so the
+		// wakeup cannot be missed
+		if (running) {
+			wait();
+		}
+
+		return takeData();
+	}
+
+	/**
+	 * Runs one buffer period, for callers that drive this buffer from a
+	 * scheduler every getBufferTime() milliseconds instead of calling
+	 * start() and getData(). When this returns null and there is no data
+	 * waiting, the caller may stop polling until the wakeup is run.
+	 *
+	 * @return The data to send now, which is empty when only redundancy
+	 * should be resent, or null if nothing should be sent.
+	 */
+	public synchronized byte[] poll() {
+		if (hasDataWaiting()) {
+			drainWaiting();
+			redGensToSend = redGen;
+			adaptBufferTime();
+		}
+		else if (queuedLength > 0) {
+			// Text held back by pacing
+			redGensToSend = redGen;
+		}
+		else if (redGensToSend > 0) {
+			if (dataToSendLength == 0) {
+				redGensToSend--;
+			}
+		}
+		else {
+			return null;
+		}
+
+		lastSendTime = System.currentTimeMillis();
+		packetsSent++;
+		return takeData();
+	}
+
+	/**
+	 * Takes the data that is ready to be sent. When sending on CR, only
+	 * the data up to the last CR (U+2028 LINE SEPARATOR) is taken, and the
+	 * rest is kept for later.
+	 *
+	 * @return The data.
+	 */
+	private byte[] takeData() {
+
 		// write methodname
-		final String METHOD = "getData()";
+		final String METHOD = "takeData()";
 		// log when entering a method
 		logger.entering(CLASS_NAME, METHOD);
 
 		byte[] temp = null;
 
-		wait();
-
 		try {
 
-			temp = dataToSend;
+			int length = dataToSendLength;
 
 			if (sendOnCR) {
-				int containsCR = -100;
-				// check if temp contains CR, and if it does you get the position of the first element
-				containsCR = containsCR(temp);
-
-				// if data does not contain CR
-				if (containsCR == -1) {
-					temp = new byte[0];
-				}
-				//  data contains CR
-				else {
+				length = findLineEnd();
+				if (length > 0) {
 					logger.logp(Level.FINEST, CLASS_NAME, METHOD, "data contains one or more CR");
-					byte[] temp2 = temp;
-					int lastPositionOfCR = containsCR;
+				}
+			}
 
-					// while we don't find the last CR
-					while((containsCR = getPositionOfNextCR(temp, lastPositionOfCR))>-1) {
-						lastPositionOfCR = containsCR;
-					}
+			temp = new byte[length];
+			System.arraycopy(dataToSend, 0, temp, 0, length);
 
-					temp = new byte[lastPositionOfCR+3];
-					System.arraycopy(temp2, 0, temp, 0, temp.length);
+			// Keep what is left after the last CR, if anything
+			dataToSendLength -= length;
+			System.arraycopy(dataToSend, length, dataToSend, 0,
+					dataToSendLength);
+			scannedLength = Math.max(scannedLength - length, 0);
+			lineEnd = 0;
 
-					// if the data ended with an CR
-					if(lastPositionOfCR+3 == temp2.length) {
-						logger.logp(Level.FINEST, CLASS_NAME, METHOD, "the data ended with an CR");
-						dataToSend = new byte[0];
-					}
-					// else we have to save the data after the last CR
-					else {
-						logger.logp(Level.FINEST, CLASS_NAME, METHOD, "the data ended with data after last CR");
-						dataToSend = new byte[temp2.length -(lastPositionOfCR + 3)];
-						System.arraycopy(temp2, lastPositionOfCR+3, dataToSend, 0, dataToSend.length);
-					}
-				}
-			}
-			// else don't wait for CR
-			else {
-				dataToSend = new byte[0];
+			temp = pace(temp);
+
+			// Text held back by pacing is whole lines, and goes in front
+			if (sendOnCR && queuedLength > 0) {
+				lineEnd = queuedLength;
+				scannedLength += queuedLength;
 			}
 		}
 		catch(Throwable t) {
@@ -248,6 +471,30 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 		return temp;
 	}
 
+	/**
+	 * Finds the end of the last CR in the data to send. Only the bytes
+	 * added since the last call are scanned, so text that waits for a CR
+	 * is looked at once, however many buffer periods it waits.
+	 *
+	 * @return The offset just after the last CR, or 0 if there is none.
+	 */
+	private int findLineEnd() {
+		// A CR may have been cut by the end of the last scan
+		int i = Math.max(scannedLength - 2, 0);
+
+		for (; i <= dataToSendLength - 3; i++) {
+			if (dataToSend[i] == (byte)0xE2 &&
+					dataToSend[i+1] == (byte)0x80 &&
+					dataToSend[i+2] == (byte)0xA8) {
+				lineEnd = i + 3;
+				i += 2;
+			}
+		}
+
+		scannedLength = dataToSendLength;
+		return lineEnd;
+	}
+
 	/* A Java byte has a value of -128 to 127.  With eight bits and no
      sign, the negative numbers could be represented as
      a value of 128 to 255.  This method makes such a conversion, but
@@ -266,67 +513,20 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 		return i ;
 	}
 
-	/**
-	 * checks if a bytearray contains a CR (carrige return)
-	 * @param byte[] aDataArray the byte array to be examined
-	 * @return int first position of the CR, returns -1 if aDataArray is null or
-	 * does not contain a CR
-	 */
-	private int containsCR(byte[] aDataArray) {
-
-		// if null or lenght<3, CR takes at least 3 bytes
-		if(aDataArray==null || aDataArray.length<3) {
-			return -1;
-		}
-		// else might contain CR, lets check
-		else {
-			// check for the value of CR in three bytes
-			for (int i = 0; i < aDataArray.length-2; i++) {
-				if (byteToPositiveInt(aDataArray[i]) == 0xE2 &&
-						byteToPositiveInt(aDataArray[i+1]) == 0x80 &&
-						byteToPositiveInt(aDataArray[i+2]) == 0xA8) {
-					return i;
-				}
-			}
-			// we have checked the bytearray and it did not contain CR
-			return -1;
-		}
-	}
-
-	/**
-	 * checks if for the position of next CR (carrige return) (if any)
-	 * @param byte[] aDataArray the byte array to be examined
-	 * @param int aStartPosition where to start looking for CR
-	 * @return int the first position of a CR from aStartPosition+3,
-	 * returns -1 if aDataArray is null or if aStartPosition+3 til end does not contain a CR
-	 * */
-	private int getPositionOfNextCR(byte[] aDataArray, int aStartPosition) {
-
-		byte[] temp = null;
-		int position = -1;
-		if(aDataArray==null || aStartPosition>(aDataArray.length-1)) {
-			return position;
-		}
-		else {
-			temp = new byte[aDataArray.length-(aStartPosition+3)];
-			System.arraycopy(aDataArray, aStartPosition+3, temp, 0, temp.length);
-			position = containsCR(temp);
-			if(position==-1) {
-				return position;
-			}
-			else {
-				return aStartPosition+position+3;
-			}
-		}
-	}
-
 	/**
 	 * Empties the buffers.
 	 *
 	 */
 	public synchronized void empty() {
-		dataWaiting = new byte[0];
-		dataToSend = new byte[0];
+		synchronized (overflow) {
+			dataWaiting.discard();
+			overflow.reset();
+			overflowing = false;
+		}
+		dataToSendLength = 0;
+		queuedLength = 0;
+		scannedLength = 0;
+		lineEnd = 0;
 	}
 
 	/**
@@ -345,29 +545,22 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 
 		while (running) {
 
-			try {
-				synchronized (dataSetSemaphore) {
-
-					if (dataWaiting.length == 0) {
-						dataSetSemaphore.wait(55000);
-					}
-				}
+			// Sleep until text is set or we are stopped. Keepalives are
+			// set by the KeepaliveScheduler like any other text.
+			while (running && !hasDataWaiting()) {
+				LockSupport.park(this);
 			}
-			catch (InterruptedException ie) {
+
+			if (!running) {
 				logger.logp(Level.FINE, CLASS_NAME, METHOD,
-						"Thread was interrupted, possibly caused by hangup",
-						ie);
+						"Thread was stopped, possibly caused by hangup");
+				break;
 			}
 
-			// If nothing is sent in 55 seconds, send a zero width no break
-			// space. This will prevent NATs closing the UDP hole.
-			if (dataWaiting.length == 0) {
-				setData(TextConstants.ZERO_WIDTH_NO_BREAK_SPACE);
-			}
-			
 
 			logger.logp(Level.FINEST, CLASS_NAME, METHOD, "the buffertime is", Integer.valueOf(bufferTime));
-			while (dataWaiting.length > 0 || redGensToSend > 0) {
+			while (hasDataWaiting() || redGensToSend > 0 ||
+					queuedLength > 0) {
 				try {
 					Thread.sleep(bufferTime);
 				}
@@ -376,30 +569,30 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 
 				synchronized (this) {
 
-					if (dataWaiting.length > 0) {
+					if (hasDataWaiting()) {
 
-						if (dataToSend.length > 0) {
-							byte[] temp = dataToSend;
-							dataToSend =
-								new byte[temp.length + dataWaiting.length];
-							System.arraycopy(temp, 0, dataToSend, 0,
-									temp.length);
-							System.arraycopy(dataWaiting, 0, dataToSend,
-									temp.length, dataWaiting.length);
-						}
-						else {
-							dataToSend = dataWaiting;
-						}
+						drainWaiting();
+
+						notify();
+						redGensToSend = redGen;
+						packetsSent++;
+						lastSendTime = System.currentTimeMillis();
+						adaptBufferTime();
+					}
+					else if (queuedLength > 0) {
 
-						dataWaiting = new byte[0];
 						notify();
 						redGensToSend = redGen;
+						packetsSent++;
+						lastSendTime = System.currentTimeMillis();
 					}
 					else if (redGensToSend > 0) {
 
 						notify();
+						packetsSent++;
+						lastSendTime = System.currentTimeMillis();
 
-						if (dataToSend.length == 0) {
+						if (dataToSendLength == 0) {
 							redGensToSend--;
 						}
 					}
@@ -412,24 +605,250 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 		logger.exiting(CLASS_NAME, METHOD);
 	}
 
+	/**
+	 * Takes everything typed since the last buffer period in one go.
+	 */
+	private void drainWaiting() {
+		drainRing();
+
+		if (overflowing) {
+			synchronized (overflow) {
+				// Anything that reached the ring before the overflow
+				// started goes first
+				drainRing();
+				ensureCapacity(overflow.size());
+				byte[] staged = overflow.toByteArray();
+				System.arraycopy(staged, 0, dataToSend, dataToSendLength,
+						staged.length);
+				dataToSendLength += staged.length;
+				overflow.reset();
+				overflowing = false;
+			}
+		}
+	}
+
+	private void drainRing() {
+		int waiting = dataWaiting.available();
+		ensureCapacity(waiting);
+		dataToSendLength += dataWaiting.drainTo(dataToSend, dataToSendLength,
+				waiting);
+	}
+
+	private void ensureCapacity(int more) {
+		if (dataToSendLength + more > dataToSend.length) {
+			byte[] temp = dataToSend;
+			dataToSend = new byte[Math.max(temp.length * 2,
+					dataToSendLength + more)];
+			System.arraycopy(temp, 0, dataToSend, 0, dataToSendLength);
+		}
+	}
+
+	/**
+	 * Appends to the overflow if it is in use.
+	 *
+	 * @return false if the overflow is not in use and nothing was appended.
+	 */
+	private boolean stage(byte[] newData) {
+		if (!overflowing) {
+			return false;
+		}
+		synchronized (overflow) {
+			// The reader may have just taken it
+			if (!overflowing) {
+				return false;
+			}
+			overflow.write(newData, 0, newData.length);
+			return true;
+		}
+	}
+
+	/**
+	 * Adapts the buffer time after a period that had text to send, using
+	 * the number of writes coalesced into it and the last reported loss.
+	 * Grows quickly and shrinks slowly, so a burst is not followed by one
+	 * packet per keystroke straight away.
+	 */
+	private void adaptBufferTime() {
+		int writes = writesSinceSend.getAndSet(0);
+
+		if (writes > 1) {
+			packetsSaved += writes - 1;
+		}
+
+		if (minBufferTime == maxBufferTime) {
+			return;
+		}
+
+		int step = Math.max((maxBufferTime - minBufferTime) / 8, 1);
+
+		if (lossFraction > HIGH_LOSS_FRACTION || writes >= BURST_WRITES) {
+			bufferTime = Math.min(bufferTime + 4 * step, maxBufferTime);
+		}
+		else if (writes <= 1) {
+			bufferTime = Math.max(bufferTime - step, minBufferTime);
+		}
+
+		logger.logp(Level.FINEST, CLASS_NAME, "adaptBufferTime()",
+				"the buffertime is", Integer.valueOf(bufferTime));
+	}
+
+	/**
+	 * Sets the bounds that the buffer time adapts between. Setting both to
+	 * the same value turns adaptation off. The buffer time starts at the
+	 * lower bound.
+	 *
+	 * @param minBufferTime The shortest buffer time, used for slow typing.
+	 * @param maxBufferTime The longest buffer time, used for bursts and high
+	 * loss. RFC 4103 recommends 300 ms.
+	 */
+	public synchronized void setBufferTimeBounds(int minBufferTime,
+			int maxBufferTime) {
+		if (minBufferTime <= 0 || maxBufferTime < minBufferTime) {
+			throw new IllegalArgumentException("bad buffer time bounds " +
+					minBufferTime + "-" + maxBufferTime);
+		}
+		this.minBufferTime = minBufferTime;
+		this.maxBufferTime = maxBufferTime;
+		this.bufferTime = minBufferTime;
+	}
+
+	/**
+	 * Sets the fraction of packets the remote end reports as lost, for
+	 * example from RTCP receiver reports. High loss lengthens the buffer
+	 * time.
+	 *
+	 * @param lossFraction The loss, from 0 to 1.
+	 */
+	public void setLossFraction(float lossFraction) {
+		this.lossFraction = lossFraction;
+	}
+
+	/**
+	 * Gets the number of periods that had something to send, that is, the
+	 * number of packets sent from this buffer.
+	 *
+	 * @return The number of packets.
+	 */
+	public synchronized long getPacketsSent() {
+		return packetsSent;
+	}
+
+	/**
+	 * Gets the number of packets saved by coalescing, that is, how many
+	 * more packets would have been sent with one packet per write.
+	 *
+	 * @return The number of packets saved.
+	 */
+	public synchronized long getPacketsSaved() {
+		return packetsSaved;
+	}
+
+	/**
+	 * Limits the data taken to what the token bucket allows, and puts the
+	 * rest back in front of the data to send. Characters are counted, not
+	 * bytes, and a UTF-8 sequence is never split.
+	 *
+	 * @param data The data that would be sent.
+	 * @return The data to send now.
+	 */
+	private byte[] pace(byte[] data) {
+		if (cps <= 0) {
+			queuedLength = 0;
+			return data;
+		}
+
+		long now = System.currentTimeMillis();
+		tokens = Math.min(cps, tokens + (now - lastRefillTime) * cps / 1000.0);
+		lastRefillTime = now;
+
+		int allowed = (int)tokens;
+		int chars = 0;
+		int length = 0;
+		while (length < data.length) {
+			// A byte that is not 10xxxxxx starts a character
+			if ((data[length] & 0xC0) != 0x80) {
+				if (chars == allowed) {
+					break;
+				}
+				chars++;
+			}
+			length++;
+		}
+		tokens -= chars;
+
+		queuedLength = data.length - length;
+		if (queuedLength == 0) {
+			return data;
+		}
+
+		// Put the rest back in front of anything kept for later
+		if (queuedLength + dataToSendLength > dataToSend.length) {
+			byte[] temp = dataToSend;
+			dataToSend = new byte[Math.max(temp.length * 2,
+					queuedLength + dataToSendLength)];
+			System.arraycopy(temp, 0, dataToSend, 0, dataToSendLength);
+		}
+		System.arraycopy(dataToSend, 0, dataToSend, queuedLength,
+				dataToSendLength);
+		System.arraycopy(data, length, dataToSend, 0, queuedLength);
+		dataToSendLength += queuedLength;
+
+		byte[] paced = new byte[length];
+		System.arraycopy(data, 0, paced, 0, length);
+		return paced;
+	}
+
+	/**
+	 * Sets the most characters per second the remote end accepts, as given
+	 * by the cps parameter of its SDP fmtp line.
+	 *
+	 * @param cps The characters per second, 0 or less for no limit.
+	 */
+	public synchronized void setCps(int cps) {
+		this.cps = cps;
+		this.tokens = cps;
+		this.lastRefillTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Gets the amount of text not sent yet, including text held back by
+	 * CPS pacing.
+	 *
+	 * @return The number of bytes waiting.
+	 */
+	public int getQueueDepth() {
+		int waiting = dataWaiting.available();
+		synchronized (overflow) {
+			waiting += overflow.size();
+		}
+		synchronized (this) {
+			return waiting + dataToSendLength;
+		}
+	}
+
 	/**
 	 * Sets the number of redundant generations.
 	 *
 	 * @param redGen The number of redundant generations to use, a value of
 	 * zero disables redundancy.
 	 */
-	public void setRedGen(int redGen) {
+	public synchronized void setRedGen(int redGen) {
 		this.redGen = redGen;
+		if (redGensToSend > redGen) {
+			redGensToSend = redGen;
+		}
 	}
 
 
 	/**
-	 * Sets the buffer time.
+	 * Sets a fixed buffer time, which turns adaptation off.
 	 *
 	 * @param bufferTime The buffer time
 	 */
-	public void setBufferTime(int bufferTime) {
+	public synchronized void setBufferTime(int bufferTime) {
 		this.bufferTime = bufferTime;
+		this.minBufferTime = bufferTime;
+		this.maxBufferTime = bufferTime;
 	}
 
 	/**
@@ -437,8 +856,10 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 	 *
 	 * @param boolean aSendOnCR should buffer send on CR
 	 */
-	public void setSendOnCR(boolean aSendOnCR) {
+	public synchronized void setSendOnCR(boolean aSendOnCR) {
 		this.sendOnCR = aSendOnCR;
+		scannedLength = 0;
+		lineEnd = 0;
 	}
 
 	/**
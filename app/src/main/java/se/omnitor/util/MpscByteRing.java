@@ -0,0 +1,163 @@
+/*
+ * RTP text/t140 Library
+ * 
+ * Copyright (C) 2004-2008 Board of Regents of the University of Wisconsin System
+ * (Univ. of Wisconsin-Madison, Trace R&D Center)
+ * Copyright (C) 2004-2008 Omnitor AB
+ *
+ * This software was developed with support from the National Institute on
+ * Disability and Rehabilitation Research, US Dept of Education under Grant
+ * # H133E990006 and H133E040014  
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Please send a copy of any improved versions of the library to: 
+ * Gunnar Hellstrom, Omnitor AB, Renathvagen 2, SE 121 37 Johanneshov, SWEDEN
+ * Gregg Vanderheiden, Trace Center, U of Wisconsin, Madison, Wi 53706
+ *
+ */
+package se.omnitor.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A preallocated byte ring with any number of writers and one reader. <br>
+ * <br>
+ * Writers claim space with a compare-and-set on the write position and copy
+ * their bytes straight into the ring, so appending takes no lock and
+ * allocates nothing. Claims are published in the order they were made. The
+ * reader drains everything published so far in one go. <br>
+ * <br>
+ * Only one thread at a time may call the reading methods drainTo() and
+ * discard(). <br>
+ */
+public class MpscByteRing {
+
+    private final byte[] ring;
+    private final int mask;
+
+    //Total bytes claimed by writers
+    private final AtomicLong claimed = new AtomicLong(0);
+
+    //Total bytes whose copy into the ring is complete
+    private volatile long published = 0;
+
+    //Total bytes taken by the reader
+    private volatile long consumed = 0;
+
+    /**
+     * Initializes.
+     *
+     * @param capacity The ring size in bytes, rounded up to a power of 2.
+     */
+    public MpscByteRing(int capacity) {
+	int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+	ring = new byte[size];
+	mask = size - 1;
+    }
+
+    /**
+     * Gets the ring size.
+     *
+     * @return The number of bytes the ring can hold.
+     */
+    public int getCapacity() {
+	return ring.length;
+    }
+
+    /**
+     * Appends bytes, if there is room for all of them.
+     *
+     * @param data The array holding the bytes.
+     * @param offset The first byte to append.
+     * @param length The number of bytes to append.
+     *
+     * @return false if the ring does not have room, in which case nothing
+     * was appended.
+     */
+    public boolean offer(byte[] data, int offset, int length) {
+	long start;
+
+	do {
+	    start = claimed.get();
+	    if (start + length - consumed > ring.length) {
+		return false;
+	    }
+	} while (!claimed.compareAndSet(start, start + length));
+
+	int index = (int)(start & mask);
+	int firstPart = Math.min(length, ring.length - index);
+	System.arraycopy(data, offset, ring, index, firstPart);
+	System.arraycopy(data, offset + firstPart, ring, 0, length - firstPart);
+
+	//Publish in claim order. Writers that claimed earlier are only ever
+	//in the middle of a copy, so this wait is short.
+	while (published != start) {
+	    Thread.yield();
+	}
+	published = start + length;
+
+	return true;
+    }
+
+    /**
+     * Checks whether there is published data to read.
+     *
+     * @return true if there is nothing to read.
+     */
+    public boolean isEmpty() {
+	return published == consumed;
+    }
+
+    /**
+     * Moves published bytes to an array.
+     *
+     * @param dest The array to copy to.
+     * @param destOffset Where to put the first byte.
+     * @param maxLength The most bytes to take.
+     *
+     * @return The number of bytes taken.
+     */
+    public int drainTo(byte[] dest, int destOffset, int maxLength) {
+	long start = consumed;
+	int length = (int)Math.min(published - start, maxLength);
+
+	int index = (int)(start & mask);
+	int firstPart = Math.min(length, ring.length - index);
+	System.arraycopy(ring, index, dest, destOffset, firstPart);
+	System.arraycopy(ring, 0, dest, destOffset + firstPart,
+			 length - firstPart);
+
+	consumed = start + length;
+	return length;
+    }
+
+    /**
+     * Gets the number of published bytes waiting to be read.
+     *
+     * @return The number of bytes.
+     */
+    public int available() {
+	return (int)(published - consumed);
+    }
+
+    /**
+     * Throws away everything published so far.
+     */
+    public void discard() {
+	consumed = published;
+    }
+
+}
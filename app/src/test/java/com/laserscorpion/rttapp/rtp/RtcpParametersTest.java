@@ -0,0 +1,26 @@
+package com.laserscorpion.rttapp.rtp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * RTCP must not share the RTP port when a payload type could be mistaken for an RTCP packet
+ * type, per RFC 5761 section 4.
+ */
+public class RtcpParametersTest {
+
+    @Test
+    public void canMultiplex_dynamicPayloadTypes() {
+        assertTrue(RtcpParameters.canMultiplex(100, 101));
+        assertTrue(RtcpParameters.canMultiplex(96, -1));
+        assertTrue(RtcpParameters.canMultiplex(63, 0));
+    }
+
+    @Test
+    public void canMultiplex_refusesRtcpRange() {
+        assertFalse(RtcpParameters.canMultiplex(64, 101));
+        assertFalse(RtcpParameters.canMultiplex(100, 95));
+        assertFalse(RtcpParameters.canMultiplex(72, -1));
+    }
+}
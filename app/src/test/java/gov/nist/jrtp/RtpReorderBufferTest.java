@@ -0,0 +1,115 @@
+package gov.nist.jrtp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the RTP reorder window: restarts, stray packets, wraparound, and
+ * keeping the sequences of different SSRCs apart.
+ */
+public class RtpReorderBufferTest {
+
+    private RtpSession rtpSession;
+    private RtpReorderBuffer reorderBuffer;
+
+    // Sequence numbers in the order they were released
+    private final ArrayList<Integer> released = new ArrayList<Integer>();
+
+    // The receive time of offered packets
+    private long now = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        rtpSession = new RtpSession(InetAddress.getLoopbackAddress(), 0);
+        rtpSession.addRtpListener(new RtpListener() {
+            public void handleRtpPacketEvent(RtpPacketEvent rtpEvent) {
+                released.add(rtpEvent.getRtpPacket().getSN());
+            }
+
+            public void handleRtpStatusEvent(RtpStatusEvent rtpEvent) {
+            }
+
+            public void handleRtpTimeoutEvent(RtpTimeoutEvent rtpEvent) {
+            }
+
+            public void handleRtpErrorEvent(RtpErrorEvent rtpEvent) {
+            }
+        });
+        reorderBuffer = new RtpReorderBuffer(rtpSession);
+    }
+
+    @After
+    public void tearDown() {
+        rtpSession.shutDown();
+    }
+
+    @Test
+    public void restart_releasesFirstPacket() {
+        offer(1000, 1001, 1002, 40000, 40001, 40002);
+        assertReleased(1000, 1001, 1002, 40000, 40001, 40002);
+    }
+
+    @Test
+    public void strayPacket_dropped() {
+        offer(1000, 1001, 40000, 1002);
+        assertReleased(1000, 1001, 1002);
+    }
+
+    @Test
+    public void restart_acrossWraparound() {
+        offer(30000, 30001, 65535, 0, 1);
+        assertReleased(30000, 30001, 65535, 0, 1);
+    }
+
+    @Test
+    public void newSsrc_startsItsOwnSequence() {
+        offerFrom(1, 1000, 1001, 1002, 1003, 1004);
+        offerFrom(2, 40000);
+        offerFrom(3, 40001, 40002, 40003);
+        offerFrom(2, 40001);
+        assertReleased(1000, 1001, 1002, 1003, 1004, 40000, 40001, 40002,
+                       40003, 40001);
+    }
+
+    @Test
+    public void quietestSsrc_releasesHeldPacketsWhenReplaced() {
+        rtpSession.setReorderHoldTime(1000);
+        offerFrom(1, 1000, 1002);
+        now = 10;
+        for (int i = 2; i <= RtpReorderBuffer.MAX_SOURCES; i++) {
+            offerFrom(i, 5000);
+        }
+        assertReleased(1000, 5000, 5000, 5000);
+
+        now = 20;
+        offerFrom(RtpReorderBuffer.MAX_SOURCES + 1, 7000);
+        assertReleased(1000, 5000, 5000, 5000, 1002, 7000);
+    }
+
+    private void offer(int... sequenceNumbers) {
+        offerFrom(1, sequenceNumbers);
+    }
+
+    private void offerFrom(long ssrc, int... sequenceNumbers) {
+        for (int sequenceNumber : sequenceNumbers) {
+            RtpPacket rtpPacket = new RtpPacket();
+            rtpPacket.setSSRC(ssrc);
+            rtpPacket.setSN(sequenceNumber);
+            byte[] data = rtpPacket.getData();
+            reorderBuffer.offer(data, 0, data.length, now);
+        }
+    }
+
+    private void assertReleased(int... sequenceNumbers) {
+        assertEquals(sequenceNumbers.length, released.size());
+        for (int i = 0; i < sequenceNumbers.length; i++) {
+            assertEquals(sequenceNumbers[i], released.get(i).intValue());
+        }
+    }
+}
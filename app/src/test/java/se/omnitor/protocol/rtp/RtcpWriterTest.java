@@ -0,0 +1,283 @@
+package se.omnitor.protocol.rtp;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests writing compound RTCP packets with RtcpWriter and reading them back
+ * with RtcpParser, including the checks of RFC 3550 appendix A.2.
+ */
+public class RtcpWriterTest {
+
+    private static final long SSRC = 0x12345678L;
+    private static final long OTHER_SSRC = 0xfedcba98L;
+    private static final long NTP_TIME = 0x0102030405060708L;
+
+    private RtcpWriter writer;
+    private RtcpParser parser;
+
+    @Before
+    public void setUp() {
+        writer = new RtcpWriter();
+        parser = new RtcpParser();
+    }
+
+    /**
+     * Test that an SR with a report block, an SDES and a BYE read back as
+     * they were written.
+     */
+    @Test
+    public void roundTrip() {
+        Source source = new Source(OTHER_SSRC);
+        source.fraction = 64;
+        source.lost = -3;
+        source.last_seq = 70000;
+        source.jitter = 12;
+        source.lst = 0xabcdL;
+        source.dlsr = 655.36;
+
+        writer.reset();
+        writer.beginSenderReport(SSRC, NTP_TIME, 1000, 5, 500);
+        writer.writeReportBlock(source);
+        writer.endPacket();
+        writer.writeSourceDescription(SSRC, "user@host".getBytes(),
+                                      "user@example.com".getBytes());
+        writer.writeBye(SSRC, "bye".getBytes());
+
+        assertTrue(parser.wrap(writer.getBuffer(), 0, writer.getLength()));
+
+        assertTrue(parser.next());
+        assertEquals(RTCPConstants.RTCP_SR, parser.getPacketType());
+        assertEquals(SSRC, parser.getSsrc());
+        assertTrue(parser.hasSenderInfo());
+        assertEquals(NTP_TIME, parser.getNtpTimeStamp());
+        assertEquals(0x03040506L, parser.getCompactNtpTimeStamp());
+        assertEquals(1000, parser.getRtpTimeStamp());
+        assertEquals(5, parser.getSenderPacketCount());
+        assertEquals(500, parser.getSenderOctetCount());
+        assertEquals(1, parser.getReportBlockCount());
+        assertEquals(OTHER_SSRC, parser.getBlockSsrc(0));
+        assertEquals(64, parser.getBlockFractionLost(0));
+        assertEquals(-3, parser.getBlockCumulativeLost(0));
+        assertEquals(70000, parser.getBlockExtendedHighestSeq(0));
+        assertEquals(12, parser.getBlockJitter(0));
+        assertEquals(0xabcdL, parser.getBlockLastSr(0));
+        assertEquals(655, parser.getBlockDelayLastSr(0));
+
+        assertTrue(parser.next());
+        assertEquals(RTCPConstants.RTCP_SDES, parser.getPacketType());
+        assertEquals(SSRC, parser.getSsrc());
+        assertTrue(parser.nextItem());
+        assertEquals(RTCPConstants.RTCP_SDES_CNAME, parser.getItemType());
+        assertEquals("user@host", item());
+        assertTrue(parser.nextItem());
+        assertEquals(RTCPConstants.RTCP_SDES_EMAIL, parser.getItemType());
+        assertEquals("user@example.com", item());
+        assertFalse(parser.nextItem());
+
+        assertTrue(parser.next());
+        assertEquals(RTCPConstants.RTCP_BYE, parser.getPacketType());
+        assertEquals(1, parser.getByeSsrcCount());
+        assertEquals(SSRC, parser.getByeSsrc(0));
+        assertEquals("bye", new String(parser.getData(),
+                                       parser.getByeReasonOffset(),
+                                       parser.getByeReasonLength()));
+
+        assertFalse(parser.next());
+    }
+
+    /**
+     * Test that a packet with a version other than 2 is rejected, in the
+     * first packet or a later one.
+     */
+    @Test
+    public void rejectBadVersion() {
+        writeReceiverReportAndBye();
+        byte[] data = writer.getBuffer();
+
+        data[0] = (byte) ((data[0] & 0x3f) | (1 << 6));
+        assertFalse(parser.wrap(data, 0, writer.getLength()));
+        assertFalse(parser.next());
+
+        // The BYE follows an RR with one report block
+        writeReceiverReportAndBye();
+        data[32] = (byte) ((data[32] & 0x3f) | (3 << 6));
+        assertFalse(parser.wrap(data, 0, writer.getLength()));
+    }
+
+    /**
+     * Test that padding on the first packet is rejected.
+     */
+    @Test
+    public void rejectPaddingOnFirstPacket() {
+        writeReceiverReportAndBye();
+        writer.getBuffer()[0] |= 0x20;
+
+        assertFalse(parser.wrap(writer.getBuffer(), 0, writer.getLength()));
+    }
+
+    /**
+     * Test that packet lengths which do not add up to the length of the
+     * compound packet are rejected.
+     */
+    @Test
+    public void rejectLengthMismatch() {
+        writeReceiverReportAndBye();
+        int length = writer.getLength();
+
+        assertFalse(parser.wrap(writer.getBuffer(), 0, length - 4));
+        assertFalse(parser.wrap(writer.getBuffer(), 0, length + 4));
+
+        // A length field that runs past the end
+        writer.getBuffer()[3]++;
+        assertFalse(parser.wrap(writer.getBuffer(), 0, length));
+    }
+
+    /**
+     * Test that a first packet other than an SR or RR is only accepted when
+     * reduced-size packets are.
+     */
+    @Test
+    public void reducedSize() {
+        writer.reset();
+        writer.writeBye(SSRC, null);
+
+        assertFalse(parser.wrap(writer.getBuffer(), 0, writer.getLength()));
+
+        parser.setReducedSize(true);
+        assertTrue(parser.wrap(writer.getBuffer(), 0, writer.getLength()));
+        assertTrue(parser.next());
+        assertEquals(RTCPConstants.RTCP_BYE, parser.getPacketType());
+        assertEquals(0, parser.getByeReasonLength());
+        assertFalse(parser.next());
+
+        // The other checks still apply
+        writer.getBuffer()[0] &= 0x3f;
+        assertFalse(parser.wrap(writer.getBuffer(), 0, writer.getLength()));
+    }
+
+    /**
+     * Test that a BYE reason longer than 255 bytes is cut to 255 bytes,
+     * and that the largest compound packet fits in the buffer.
+     */
+    @Test
+    public void longByeReason() {
+        byte[] reason = new byte[300];
+        for (int i = 0; i < reason.length; i++) {
+            reason[i] = (byte) ('a' + i % 26);
+        }
+
+        writer.reset();
+        writer.beginSenderReport(SSRC, NTP_TIME, 0, 0, 0);
+        while (writer.hasRoomForReportBlock()) {
+            writer.writeReportBlock(new Source(OTHER_SSRC));
+        }
+        writer.endPacket();
+        writer.writeSourceDescription(SSRC, reason, reason);
+        writer.writeBye(SSRC, reason);
+
+        assertTrue(writer.getLength() <= RtcpWriter.MAX_PACKET_SIZE);
+        assertTrue(parser.wrap(writer.getBuffer(), 0, writer.getLength()));
+        assertTrue(parser.next());
+        assertEquals(RtcpWriter.MAX_COUNT, parser.getReportBlockCount());
+        assertTrue(parser.next());
+        assertTrue(parser.next());
+        assertEquals(RTCPConstants.RTCP_BYE, parser.getPacketType());
+        assertEquals(255, parser.getByeReasonLength());
+        assertEquals(new String(reason, 0, 255),
+                     new String(parser.getData(), parser.getByeReasonOffset(),
+                                255));
+        assertFalse(parser.next());
+    }
+
+    /**
+     * Test that packets too short for their type are skipped, so their
+     * fields are never read from the next packet or past the data.
+     */
+    @Test
+    public void skipTruncatedPackets() {
+        byte[] data = concat(header(0, RTCPConstants.RTCP_SR, 0),
+                             header(1, RTCPConstants.RTCP_SDES, 0),
+                             header(0, RTCPConstants.RTCP_APP, 1), word(1),
+                             header(0, RTCPConstants.RTCP_RR, 1), word(SSRC));
+        parser.setReducedSize(true);
+
+        assertTrue(parser.wrap(data, 0, data.length));
+        assertTrue(parser.next());
+        assertEquals(RTCPConstants.RTCP_RR, parser.getPacketType());
+        assertEquals(SSRC, parser.getSsrc());
+        assertFalse(parser.next());
+    }
+
+    /**
+     * Test that packets whose count does not fit in them are skipped.
+     */
+    @Test
+    public void skipPacketsWithLyingCounts() {
+        byte[] data = concat(header(0, RTCPConstants.RTCP_RR, 1), word(SSRC),
+                             header(2, RTCPConstants.RTCP_RR, 7), word(SSRC),
+                             new byte[RtcpWriter.REPORT_BLOCK_SIZE],
+                             header(31, RTCPConstants.RTCP_BYE, 1),
+                             word(OTHER_SSRC));
+
+        assertTrue(parser.wrap(data, 0, data.length));
+        assertTrue(parser.next());
+        assertEquals(0, parser.getReportBlockCount());
+        assertFalse(parser.next());
+    }
+
+    /**
+     * Test that the reason of a BYE without one points at the end of the
+     * packet, even when the packet ends the data.
+     */
+    @Test
+    public void byeWithoutReasonAtEndOfData() {
+        byte[] data = concat(header(0, RTCPConstants.RTCP_RR, 1), word(SSRC),
+                             header(1, RTCPConstants.RTCP_BYE, 1),
+                             word(OTHER_SSRC));
+
+        assertTrue(parser.wrap(data, 0, data.length));
+        assertTrue(parser.next());
+        assertTrue(parser.next());
+        assertEquals(1, parser.getByeSsrcCount());
+        assertEquals(OTHER_SSRC, parser.getByeSsrc(0));
+        assertEquals(0, parser.getByeReasonLength());
+        assertEquals(data.length, parser.getByeReasonOffset());
+    }
+
+    private static byte[] header(int count, int packetType, int words) {
+        return new byte[] { (byte) ((RTCPConstants.VERSION << 6) | count),
+                            (byte) packetType, (byte) (words >> 8),
+                            (byte) words };
+    }
+
+    private static byte[] word(long value) {
+        return new byte[] { (byte) (value >> 24), (byte) (value >> 16),
+                            (byte) (value >> 8), (byte) value };
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private void writeReceiverReportAndBye() {
+        writer.reset();
+        writer.beginReceiverReport(SSRC);
+        writer.writeReportBlock(new Source(OTHER_SSRC));
+        writer.endPacket();
+        writer.writeBye(SSRC, null);
+    }
+
+    private String item() {
+        return new String(parser.getData(), parser.getItemOffset(),
+                          parser.getItemLength());
+    }
+}
@@ -0,0 +1,67 @@
+package se.omnitor.protocol.rtp.text;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks when keepalives lined up with RTCP are sent, and that multiplexed
+ * RTCP stands in for them.
+ */
+public class KeepaliveSchedulerTest {
+
+    private final AtomicInteger sent = new AtomicInteger();
+    private final CountDownLatch firstSent = new CountDownLatch(1);
+    private final long lastSendTime = System.currentTimeMillis();
+    private KeepaliveScheduler.Registration registration;
+
+    private final KeepaliveScheduler.KeepaliveTarget target =
+        new KeepaliveScheduler.KeepaliveTarget() {
+            public long getLastSendTime() {
+                return lastSendTime;
+            }
+
+            public void sendKeepalive() {
+                sent.incrementAndGet();
+                firstSent.countDown();
+            }
+        };
+
+    @After
+    public void tearDown() {
+        if (registration != null) {
+            registration.cancel();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void rtcpSent_beforeIntervalSendsNothing() throws Exception {
+        registration =
+            KeepaliveScheduler.getInstance().register(target, 2000, true);
+
+        Thread.sleep(1200);
+        registration.rtcpSent();
+        assertEquals(0, sent.get());
+    }
+
+    @Test(timeout = 10000)
+    public void rtcpSent_muxedStandsInForKeepalives() throws Exception {
+        registration =
+            KeepaliveScheduler.getInstance().register(target, 1000, true);
+        registration.setRtcpMuxed(true);
+
+        for (int i = 0; i < 20; i++) {
+            registration.rtcpSent();
+            Thread.sleep(100);
+        }
+        assertEquals(0, sent.get());
+
+        // Once RTCP stops, the scheduler sends keepalives again
+        assertTrue(firstSent.await(5, TimeUnit.SECONDS));
+    }
+}
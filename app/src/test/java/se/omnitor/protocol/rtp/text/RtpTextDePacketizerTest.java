@@ -0,0 +1,69 @@
+package se.omnitor.protocol.rtp.text;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a burst of packets held up by one missing packet is released
+ * once, in sequence order, when the missing packet arrives, and that none of
+ * it is output again afterwards.
+ */
+public class RtpTextDePacketizerTest {
+
+    private static final int PAYLOAD_SIZE = 4;
+
+    @Test
+    public void recoveredBurst_releasedOnceInOrder() {
+        int[] burstSizes = { 4, 16, 32, 63 };
+
+        for (int size : burstSizes) {
+            RtpTextDePacketizer depacketizer =
+                new RtpTextDePacketizer(98, 100, false);
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+            // Packet 1 is late, 2..size arrive and are held behind it
+            assertArrayEquals(payload(0), decode(depacketizer, 0));
+            for (int seq = 2; seq <= size; seq++) {
+                assertEquals(0, decode(depacketizer, seq).length);
+            }
+            for (int seq = 1; seq <= size; seq++) {
+                byte[] data = payload(seq);
+                expected.write(data, 0, data.length);
+            }
+            assertArrayEquals("burst of " + size, expected.toByteArray(),
+                              decode(depacketizer, 1));
+
+            // Nothing of the burst is output again
+            assertEquals(0, decode(depacketizer, 2).length);
+            assertArrayEquals(payload(size + 1),
+                              decode(depacketizer, size + 1));
+        }
+    }
+
+    /**
+     * @return a payload that tells the packet it came in apart
+     */
+    private static byte[] payload(int seq) {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        for (int i = 0; i < PAYLOAD_SIZE; i++) {
+            payload[i] = (byte)('a' + (seq + i) % 26);
+        }
+        return payload;
+    }
+
+    private static byte[] decode(RtpTextDePacketizer depacketizer, int seq) {
+        byte[] payload = payload(seq);
+        RtpTextBuffer in = new RtpTextBuffer();
+        RtpTextBuffer out = new RtpTextBuffer();
+        in.setData(payload);
+        in.setLength(payload.length);
+        in.setOffset(0);
+        in.setSequenceNumber(seq);
+        in.setSsrc(1);
+        depacketizer.decode(in, out);
+        return out.getData();
+    }
+}
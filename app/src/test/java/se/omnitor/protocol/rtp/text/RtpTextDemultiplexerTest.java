@@ -0,0 +1,131 @@
+package se.omnitor.protocol.rtp.text;
+
+import gov.nist.jrtp.RtpErrorEvent;
+import gov.nist.jrtp.RtpListener;
+import gov.nist.jrtp.RtpPacket;
+import gov.nist.jrtp.RtpPacketEvent;
+import gov.nist.jrtp.RtpSession;
+import gov.nist.jrtp.RtpStatusEvent;
+import gov.nist.jrtp.RtpTimeoutEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the text of restarted and replaced streams as it comes through a
+ * session's receive path: the reorder buffer confirms or drops sequence
+ * number jumps, and the demultiplexer decodes what it lets through.
+ */
+public class RtpTextDemultiplexerTest {
+
+    private static final int TEXT_PAYLOAD_TYPE = 98;
+
+    private RtpSession rtpSession;
+    private DatagramSocket sender;
+    private RtpTextDemultiplexer demultiplexer;
+    private final ByteArrayOutputStream text = new ByteArrayOutputStream();
+    private CountDownLatch released;
+
+    @Before
+    public void setUp() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        rtpSession = new RtpSession(loopback, 0,
+                                    loopback.getHostAddress(), 0);
+        demultiplexer = new RtpTextDemultiplexer(TEXT_PAYLOAD_TYPE, 0, false);
+        rtpSession.addRtpListener(new RtpListener() {
+            public void handleRtpPacketEvent(RtpPacketEvent rtpEvent) {
+                decode(rtpEvent.getRtpPacket());
+                released.countDown();
+            }
+
+            public void handleRtpStatusEvent(RtpStatusEvent rtpEvent) {
+            }
+
+            public void handleRtpTimeoutEvent(RtpTimeoutEvent rtpEvent) {
+            }
+
+            public void handleRtpErrorEvent(RtpErrorEvent rtpEvent) {
+            }
+        });
+        rtpSession.receiveRTPPackets();
+        sender = new DatagramSocket(0, loopback);
+    }
+
+    @After
+    public void tearDown() {
+        sender.close();
+        rtpSession.shutDown();
+    }
+
+    @Test(timeout = 5000)
+    public void restartedStream_decodedAfterStrayPacketDropped()
+            throws Exception {
+        released = new CountDownLatch(5);
+        send(1, 1000, "ab");
+        send(1, 1001, "cd");
+        send(1, 30000, "xx");
+        send(1, 1002, "ef");
+        send(1, 40000, "gh");
+        send(1, 40001, "ij");
+
+        released.await();
+        assertEquals("abcdefghij", text.toString());
+        assertEquals(1, demultiplexer.getStreamCount());
+    }
+
+    @Test(timeout = 5000)
+    public void newSsrcs_decodedAsSeparateStreams() throws Exception {
+        released = new CountDownLatch(6);
+        send(1, 1000, "ab");
+        send(1, 1001, "cd");
+        send(2, 40000, "ef");
+        send(3, 40001, "gh");
+        send(2, 40001, "ij");
+        send(3, 40002, "kl");
+
+        released.await();
+        assertEquals("abcdefghijkl", text.toString());
+        assertEquals(3, demultiplexer.getStreamCount());
+    }
+
+    private void send(long ssrc, int sequenceNumber, String payload)
+            throws Exception {
+        RtpPacket rtpPacket = new RtpPacket();
+        rtpPacket.setSSRC(ssrc);
+        rtpPacket.setSN(sequenceNumber);
+        rtpPacket.setPT(TEXT_PAYLOAD_TYPE);
+        byte[] bytes = payload.getBytes("UTF-8");
+        rtpPacket.setPayload(bytes, bytes.length);
+        byte[] data = rtpPacket.getData();
+        sender.send(new DatagramPacket(data, data.length,
+                                       InetAddress.getLoopbackAddress(),
+                                       rtpSession.getRtpRecvSocket()
+                                           .getLocalPort()));
+    }
+
+    private void decode(RtpPacket rtpPacket) {
+        RtpTextBuffer inBuffer = new RtpTextBuffer();
+        RtpTextBuffer outBuffer = new RtpTextBuffer();
+        inBuffer.setData(rtpPacket.getPayload());
+        inBuffer.setOffset(0);
+        inBuffer.setLength(rtpPacket.getPayloadLength());
+        inBuffer.setSequenceNumber(rtpPacket.getSN());
+        inBuffer.setTimeStamp(rtpPacket.getTS());
+        inBuffer.setSsrc(rtpPacket.getSSRC());
+        demultiplexer.decode(inBuffer, outBuffer);
+        byte[] data = outBuffer.getData();
+        if (data != null) {
+            text.write(data, 0, data.length);
+        }
+    }
+}
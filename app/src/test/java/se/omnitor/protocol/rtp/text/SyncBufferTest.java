@@ -0,0 +1,93 @@
+package se.omnitor.protocol.rtp.text;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that writers are never held up by a full ring, and that text which
+ * overflows it is still sent whole and in order.
+ */
+public class SyncBufferTest {
+
+    // Larger than the ring inside SyncBuffer
+    private static final int LARGE = 5000;
+
+    @Test(timeout = 5000)
+    public void setData_largerThanRing_returnsAndKeepsOrder() {
+        SyncBuffer buffer = new SyncBuffer(0, 300);
+        byte[] paste = pattern(LARGE, 0);
+
+        buffer.setData(paste);
+        assertTrue(buffer.hasDataWaiting());
+        assertEquals(LARGE, buffer.getQueueDepth());
+
+        assertArrayEquals(paste, pollAll(buffer));
+    }
+
+    @Test(timeout = 5000)
+    public void setData_afterOverflow_staysInOrder() {
+        SyncBuffer buffer = new SyncBuffer(0, 300);
+        byte[] first = pattern(3000, 0);
+        byte[] second = pattern(3000, 7);
+        byte[] third = "x".getBytes();
+
+        buffer.setData(first);
+        buffer.setData(second);
+        buffer.setData(third);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(first, 0, first.length);
+        expected.write(second, 0, second.length);
+        expected.write(third, 0, third.length);
+        assertArrayEquals(expected.toByteArray(), pollAll(buffer));
+
+        // The ring is used again once the overflow has been taken
+        buffer.setData(third);
+        assertArrayEquals(third, pollAll(buffer));
+    }
+
+    @Test(timeout = 5000)
+    public void empty_discardsOverflow() {
+        SyncBuffer buffer = new SyncBuffer(0, 300);
+
+        buffer.setData(pattern(LARGE, 0));
+        buffer.empty();
+
+        assertFalse(buffer.hasDataWaiting());
+        assertEquals(0, buffer.getQueueDepth());
+    }
+
+    @Test(timeout = 5000)
+    public void sendKeepalive_skippedWhenTextIsWaiting() {
+        SyncBuffer buffer = new SyncBuffer(0, 300);
+        byte[] text = "hello".getBytes();
+
+        buffer.setData(text);
+        buffer.sendKeepalive();
+        assertArrayEquals(text, pollAll(buffer));
+
+        buffer.sendKeepalive();
+        assertArrayEquals(TextConstants.ZERO_WIDTH_NO_BREAK_SPACE,
+                          pollAll(buffer));
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + (i + seed) % 26);
+        }
+        return data;
+    }
+
+    private static byte[] pollAll(SyncBuffer buffer) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] data;
+        while ((data = buffer.poll()) != null) {
+            out.write(data, 0, data.length);
+        }
+        return out.toByteArray();
+    }
+}